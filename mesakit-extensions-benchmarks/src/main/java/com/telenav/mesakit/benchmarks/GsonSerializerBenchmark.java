@@ -0,0 +1,171 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.geography.shape.rectangle.Rectangle;
+import com.telenav.mesakit.serialization.json.serializers.LocationGsonSerializer;
+import com.telenav.mesakit.serialization.json.serializers.RectangleInDegreesGsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks serializing and deserializing locations and rectangles with the Gson serializers in
+ * mesakit-serialization-json, on one thread and on as many threads as there are processors. All threads share one
+ * {@link Gson} instance, as applications do.
+ *
+ * @author jonathanl (shibo)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GsonSerializerBenchmark
+{
+    /** The number of values cycled through by each benchmark */
+    private static final int VALUES = 1_024;
+
+    /**
+     * The Gson instance, values and their JSON, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Values
+    {
+        private Gson gson;
+
+        private final Location[] locations = new Location[VALUES];
+
+        private final String[] locationsJson = new String[VALUES];
+
+        private final Rectangle[] rectangles = new Rectangle[VALUES];
+
+        private final String[] rectanglesJson = new String[VALUES];
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            gson = new GsonBuilder()
+                    .registerTypeAdapter(Location.class, new LocationGsonSerializer())
+                    .registerTypeAdapter(Rectangle.class, new RectangleInDegreesGsonSerializer())
+                    .create();
+
+            var grid = new SyntheticGraph(100, 100, 100);
+            var random = new Random(4);
+            for (var index = 0; index < VALUES; index++)
+            {
+                var row = random.nextDouble() * 90;
+                var column = random.nextDouble() * 90;
+                locations[index] = grid.location(row, column);
+                rectangles[index] = Rectangle.fromLocations(locations[index],
+                        grid.location(row + random.nextDouble() * 10, column + random.nextDouble() * 10));
+
+                locationsJson[index] = gson.toJson(locations[index], Location.class);
+                rectanglesJson[index] = gson.toJson(rectangles[index], Rectangle.class);
+            }
+        }
+    }
+
+    /**
+     * Each thread's position in the values
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next;
+
+        int next()
+        {
+            var index = next;
+            next = (next + 1) % VALUES;
+            return index;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Location deserializeLocation(Values values, Cursor cursor)
+    {
+        return values.gson.fromJson(values.locationsJson[cursor.next()], Location.class);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Location deserializeLocationMultiThreaded(Values values, Cursor cursor)
+    {
+        return values.gson.fromJson(values.locationsJson[cursor.next()], Location.class);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Rectangle deserializeRectangle(Values values, Cursor cursor)
+    {
+        return values.gson.fromJson(values.rectanglesJson[cursor.next()], Rectangle.class);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Rectangle deserializeRectangleMultiThreaded(Values values, Cursor cursor)
+    {
+        return values.gson.fromJson(values.rectanglesJson[cursor.next()], Rectangle.class);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String serializeLocation(Values values, Cursor cursor)
+    {
+        return values.gson.toJson(values.locations[cursor.next()], Location.class);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String serializeLocationMultiThreaded(Values values, Cursor cursor)
+    {
+        return values.gson.toJson(values.locations[cursor.next()], Location.class);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String serializeRectangle(Values values, Cursor cursor)
+    {
+        return values.gson.toJson(values.rectangles[cursor.next()], Rectangle.class);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String serializeRectangleMultiThreaded(Values values, Cursor cursor)
+    {
+        return values.gson.toJson(values.rectangles[cursor.next()], Rectangle.class);
+    }
+}
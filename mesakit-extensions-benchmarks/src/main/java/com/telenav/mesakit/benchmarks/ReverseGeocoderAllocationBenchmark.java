@@ -0,0 +1,332 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameTrigramIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.matching.BoundedRoadNameMatcher;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnap;
+import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnapper;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bytes allocated by each call to {@link ReverseGeocoder#locate(ReverseGeocoder.Request)} against a
+ * {@link SyntheticGraph}, before and after the geocoder reused per-thread contexts and scored candidates with
+ * primitives. The path parameter selects the code that is measured:
+ *
+ * <ul>
+ *     <li>{@link Path#LEGACY} - A copy of the locate path as it was before contexts were reused (see
+ *     {@link LegacyGeocoder}), which allocates a snapper, a {@link Percent} for each road name score, a candidate
+ *     object for each candidate edge, a comparator to sort them and a response for each closer snap</li>
+ *     <li>{@link Path#FRESH_CONTEXT} - The current geocoder, giving each call a new context</li>
+ *     <li>{@link Path#REUSED_CONTEXT} - The current geocoder, reusing the calling thread's context</li>
+ * </ul>
+ * <p>
+ * Allocation is only reported by JMH's GC profiler. Running this class's main method adds the profiler, as does passing
+ * <i>-prof gc</i> to the benchmarks jar, and the bytes per call are reported as <i>gc.alloc.rate.norm</i>.
+ *
+ * @author jonathanl (shibo)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class ReverseGeocoderAllocationBenchmark
+{
+    public static void main(String[] arguments) throws RunnerException
+    {
+        new Runner(new OptionsBuilder()
+                .include(ReverseGeocoderAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /** The number of requests cycled through by each benchmark */
+    private static final int REQUESTS = 4_096;
+
+    /**
+     * The code path that is measured
+     */
+    public enum Path
+    {
+        LEGACY,
+        FRESH_CONTEXT,
+        REUSED_CONTEXT
+    }
+
+    /**
+     * A copy of {@link ReverseGeocoder#locate(ReverseGeocoder.Request)} as it was before per-thread contexts and
+     * primitive scoring, for the configuration of this benchmark: a road name index without a standardizer, the road
+     * name trigram filter, and no cache or instrumentation. It examines the same edges as the current geocoder, but
+     * keeps each edge whose road name is at least as close as those of the edges before it, as the geocoder then did,
+     * rather than only the edges with the closest names. When a request names a road, it may therefore snap a few more
+     * candidates than the current geocoder.
+     */
+    static class LegacyGeocoder
+    {
+        /** Keeps bounding box distances from exceeding snapped distances, as the geocoder did */
+        private static final double LOWER_BOUND_SLACK = 0.99;
+
+        /**
+         * An edge that passed the heading and road name filters, waiting to be snapped
+         */
+        private static class Candidate
+        {
+            private final Edge edge;
+
+            private final Percent roadNameCloseness;
+
+            private final int order;
+
+            private final double lowerBound;
+
+            Candidate(Edge edge, Percent roadNameCloseness, int order, double lowerBound)
+            {
+                this.edge = edge;
+                this.roadNameCloseness = roadNameCloseness;
+                this.order = order;
+                this.lowerBound = lowerBound;
+            }
+        }
+
+        /**
+         * The edge located, as the geocoder's response held it
+         */
+        static class Located
+        {
+            private final Edge edge;
+
+            private final PolylineSnap snap;
+
+            private final Percent percentage;
+
+            Located(Edge edge, PolylineSnap snap, Percent percentage)
+            {
+                this.edge = edge;
+                this.snap = snap;
+                this.percentage = percentage;
+            }
+        }
+
+        private final Graph graph;
+
+        private final ReverseGeocoder.Configuration configuration;
+
+        private final RoadNameIndex roadNameIndex;
+
+        private final RoadNameTrigramIndex roadNameTrigramIndex;
+
+        LegacyGeocoder(Graph graph, ReverseGeocoder.Configuration configuration, RoadNameIndex roadNameIndex)
+        {
+            this.graph = graph;
+            this.configuration = configuration;
+            this.roadNameIndex = roadNameIndex;
+            roadNameTrigramIndex = new RoadNameTrigramIndex(roadNameIndex);
+        }
+
+        Located locate(ReverseGeocoder.Request request)
+        {
+            var location = request.location();
+            var heading = request.heading();
+            var desired = request.roadName();
+            var desiredHasDirection = desired != null && desired.extractDirection() != null;
+            var trigrams = desired != null
+                    ? roadNameTrigramIndex.query(desired, configuration.roadNameCloseness())
+                    : null;
+
+            // Find the edges that pass the heading and road name filters, each at least as close by name as the
+            // ones before it,
+            var candidates = new ArrayList<Candidate>();
+            var highestRoadNameCloseness = Percent._0;
+            for (var edge : graph.edgesIntersecting(location.within(configuration.within())))
+            {
+                if (heading == null || edge.heading().isClose(heading, configuration.headingTolerance()))
+                {
+                    if (trigrams != null && !roadNameTrigramIndex.mayMatch(edge, trigrams))
+                    {
+                        continue;
+                    }
+                    var roadNameCloseness = Percent._100;
+                    if (desired != null)
+                    {
+                        roadNameCloseness = Percent._0;
+                        var roadNames = desiredHasDirection
+                                ? roadNameIndex.directionalNames(edge)
+                                : roadNameIndex.standardizedNames(edge);
+                        for (var roadName : roadNames)
+                        {
+                            var score = configuration.roadNameMatcher().matches(roadName, desired);
+                            if (score.isGreaterThan(roadNameCloseness))
+                            {
+                                roadNameCloseness = score;
+                            }
+                        }
+                    }
+                    if (desired == null || (roadNameCloseness.isGreaterThan(configuration.roadNameCloseness())
+                            && roadNameCloseness.isGreaterThanOrEqualTo(highestRoadNameCloseness)))
+                    {
+                        highestRoadNameCloseness = roadNameCloseness;
+                        candidates.add(new Candidate(edge, roadNameCloseness, candidates.size(),
+                                lowerBoundInMeters(edge, location)));
+                    }
+                }
+            }
+
+            // then snap them from the nearest bounding box to the farthest, until no remaining candidate can be as
+            // close as the closest snap so far.
+            var snapper = new PolylineSnapper();
+            candidates.sort(Comparator.comparingDouble(candidate -> candidate.lowerBound));
+            var closestDistance = Distance.MAXIMUM;
+            var closestOrder = Integer.MAX_VALUE;
+            Located located = null;
+            for (var candidate : candidates)
+            {
+                if (located != null && candidate.lowerBound > closestDistance.asMeters())
+                {
+                    break;
+                }
+                var snap = snapper.snap(candidate.edge, location);
+                var distance = snap.distanceToSource();
+                if (distance.isLessThan(closestDistance)
+                        || (!closestDistance.isLessThan(distance) && candidate.order < closestOrder))
+                {
+                    closestDistance = distance;
+                    closestOrder = candidate.order;
+                    located = new Located(candidate.edge, snap, candidate.roadNameCloseness);
+                }
+            }
+            return located;
+        }
+
+        private static double lowerBoundInMeters(Edge edge, Location location)
+        {
+            var bounds = edge.bounds();
+            var latitude = location.latitudeInDegrees();
+            var longitude = location.longitudeInDegrees();
+            var nearestLatitude = Math.max(bounds.bottomLeft().latitudeInDegrees(),
+                    Math.min(bounds.topRight().latitudeInDegrees(), latitude));
+            var nearestLongitude = Math.max(bounds.bottomLeft().longitudeInDegrees(),
+                    Math.min(bounds.topRight().longitudeInDegrees(), longitude));
+            if (nearestLatitude == latitude && nearestLongitude == longitude)
+            {
+                return 0;
+            }
+            return location.distanceTo(Location.degrees(nearestLatitude, nearestLongitude)).asMeters()
+                    * LOWER_BOUND_SLACK;
+        }
+    }
+
+    /**
+     * The geocoder and requests
+     */
+    @State(Scope.Thread)
+    public static class Geocoder
+    {
+        /** The code path to measure */
+        @Param({ "LEGACY", "FRESH_CONTEXT", "REUSED_CONTEXT" })
+        public Path path;
+
+        private ReverseGeocoder geocoder;
+
+        private LegacyGeocoder legacy;
+
+        private List<ReverseGeocoder.Request> located;
+
+        private List<ReverseGeocoder.Request> named;
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            var grid = new SyntheticGraph(100, 100, 100);
+            var graph = grid.graph();
+
+            // The road name index and bounded matcher keep name matching from allocating
+            var configuration = new ReverseGeocoder.Configuration();
+            configuration.within(Distance.meters(100));
+            configuration.roadNameCloseness(Percent.percent(70));
+            configuration.roadNameMatcher(new BoundedRoadNameMatcher(configuration.roadNameCloseness()));
+            var roadNameIndex = new RoadNameIndex(graph, null);
+            geocoder = new ReverseGeocoder(graph, configuration, roadNameIndex);
+            legacy = new LegacyGeocoder(graph, configuration, roadNameIndex);
+
+            located = grid.requests(REQUESTS, 1, false);
+            named = grid.requests(REQUESTS, 2, true);
+        }
+
+        Object locate(List<ReverseGeocoder.Request> requests)
+        {
+            var request = requests.get(next);
+            next = (next + 1) % requests.size();
+            switch (path)
+            {
+                case LEGACY:
+                    return legacy.locate(request);
+
+                case FRESH_CONTEXT:
+                    return geocoder.locate(request, geocoder.newContext());
+
+                default:
+                    return geocoder.locate(request);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object locate(Geocoder geocoder)
+    {
+        return geocoder.locate(geocoder.located);
+    }
+
+    @Benchmark
+    public Object locateWithRoadNameAndHeading(Geocoder geocoder)
+    {
+        return geocoder.locate(geocoder.named);
+    }
+}
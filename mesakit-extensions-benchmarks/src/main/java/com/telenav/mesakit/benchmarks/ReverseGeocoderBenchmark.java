@@ -0,0 +1,182 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks {@link ReverseGeocoder#locate(ReverseGeocoder.Request)} against a {@link SyntheticGraph}, for requests
+ * with only a location and for requests that also have a road name and heading. Each case is measured on one thread
+ * and on as many threads as there are processors, all sharing one geocoder.
+ * <p>
+ * The grid is either urban, with blocks 50 meters apart so that a search finds dozens of candidate edges, or rural,
+ * with roads 800 meters apart so that a search finds at most a few. The road name index and the road name trigram
+ * filter are separate parameters, so the gain of each can be seen on its own. The trigram filter needs the index, so
+ * with no index the two trigram filter settings measure the same thing.
+ *
+ * @author jonathanl (shibo)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReverseGeocoderBenchmark
+{
+    /** The number of requests cycled through by each benchmark */
+    private static final int REQUESTS = 4_096;
+
+    /**
+     * How densely roads are packed in the synthetic grid
+     */
+    public enum Density
+    {
+        /** City blocks, with many edges within the search distance of any point */
+        URBAN(50),
+
+        /** Country roads, with few or no edges within the search distance of a point */
+        RURAL(800);
+
+        /** The distance between neighboring intersections */
+        private final double spacingInMeters;
+
+        Density(double spacingInMeters)
+        {
+            this.spacingInMeters = spacingInMeters;
+        }
+    }
+
+    /**
+     * The geocoder and requests, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Geocoder
+    {
+        /** The number of streets and of avenues in the grid */
+        @Param({ "100" })
+        public int gridSize;
+
+        /** How densely the grid's roads are packed */
+        @Param({ "URBAN", "RURAL" })
+        public Density density;
+
+        /** True to geocode with a road name index */
+        @Param({ "false", "true" })
+        public boolean roadNameIndex;
+
+        /** True to skip edges whose names share too few trigrams with the desired name, if there's a road name index */
+        @Param({ "false", "true" })
+        public boolean roadNameTrigramFilter;
+
+        private final AtomicInteger threads = new AtomicInteger();
+
+        private ReverseGeocoder geocoder;
+
+        private List<ReverseGeocoder.Request> located;
+
+        private List<ReverseGeocoder.Request> named;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            var grid = new SyntheticGraph(gridSize, gridSize, density.spacingInMeters);
+            var graph = grid.graph();
+
+            var configuration = new ReverseGeocoder.Configuration();
+            configuration.within(Distance.meters(200));
+            configuration.roadNameCloseness(Percent.percent(70));
+            configuration.roadNameTrigramFilter(roadNameTrigramFilter);
+            geocoder = new ReverseGeocoder(graph, configuration, roadNameIndex ? new RoadNameIndex(graph, null) : null);
+
+            located = grid.requests(REQUESTS, 1, false);
+            named = grid.requests(REQUESTS, 2, true);
+        }
+    }
+
+    /**
+     * Each thread's position in the requests. Threads start at different offsets so that they don't visit the same
+     * part of the graph in lockstep.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup(Geocoder geocoder)
+        {
+            next = geocoder.threads.getAndIncrement() * 997 % REQUESTS;
+        }
+
+        ReverseGeocoder.Request next(List<ReverseGeocoder.Request> requests)
+        {
+            var request = requests.get(next);
+            next = (next + 1) % requests.size();
+            return request;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ReverseGeocoder.Response locate(Geocoder geocoder, Cursor cursor)
+    {
+        return geocoder.geocoder.locate(cursor.next(geocoder.located));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ReverseGeocoder.Response locateMultiThreaded(Geocoder geocoder, Cursor cursor)
+    {
+        return geocoder.geocoder.locate(cursor.next(geocoder.located));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ReverseGeocoder.Response locateWithRoadNameAndHeading(Geocoder geocoder, Cursor cursor)
+    {
+        return geocoder.geocoder.locate(cursor.next(geocoder.named));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ReverseGeocoder.Response locateWithRoadNameAndHeadingMultiThreaded(Geocoder geocoder, Cursor cursor)
+    {
+        return geocoder.geocoder.locate(cursor.next(geocoder.named));
+    }
+}
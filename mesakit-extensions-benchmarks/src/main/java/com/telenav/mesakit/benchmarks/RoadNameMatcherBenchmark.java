@@ -0,0 +1,154 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.geocoding.reverse.matching.BoundedRoadNameMatcher;
+import com.telenav.mesakit.graph.geocoding.reverse.matching.FuzzyRoadNameMatcher;
+import com.telenav.mesakit.map.road.model.RoadName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link FuzzyRoadNameMatcher#matches(RoadName, RoadName)} on one thread and on as many threads as there
+ * are processors. {@link BoundedRoadNameMatcher} is measured on the same pairs of names for comparison.
+ * <p>
+ * The desired names are the names of streets and avenues in a {@link SyntheticGraph}. A quarter of them are paired
+ * with themselves, a quarter with a misspelling of themselves and the rest with a different road in the grid, which
+ * is roughly the mix of near and far names that a reverse geocoder sees among candidate edges.
+ *
+ * @author jonathanl (shibo)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoadNameMatcherBenchmark
+{
+    /** The number of name pairs cycled through by each benchmark */
+    private static final int PAIRS = 1_024;
+
+    /**
+     * The matchers and pairs of names, shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Names
+    {
+        private final FuzzyRoadNameMatcher fuzzy = new FuzzyRoadNameMatcher();
+
+        private final BoundedRoadNameMatcher bounded = new BoundedRoadNameMatcher(Percent.percent(70));
+
+        private final RoadName[] candidates = new RoadName[PAIRS];
+
+        private final RoadName[] desired = new RoadName[PAIRS];
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            var grid = new SyntheticGraph(64, 64, 100);
+            var random = new Random(3);
+            for (var index = 0; index < PAIRS; index++)
+            {
+                var road = random.nextInt(64);
+                var roadName = random.nextBoolean() ? grid.street(road) : grid.avenue(road);
+                desired[index] = roadName;
+                switch (index % 4)
+                {
+                    case 0:
+                        // Pair the desired name with itself,
+                        candidates[index] = roadName;
+                        break;
+
+                    case 1:
+                        // with a misspelling of itself,
+                        candidates[index] = SyntheticGraph.misspelled(roadName, random);
+                        break;
+
+                    default:
+                        // or with some other road in the grid.
+                        var other = (road + 1 + random.nextInt(63)) % 64;
+                        candidates[index] = random.nextBoolean() ? grid.street(other) : grid.avenue(other);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Each thread's position in the pairs of names
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next;
+
+        int next()
+        {
+            var index = next;
+            next = (next + 1) % PAIRS;
+            return index;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Percent bounded(Names names, Cursor cursor)
+    {
+        var index = cursor.next();
+        return names.bounded.matches(names.candidates[index], names.desired[index]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Percent boundedMultiThreaded(Names names, Cursor cursor)
+    {
+        var index = cursor.next();
+        return names.bounded.matches(names.candidates[index], names.desired[index]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Percent fuzzy(Names names, Cursor cursor)
+    {
+        var index = cursor.next();
+        return names.fuzzy.matches(names.candidates[index], names.desired[index]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Percent fuzzyMultiThreaded(Names names, Cursor cursor)
+    {
+        var index = cursor.next();
+        return names.fuzzy.matches(names.candidates[index], names.desired[index]);
+    }
+}
@@ -0,0 +1,156 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.telenav.mesakit.graph.geocoding.reverse.snapping.SegmentDistanceKernel;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.geography.shape.polyline.Polyline;
+import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares measuring the distance from a point to a long edge shape with {@link PolylineSnapper} and with the
+ * {@link SegmentDistanceKernel}, on one thread. Shapes wander like rural roads, with shape points every 20 to 60
+ * meters, and the points measured from fall within 100 meters of the shape.
+ * <p>
+ * The kernel is measured on shape points that are already in primitive arrays, as they are in an
+ * {@link com.telenav.mesakit.graph.geocoding.reverse.indexing.EdgeShapeIndex}, and on a polyline that it has to copy
+ * points out of first.
+ *
+ * @author jonathanl (shibo)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class SegmentDistanceBenchmark
+{
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_319.49;
+
+    /** The number of points cycled through by each benchmark */
+    private static final int POINTS = 1_024;
+
+    /**
+     * The shape and the points to measure from
+     */
+    @State(Scope.Thread)
+    public static class Shape
+    {
+        /** The number of points in the shape */
+        @Param({ "16", "256", "4096" })
+        public int shapePoints;
+
+        private Polyline polyline;
+
+        private double[] latitudes;
+
+        private double[] longitudes;
+
+        private final Location[] locations = new Location[POINTS];
+
+        private final PolylineSnapper snapper = new PolylineSnapper();
+
+        private final SegmentDistanceKernel kernel = new SegmentDistanceKernel();
+
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            var random = new Random(shapePoints);
+            latitudes = new double[shapePoints];
+            longitudes = new double[shapePoints];
+            var shape = new ArrayList<Location>(shapePoints);
+
+            // Wander from a starting point, turning a little at each shape point
+            var latitude = 45.0;
+            var longitude = -100.0;
+            var heading = random.nextDouble() * 2 * Math.PI;
+            var scale = Math.cos(Math.toRadians(latitude));
+            for (var at = 0; at < shapePoints; at++)
+            {
+                latitudes[at] = latitude;
+                longitudes[at] = longitude;
+                shape.add(Location.degrees(latitude, longitude));
+
+                var step = (20 + random.nextDouble() * 40) / METERS_PER_DEGREE;
+                heading += (random.nextDouble() - 0.5) * 0.5;
+                latitude += Math.cos(heading) * step;
+                longitude += Math.sin(heading) * step / scale;
+            }
+            polyline = Polyline.fromLocations(shape);
+
+            // then pick points near random shape points.
+            for (var index = 0; index < POINTS; index++)
+            {
+                var at = random.nextInt(shapePoints);
+                var offset = (random.nextDouble() * 200 - 100) / METERS_PER_DEGREE;
+                locations[index] = Location.degrees(latitudes[at] + offset,
+                        longitudes[at] + (random.nextDouble() * 200 - 100) / METERS_PER_DEGREE / scale);
+            }
+        }
+
+        Location next()
+        {
+            var location = locations[next];
+            next = (next + 1) % POINTS;
+            return location;
+        }
+    }
+
+    @Benchmark
+    public double kernel(Shape shape)
+    {
+        var location = shape.next();
+        return shape.kernel.distance(shape.latitudes, shape.longitudes, 0, shape.shapePoints,
+                location.latitudeInDegrees(), location.longitudeInDegrees());
+    }
+
+    @Benchmark
+    public double kernelFromPolyline(Shape shape)
+    {
+        var location = shape.next();
+        return shape.kernel.distance(shape.polyline, location.latitudeInDegrees(), location.longitudeInDegrees());
+    }
+
+    @Benchmark
+    public double polylineSnapper(Shape shape)
+    {
+        return shape.snapper.snap(shape.polyline, shape.next()).distanceToSource().asMeters();
+    }
+}
@@ -0,0 +1,278 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.benchmarks;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.GraphProject;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.io.load.SmartGraphLoader;
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfNode;
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
+import com.telenav.mesakit.map.data.formats.pbf.processing.writers.PbfWriter;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.measurements.geographic.Heading;
+import com.telenav.mesakit.map.road.model.RoadName;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static com.telenav.kivakit.core.project.Project.resolveProject;
+
+/**
+ * A synthetic street grid for benchmarking. Streets run east-west along each row of the grid and avenues run
+ * north-south along each column, with intersections a fixed distance apart. The grid is written to a temporary PBF file
+ * and loaded as a graph the first time {@link #graph()} is called, so a benchmark gets the same graph on every run
+ * without needing map data.
+ * <p>
+ * Requests generated by {@link #requests(int, long, boolean)} are deterministic for a given seed. Each falls at a
+ * random point inside the grid, and can carry the heading and name of the nearest street or avenue. One in four of the
+ * names has two adjacent letters swapped, so that road names have to be matched fuzzily.
+ *
+ * @author jonathanl (shibo)
+ */
+public class SyntheticGraph
+{
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_319.49;
+
+    /** The bottom left corner of the grid */
+    private static final double ORIGIN_LATITUDE = 37.0;
+
+    private static final double ORIGIN_LONGITUDE = -122.0;
+
+    private static final String[] NAMES =
+            {
+                    "Main", "Oak", "Pine", "Maple", "Cedar", "Elm", "Washington", "Lake", "Hill", "Park", "Lincoln",
+                    "Jackson", "Franklin", "Madison", "Ridge", "Sunset", "Highland", "Walnut", "Church", "Spring"
+            };
+
+    private final int rows;
+
+    private final int columns;
+
+    private final double latitudeStep;
+
+    private final double longitudeStep;
+
+    private Graph graph;
+
+    /**
+     * @param rows The number of east-west streets
+     * @param columns The number of north-south avenues
+     * @param spacingInMeters The distance between neighboring intersections
+     */
+    public SyntheticGraph(int rows, int columns, double spacingInMeters)
+    {
+        this.rows = rows;
+        this.columns = columns;
+        latitudeStep = spacingInMeters / METERS_PER_DEGREE;
+        longitudeStep = latitudeStep / Math.cos(Math.toRadians(ORIGIN_LATITUDE));
+    }
+
+    /**
+     * Returns the name of the avenue along the given column
+     */
+    public RoadName avenue(int column)
+    {
+        return RoadName.forName(name(column) + " Avenue");
+    }
+
+    /**
+     * Returns the grid as a graph, loading it if it hasn't been loaded yet
+     */
+    public synchronized Graph graph()
+    {
+        if (graph == null)
+        {
+            var listener = Listener.consoleListener();
+            listener.listenTo(resolveProject(GraphProject.class)).initialize();
+            graph = new SmartGraphLoader(write(listener)).load(listener);
+        }
+        return graph;
+    }
+
+    /**
+     * Returns the location of the given fractional row and column of the grid
+     */
+    public Location location(double row, double column)
+    {
+        return Location.degrees(ORIGIN_LATITUDE + row * latitudeStep, ORIGIN_LONGITUDE + column * longitudeStep);
+    }
+
+    /**
+     * Returns the given number of requests at random points inside the grid
+     *
+     * @param count The number of requests
+     * @param seed The seed for the random points, so that the same requests are returned for the same seed
+     * @param roadNameAndHeading True to give each request the heading and name of the nearest road
+     */
+    public List<ReverseGeocoder.Request> requests(int count, long seed, boolean roadNameAndHeading)
+    {
+        var random = new Random(seed);
+        var requests = new ArrayList<ReverseGeocoder.Request>(count);
+        for (var index = 0; index < count; index++)
+        {
+            var row = random.nextDouble() * (rows - 1);
+            var column = random.nextDouble() * (columns - 1);
+
+            var request = new ReverseGeocoder.Request();
+            request.location(location(row, column));
+            if (roadNameAndHeading)
+            {
+                // If the point is nearer to a street than an avenue,
+                var nearestRow = (int) Math.round(row);
+                var nearestColumn = (int) Math.round(column);
+                var reverse = random.nextBoolean();
+                RoadName roadName;
+                if (Math.abs(row - nearestRow) < Math.abs(column - nearestColumn))
+                {
+                    // head east or west along the street,
+                    request.heading(Heading.degrees(reverse ? 270 : 90));
+                    roadName = street(nearestRow);
+                }
+                else
+                {
+                    // otherwise head north or south along the avenue.
+                    request.heading(Heading.degrees(reverse ? 180 : 0));
+                    roadName = avenue(nearestColumn);
+                }
+                request.roadName(random.nextInt(4) == 0 ? misspelled(roadName, random) : roadName);
+            }
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    /**
+     * Returns the name of the street along the given row
+     */
+    public RoadName street(int row)
+    {
+        return RoadName.forName(name(row) + " Street");
+    }
+
+    private static CommonEntityData entity(long identifier, List<Tag> tags)
+    {
+        return new CommonEntityData(identifier, 1, new Date(0), OsmUser.NONE, 1, tags);
+    }
+
+    /**
+     * Returns the given road name with two random adjacent letters swapped
+     */
+    static RoadName misspelled(RoadName roadName, Random random)
+    {
+        var characters = roadName.name().toCharArray();
+        var at = random.nextInt(characters.length - 1);
+        var swap = characters[at];
+        characters[at] = characters[at + 1];
+        characters[at + 1] = swap;
+        return RoadName.forName(new String(characters));
+    }
+
+    private static String name(int index)
+    {
+        var round = index / NAMES.length;
+        return NAMES[index % NAMES.length] + (round == 0 ? "" : " " + round);
+    }
+
+    private long node(int row, int column)
+    {
+        return (long) row * columns + column + 1;
+    }
+
+    private Way way(long identifier, List<WayNode> nodes, String highway, RoadName name)
+    {
+        var tags = List.of(new Tag("highway", highway), new Tag("name", name.name()));
+        return new Way(entity(identifier, tags), nodes);
+    }
+
+    /**
+     * Writes the grid to a temporary PBF file
+     */
+    private File write(Listener listener)
+    {
+        java.io.File pbf;
+        try
+        {
+            pbf = Files.createTempFile("mesakit-synthetic-grid-", ".osm.pbf").toFile();
+            pbf.deleteOnExit();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        var file = File.file(listener, pbf);
+
+        var writer = new PbfWriter(file, false);
+        var topRight = location(rows - 1, columns - 1);
+        writer.write(new Bound(topRight.longitudeInDegrees(), ORIGIN_LONGITUDE, topRight.latitudeInDegrees(),
+                ORIGIN_LATITUDE, "mesakit"));
+
+        // Write the intersections,
+        for (var row = 0; row < rows; row++)
+        {
+            for (var column = 0; column < columns; column++)
+            {
+                var location = location(row, column);
+                writer.write(new PbfNode(new Node(entity(node(row, column), List.of()),
+                        location.latitudeInDegrees(), location.longitudeInDegrees())));
+            }
+        }
+
+        // the streets along each row
+        var identifier = 1L;
+        for (var row = 0; row < rows; row++)
+        {
+            var nodes = new ArrayList<WayNode>();
+            for (var column = 0; column < columns; column++)
+            {
+                nodes.add(new WayNode(node(row, column)));
+            }
+            writer.write(new PbfWay(way(identifier++, nodes, "residential", street(row))));
+        }
+
+        // and the avenues along each column.
+        for (var column = 0; column < columns; column++)
+        {
+            var nodes = new ArrayList<WayNode>();
+            for (var row = 0; row < rows; row++)
+            {
+                nodes.add(new WayNode(node(row, column)));
+            }
+            writer.write(new PbfWay(way(identifier++, nodes, "secondary", avenue(column))));
+        }
+
+        writer.close();
+        return file;
+    }
+}
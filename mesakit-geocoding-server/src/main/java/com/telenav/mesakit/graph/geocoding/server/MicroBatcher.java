@@ -0,0 +1,277 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.server;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.statistics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects reverse geocoding requests from many threads into batches, which are located together with
+ * {@link ReverseGeocoder#locateAll(List)} so that they are spatially sorted and spread over the geocoder's executor.
+ * <p>
+ * A single batching thread waits for a request, then keeps collecting requests until the batch is full or the oldest
+ * request has waited for the maximum delay. While a batch is being located, new requests queue up to form the next
+ * batch, so batches grow with load and a lone request is delayed by no more than the maximum delay. A request whose
+ * response is cancelled before its batch is located is left out of the batch.
+ *
+ * @author jonathanl (shibo)
+ */
+public class MicroBatcher extends BaseRepeater
+{
+    /**
+     * A request waiting to be located
+     */
+    private static class Pending
+    {
+        private final ReverseGeocoder.Request request;
+
+        private final CompletableFuture<ReverseGeocoder.Response> response = new CompletableFuture<>();
+
+        Pending(ReverseGeocoder.Request request)
+        {
+            this.request = request;
+        }
+    }
+
+    private final ReverseGeocoder geocoder;
+
+    private final int maximumBatchSize;
+
+    private final long maximumDelayNanoseconds;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder batched = new LongAdder();
+
+    private final LatencyHistogram batchLatencies = new LatencyHistogram();
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    /**
+     * @param geocoder The geocoder to locate batches with
+     * @param maximumBatchSize The largest number of requests to locate together
+     * @param maximumDelay The longest time to wait for a batch to fill
+     */
+    public MicroBatcher(ReverseGeocoder geocoder, Count maximumBatchSize, Duration maximumDelay)
+    {
+        this.geocoder = geocoder;
+        this.maximumBatchSize = Math.max(1, maximumBatchSize.asInt());
+        this.maximumDelayNanoseconds = (long) (maximumDelay.asMilliseconds() * 1_000_000);
+    }
+
+    /**
+     * Returns the latencies of locating batches
+     */
+    public LatencyHistogram batchLatencies()
+    {
+        return batchLatencies;
+    }
+
+    /**
+     * Returns the number of batches located
+     */
+    public long batches()
+    {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the total number of requests in all batches located
+     */
+    public long batched()
+    {
+        return batched.sum();
+    }
+
+    /**
+     * Adds the given request to the next batch
+     *
+     * @return The response, which completes with null if no edge was found
+     */
+    public CompletableFuture<ReverseGeocoder.Response> locate(ReverseGeocoder.Request request)
+    {
+        var pending = new Pending(request);
+        if (!running)
+        {
+            pending.response.completeExceptionally(new IllegalStateException("Batcher is not running"));
+        }
+        else
+        {
+            queue.add(pending);
+
+            // If the batcher stopped while the request was being added, it may have drained the queue before the
+            // request was in it, so take the request back out and fail it (if the drain got it, it has failed already)
+            if (!running)
+            {
+                queue.remove(pending);
+                pending.response.completeExceptionally(new IllegalStateException("Batcher stopped"));
+            }
+        }
+        return pending.response;
+    }
+
+    /**
+     * Returns the number of requests waiting to be batched
+     */
+    public int queued()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Starts the batching thread
+     */
+    public synchronized void start()
+    {
+        if (!running)
+        {
+            running = true;
+            thread = new Thread(this::run, "MicroBatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the batching thread, failing any requests that haven't been located
+     */
+    public synchronized void stop()
+    {
+        if (running)
+        {
+            running = false;
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            var remaining = new ArrayList<Pending>();
+            queue.drainTo(remaining);
+            for (var pending : remaining)
+            {
+                pending.response.completeExceptionally(new IllegalStateException("Batcher stopped"));
+            }
+        }
+    }
+
+    /**
+     * Locates the requests in the given batch, skipping any whose response has already completed (because the caller
+     * timed out and cancelled it)
+     */
+    private void locate(List<Pending> pendings)
+    {
+        var batch = new ArrayList<Pending>(pendings.size());
+        var requests = new ArrayList<ReverseGeocoder.Request>(pendings.size());
+        for (var pending : pendings)
+        {
+            if (!pending.response.isDone())
+            {
+                batch.add(pending);
+                requests.add(pending.request);
+            }
+        }
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            var started = System.nanoTime();
+            var responses = geocoder.locateAll(requests);
+            batchLatencies.record(System.nanoTime() - started);
+            batches.increment();
+            batched.add(batch.size());
+
+            for (var index = 0; index < batch.size(); index++)
+            {
+                batch.get(index).response.complete(responses.get(index));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            problem(e, "Unable to locate batch of $ requests", batch.size());
+            for (var pending : batch)
+            {
+                pending.response.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void run()
+    {
+        var batch = new ArrayList<Pending>(maximumBatchSize);
+        while (running)
+        {
+            try
+            {
+                // Wait for a request,
+                batch.add(queue.take());
+
+                // then collect more until the batch is full or the first request has waited long enough,
+                var deadline = System.nanoTime() + maximumDelayNanoseconds;
+                while (batch.size() < maximumBatchSize)
+                {
+                    if (queue.drainTo(batch, maximumBatchSize - batch.size()) == 0)
+                    {
+                        var remaining = deadline - System.nanoTime();
+                        var next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null)
+                        {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+
+                // and locate the batch.
+                locate(batch);
+                batch = new ArrayList<>(maximumBatchSize);
+            }
+            catch (InterruptedException e)
+            {
+                // If we were interrupted while collecting a batch, fail it
+                for (var pending : batch)
+                {
+                    pending.response.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+        }
+    }
+}
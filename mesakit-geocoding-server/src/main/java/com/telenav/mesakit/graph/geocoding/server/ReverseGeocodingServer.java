@@ -0,0 +1,447 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.server;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.statistics.LatencyHistogram;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.measurements.geographic.Heading;
+import com.telenav.mesakit.map.road.model.RoadName;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A local HTTP server that keeps a graph resident and reverse geocodes requests against it. The server listens only on
+ * the loopback address, and has two endpoints:
+ *
+ * <ul>
+ *     <li>GET /locate?latitude=...&amp;longitude=...[&amp;heading=...][&amp;roadName=...] - locates the nearest
+ *     appropriate edge, responding with a JSON object holding the edge identifier, snapped location, distance,
+ *     road name closeness and whether the result is partial (see {@link ReverseGeocoder.Response#isPartial()}), or
+ *     404 if no edge was found</li>
+ *     <li>GET /statistics - responds with a JSON object of request, batch and latency counters</li>
+ * </ul>
+ * <p>
+ * Other methods are refused with 405. A request that isn't located within the configured timeout fails with 503, and
+ * its response is cancelled so that it is left out of its batch if the batch hasn't been located yet.
+ * <p>
+ * Concurrent requests are collected into spatially sorted micro-batches by a {@link MicroBatcher}. Request handlers
+ * run on a fixed pool of threads, each of which waits for its request's batch to be located.
+ *
+ * @author jonathanl (shibo)
+ */
+public class ReverseGeocodingServer extends BaseRepeater
+{
+    public static class Configuration
+    {
+        /** The port to listen on */
+        private int port = 8085;
+
+        /** The number of threads handling HTTP requests */
+        private Count threads = Count.count(64);
+
+        /** The largest number of requests located together */
+        private Count maximumBatchSize = Count.count(256);
+
+        /** The longest time a request waits for its batch to fill */
+        private Duration maximumBatchDelay = Duration.milliseconds(2);
+
+        /** The longest time a request waits for its response */
+        private Duration timeout = Duration.seconds(30);
+
+        public Duration maximumBatchDelay()
+        {
+            return maximumBatchDelay;
+        }
+
+        public void maximumBatchDelay(Duration maximumBatchDelay)
+        {
+            this.maximumBatchDelay = maximumBatchDelay;
+        }
+
+        public Count maximumBatchSize()
+        {
+            return maximumBatchSize;
+        }
+
+        public void maximumBatchSize(Count maximumBatchSize)
+        {
+            this.maximumBatchSize = maximumBatchSize;
+        }
+
+        public int port()
+        {
+            return port;
+        }
+
+        public void port(int port)
+        {
+            this.port = port;
+        }
+
+        public Count threads()
+        {
+            return threads;
+        }
+
+        /**
+         * @param threads The number of threads handling HTTP requests. Each thread waits while its request is batched
+         * and located, so this limits the number of requests in flight, and should be well above the number of
+         * processors.
+         */
+        public void threads(Count threads)
+        {
+            this.threads = threads;
+        }
+
+        public Duration timeout()
+        {
+            return timeout;
+        }
+
+        public void timeout(Duration timeout)
+        {
+            this.timeout = timeout;
+        }
+    }
+
+    private final Configuration configuration;
+
+    private final MicroBatcher batcher;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder located = new LongAdder();
+
+    private final LongAdder notFound = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private long started;
+
+    public ReverseGeocodingServer(ReverseGeocoder geocoder, Configuration configuration)
+    {
+        this.configuration = configuration;
+        batcher = listenTo(new MicroBatcher(geocoder, configuration.maximumBatchSize(),
+                configuration.maximumBatchDelay()));
+    }
+
+    /**
+     * Starts serving requests
+     *
+     * @return True if the server started
+     */
+    public synchronized boolean start()
+    {
+        try
+        {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), configuration.port()),
+                    0);
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to listen on port $", configuration.port());
+            return false;
+        }
+        executor = Threads.threadPool("GeocodingServer", configuration.threads());
+        server.setExecutor(executor);
+        server.createContext("/locate", this::onLocate);
+        server.createContext("/statistics", this::onStatistics);
+        batcher.start();
+        started = System.nanoTime();
+        server.start();
+        information("Reverse geocoding server listening on http://localhost:$", configuration.port());
+        return true;
+    }
+
+    /**
+     * Returns the current counters as a JSON object
+     */
+    public JsonObject statistics()
+    {
+        var seconds = (System.nanoTime() - started) / 1E9;
+        var json = new JsonObject();
+        json.addProperty("requests", requests.sum());
+        json.addProperty("located", located.sum());
+        json.addProperty("notFound", notFound.sum());
+        json.addProperty("failed", failed.sum());
+        json.addProperty("queued", batcher.queued());
+        json.addProperty("batches", batcher.batches());
+        json.addProperty("meanBatchSize", batcher.batches() == 0 ? 0 : (double) batcher.batched() / batcher.batches());
+        json.addProperty("requestsPerSecond", seconds > 0 ? requests.sum() / seconds : 0);
+        json.add("latencyMilliseconds", percentiles(latencies));
+        json.add("batchLatencyMilliseconds", percentiles(batcher.batchLatencies()));
+        return json;
+    }
+
+    /**
+     * Stops serving requests
+     */
+    public synchronized void stop()
+    {
+        if (server != null)
+        {
+            server.stop(1);
+            batcher.stop();
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    private void onLocate(HttpExchange exchange) throws IOException
+    {
+        if (!isGet(exchange))
+        {
+            return;
+        }
+        var start = System.nanoTime();
+        requests.increment();
+        CompletableFuture<ReverseGeocoder.Response> future = null;
+        try
+        {
+            ReverseGeocoder.Request request;
+            try
+            {
+                request = request(parameters(exchange.getRequestURI().getRawQuery()));
+            }
+            catch (IllegalArgumentException e)
+            {
+                failed.increment();
+                respond(exchange, 400, error(e.getMessage()));
+                return;
+            }
+
+            future = batcher.locate(request);
+            var response = future.get((long) configuration.timeout().asMilliseconds(), TimeUnit.MILLISECONDS);
+            if (response == null)
+            {
+                notFound.increment();
+                respond(exchange, 404, error("no edge found"));
+                return;
+            }
+
+            var snap = response.snap();
+            var json = new JsonObject();
+            json.addProperty("edge", response.edge().identifierAsLong());
+            json.addProperty("snappedLatitude", snap.latitudeInDegrees());
+            json.addProperty("snappedLongitude", snap.longitudeInDegrees());
+            json.addProperty("distanceMeters", snap.distanceToSource().asMeters());
+            json.addProperty("closeness", response.percentage().value());
+            json.addProperty("partial", response.isPartial());
+            located.increment();
+            respond(exchange, 200, json);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            failed.increment();
+            respond(exchange, 503, error("interrupted"));
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(false);
+            failed.increment();
+            respond(exchange, 503, error("timed out"));
+        }
+        catch (ExecutionException e)
+        {
+            failed.increment();
+            respond(exchange, 503, error("unable to locate: " + e.getMessage()));
+        }
+        finally
+        {
+            latencies.record(System.nanoTime() - start);
+            exchange.close();
+        }
+    }
+
+    private void onStatistics(HttpExchange exchange) throws IOException
+    {
+        if (!isGet(exchange))
+        {
+            return;
+        }
+        try
+        {
+            respond(exchange, 200, statistics());
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private static JsonObject error(String message)
+    {
+        var json = new JsonObject();
+        json.addProperty("error", message);
+        return json;
+    }
+
+    /**
+     * Returns true if the given exchange is a GET request, otherwise responds with 405 and closes the exchange
+     */
+    private static boolean isGet(HttpExchange exchange) throws IOException
+    {
+        if ("GET".equals(exchange.getRequestMethod()))
+        {
+            return true;
+        }
+        try
+        {
+            exchange.getResponseHeaders().set("Allow", "GET");
+            respond(exchange, 405, error("method " + exchange.getRequestMethod() + " is not allowed"));
+            return false;
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parameters(String query)
+    {
+        var parameters = new HashMap<String, String>();
+        if (query != null)
+        {
+            for (var pair : query.split("&"))
+            {
+                var equals = pair.indexOf('=');
+                if (equals > 0)
+                {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static JsonObject percentiles(LatencyHistogram histogram)
+    {
+        var json = new JsonObject();
+        json.addProperty("count", histogram.count());
+        json.addProperty("mean", histogram.mean().asMilliseconds());
+        json.addProperty("p50", histogram.percentile(50).asMilliseconds());
+        json.addProperty("p90", histogram.percentile(90).asMilliseconds());
+        json.addProperty("p99", histogram.percentile(99).asMilliseconds());
+        json.addProperty("p999", histogram.percentile(99.9).asMilliseconds());
+        return json;
+    }
+
+    /**
+     * Returns the number in the given parameter
+     *
+     * @throws IllegalArgumentException If the parameter is not a number
+     */
+    private static double number(String name, String value)
+    {
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(name + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Returns the request in the given query parameters
+     *
+     * @throws IllegalArgumentException If the location is missing or a parameter is invalid
+     */
+    private static ReverseGeocoder.Request request(Map<String, String> parameters)
+    {
+        var latitude = parameters.get("latitude");
+        var longitude = parameters.get("longitude");
+        if (latitude == null || longitude == null)
+        {
+            throw new IllegalArgumentException("latitude and longitude are required");
+        }
+        var request = new ReverseGeocoder.Request();
+        var latitudeInDegrees = number("latitude", latitude);
+        var longitudeInDegrees = number("longitude", longitude);
+        try
+        {
+            request.location(Location.degrees(latitudeInDegrees, longitudeInDegrees));
+        }
+        catch (RuntimeException e)
+        {
+            throw new IllegalArgumentException("invalid location " + latitude + "," + longitude + ": "
+                    + e.getMessage());
+        }
+        var heading = parameters.get("heading");
+        if (heading != null && !heading.isBlank())
+        {
+            var headingInDegrees = number("heading", heading);
+            try
+            {
+                request.heading(Heading.degrees(headingInDegrees));
+            }
+            catch (RuntimeException e)
+            {
+                throw new IllegalArgumentException("invalid heading " + heading + ": " + e.getMessage());
+            }
+        }
+        var roadName = parameters.get("roadName");
+        if (roadName != null && !roadName.isBlank())
+        {
+            request.roadName(RoadName.forName(roadName));
+        }
+        return request;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject json) throws IOException
+    {
+        var body = json.toString().getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (var out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+}
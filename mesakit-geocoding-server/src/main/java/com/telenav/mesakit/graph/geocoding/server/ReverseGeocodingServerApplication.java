@@ -0,0 +1,151 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.server;
+
+import com.telenav.kivakit.application.Application;
+import com.telenav.kivakit.commandline.SwitchParser;
+import com.telenav.kivakit.core.collections.set.ObjectSet;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.GraphProject;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.io.load.SmartGraphLoader;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+
+import java.util.concurrent.CountDownLatch;
+
+import static com.telenav.kivakit.commandline.SwitchParsers.countSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.percentSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.threadCountSwitchParser;
+import static com.telenav.kivakit.core.collections.set.ObjectSet.set;
+import static com.telenav.mesakit.graph.io.load.SmartGraphLoader.graphSwitchParser;
+import static com.telenav.mesakit.map.measurements.geographic.Distance.distanceSwitchParser;
+
+/**
+ * Loads a graph and serves reverse geocoding requests against it on the loopback address until the process is
+ * stopped. See {@link ReverseGeocodingServer} for the endpoints.
+ *
+ * @author jonathanl (shibo)
+ */
+public class ReverseGeocodingServerApplication extends Application
+{
+    public static void main(String[] arguments)
+    {
+        new ReverseGeocodingServerApplication().run(arguments);
+    }
+
+    private final SwitchParser<Count> BATCH_DELAY =
+        countSwitchParser(this, "batch-delay", "The longest time in milliseconds a request waits for its batch to fill")
+            .optional()
+            .defaultValue(Count.count(2))
+            .build();
+
+    private final SwitchParser<Count> BATCH_SIZE =
+        countSwitchParser(this, "batch-size", "The largest number of requests located together")
+            .optional()
+            .defaultValue(Count.count(256))
+            .build();
+
+    private final SwitchParser<SmartGraphLoader> GRAPH =
+        graphSwitchParser(this, "graph", "The graph to geocode against")
+            .required()
+            .build();
+
+    private final SwitchParser<Count> PORT =
+        countSwitchParser(this, "port", "The local port to listen on")
+            .optional()
+            .defaultValue(Count.count(8085))
+            .build();
+
+    private final SwitchParser<Percent> ROAD_NAME_CLOSENESS =
+        percentSwitchParser(this, "road-name-closeness", "The closeness that road names must exceed to match")
+            .optional()
+            .defaultValue(Percent.percent(70))
+            .build();
+
+    private final SwitchParser<Count> THREADS = threadCountSwitchParser(this, Count.count(64));
+
+    private final SwitchParser<Distance> WITHIN =
+        distanceSwitchParser(this, "within", "The distance to search for edges around each point")
+            .optional()
+            .defaultValue(Distance.meters(100))
+            .build();
+
+    protected ReverseGeocodingServerApplication()
+    {
+    }
+
+    @Override
+    protected void onInitialize()
+    {
+        addProject(GraphProject.class);
+    }
+
+    @Override
+    protected void onRun()
+    {
+        var graph = get(GRAPH).load();
+
+        var geocoderConfiguration = new ReverseGeocoder.Configuration();
+        geocoderConfiguration.within(get(WITHIN));
+        geocoderConfiguration.roadNameCloseness(get(ROAD_NAME_CLOSENESS));
+        var geocoder = new ReverseGeocoder(graph, geocoderConfiguration);
+
+        var configuration = new ReverseGeocodingServer.Configuration();
+        configuration.port(get(PORT).asInt());
+        configuration.threads(get(THREADS));
+        configuration.maximumBatchSize(get(BATCH_SIZE));
+        configuration.maximumBatchDelay(Duration.milliseconds(get(BATCH_DELAY).asInt()));
+
+        var server = listenTo(new ReverseGeocodingServer(geocoder, configuration));
+        if (server.start())
+        {
+            // Serve until the process is stopped
+            var stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+            {
+                server.stop();
+                stopped.countDown();
+            }));
+            try
+            {
+                stopped.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
+    {
+        return set(
+            GRAPH,
+            PORT,
+            WITHIN,
+            ROAD_NAME_CLOSENESS,
+            THREADS,
+            BATCH_SIZE,
+            BATCH_DELAY,
+            QUIET);
+    }
+}
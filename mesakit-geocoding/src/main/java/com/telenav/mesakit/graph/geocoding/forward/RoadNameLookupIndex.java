@@ -0,0 +1,455 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.forward;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.GraphIdentity;
+import com.telenav.mesakit.graph.identifiers.EdgeIdentifier;
+import com.telenav.mesakit.map.road.model.RoadName;
+import com.telenav.mesakit.map.road.name.standardizer.RoadNameStandardizer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Maps the standardized base names of a graph's roads to the identifiers of the edges with those names, so that the
+ * edges of a road can be found without looking at every edge in the graph. Names are matched without regard to case,
+ * as the JOSM plugin's road name search does.
+ * <p>
+ * {@link #edgeIdentifiers(RoadName)} returns the edges with the base name of a road name, and
+ * {@link #edgeIdentifiersWithPrefix(String)} returns the edges whose base names start with a prefix. Identifiers are
+ * returned in increasing order without duplicates, and {@link #edges(long[])} turns them into edges.
+ * <p>
+ * The index is built once for a graph with {@link #RoadNameLookupIndex(Graph, RoadNameStandardizer)}, which
+ * standardizes names in parallel, so the standardizer must be thread-safe. The index is held in a single buffer laid
+ * out as:
+ *
+ * <ul>
+ *     <li>a header with the number of names, the sizes of the sections that follow and the position of the first</li>
+ *     <li>the {@link GraphIdentity} of the graph, which must match the graph that the index is loaded for</li>
+ *     <li>the offset of each name in the name section, in sorted order</li>
+ *     <li>the offset of each name's identifiers in the identifier section</li>
+ *     <li>the UTF-8 bytes of the names</li>
+ *     <li>the sorted edge identifiers of each name</li>
+ * </ul>
+ * <p>
+ * The buffer is written as it is by {@link #save(File)}, and {@link #load(Listener, Graph, File, RoadNameStandardizer)}
+ * memory-maps the file instead of reading it, so a loaded index takes no heap and is ready at once. Names are found by
+ * binary search on the sorted names, so a lookup reads a few dozen names and one list of identifiers. The file next to
+ * a graph archive is given by {@link #sidecarFile(Listener, File)}. An index must be smaller than 2 gigabytes.
+ *
+ * @author jonathanl (shibo)
+ */
+public class RoadNameLookupIndex extends BaseRepeater
+{
+    /** The extension of a road name lookup index file saved next to a graph archive */
+    public static final String EXTENSION = ".road-name-lookup";
+
+    private static final int MAGIC = 0x524E4C58;
+
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the header: magic, version, name count, name bytes, identifier count and the position of the first
+     * section, which follows the graph identity
+     */
+    private static final int HEADER = 4 + 4 + 4 + 4 + 4 + 4;
+
+    private static final long[] NONE = new long[0];
+
+    /**
+     * Memory-maps the road name lookup index for the given graph from the given file
+     *
+     * @param listener The listener to report problems to
+     * @param graph The graph the index was built for
+     * @param file The index file
+     * @param standardizer The standardizer that the index was built with, to apply to names that are looked up
+     * @return The index, or null if it could not be loaded or was saved for a different graph
+     */
+    public static RoadNameLookupIndex load(Listener listener, Graph graph, File file, RoadNameStandardizer standardizer)
+    {
+        try (var channel = FileChannel.open(file.asJavaFile().toPath(), StandardOpenOption.READ))
+        {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            {
+                listener.problem("$ is not a road name lookup index", file);
+                return null;
+            }
+            var identity = GraphIdentity.read(buffer.duplicate().position(HEADER));
+            var expected = GraphIdentity.of(graph);
+            if (!identity.matches(expected))
+            {
+                listener.problem("Road name lookup index $ was built for graph $, not $", file, identity, expected);
+                return null;
+            }
+            return new RoadNameLookupIndex(graph, standardizer, buffer);
+        }
+        catch (IOException e)
+        {
+            listener.problem(e, "Unable to load road name lookup index $", file);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file next to the given graph archive where a road name lookup index for the graph is saved
+     */
+    public static File sidecarFile(Listener listener, File graphFile)
+    {
+        return File.parseFile(listener, graphFile + EXTENSION);
+    }
+
+    private final Graph graph;
+
+    private final RoadNameStandardizer standardizer;
+
+    private final ByteBuffer buffer;
+
+    private final int names;
+
+    /** The positions of the sections in the buffer */
+    private final int nameOffsets;
+
+    private final int identifierOffsets;
+
+    private final int nameBytes;
+
+    private final int identifiers;
+
+    /**
+     * Builds a lookup index of the road names of the given graph
+     *
+     * @param graph The graph to index
+     * @param standardizer The standardizer that gives the base name of each road name, or null to index names as
+     * they are
+     */
+    public RoadNameLookupIndex(Graph graph, RoadNameStandardizer standardizer)
+    {
+        this(graph, standardizer, build(graph, standardizer));
+    }
+
+    private RoadNameLookupIndex(Graph graph, RoadNameStandardizer standardizer, ByteBuffer buffer)
+    {
+        this.graph = graph;
+        this.standardizer = standardizer;
+        this.buffer = buffer;
+
+        names = buffer.getInt(8);
+        var nameBytesSize = buffer.getInt(12);
+        nameOffsets = buffer.getInt(20);
+        identifierOffsets = nameOffsets + (names + 1) * 4;
+        nameBytes = identifierOffsets + (names + 1) * 4;
+        identifiers = nameBytes + nameBytesSize;
+    }
+
+    /**
+     * Returns the identifiers of the edges with the base name of the given road name, in increasing order
+     */
+    public long[] edgeIdentifiers(RoadName roadName)
+    {
+        var key = key(roadName.name());
+        if (key == null)
+        {
+            return NONE;
+        }
+        var bytes = key.getBytes(UTF_8);
+        var name = find(bytes);
+        return name < names && compare(name, bytes, false) == 0 ? identifiers(name) : NONE;
+    }
+
+    /**
+     * Returns the identifiers of the edges whose base names start with the given prefix, in increasing order. The
+     * prefix is not standardized, since a partial name can't be.
+     */
+    public long[] edgeIdentifiersWithPrefix(String prefix)
+    {
+        var bytes = prefix.toUpperCase(Locale.ROOT).getBytes(UTF_8);
+        var lists = new ArrayList<long[]>();
+        var total = 0;
+        for (var name = find(bytes); name < names && compare(name, bytes, true) == 0; name++)
+        {
+            var list = identifiers(name);
+            lists.add(list);
+            total += list.length;
+        }
+        if (lists.size() == 1)
+        {
+            return lists.get(0);
+        }
+
+        // An edge can have more than one name with the prefix, so the lists are merged without duplicates
+        var merged = new long[total];
+        var at = 0;
+        for (var list : lists)
+        {
+            System.arraycopy(list, 0, merged, at, list.length);
+            at += list.length;
+        }
+        return Arrays.stream(merged).sorted().distinct().toArray();
+    }
+
+    /**
+     * Returns the edges with the given identifiers
+     */
+    public List<Edge> edges(long[] identifiers)
+    {
+        var edges = new ArrayList<Edge>(identifiers.length);
+        for (var identifier : identifiers)
+        {
+            var edge = graph.edgeForIdentifier(new EdgeIdentifier(identifier));
+            if (edge != null)
+            {
+                edges.add(edge);
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Returns the graph that this index was built for
+     */
+    public Graph graph()
+    {
+        return graph;
+    }
+
+    /**
+     * Returns the number of distinct base names in the index
+     */
+    public Count names()
+    {
+        return Count.count(names);
+    }
+
+    /**
+     * Saves this index to the given file, in the form that {@link #load(Listener, Graph, File, RoadNameStandardizer)}
+     * maps into memory
+     *
+     * @return True if the index was saved
+     */
+    public boolean save(File file)
+    {
+        try (var out = new BufferedOutputStream(file.openForWriting()))
+        {
+            var bytes = new byte[64 * 1024];
+            var source = buffer.duplicate();
+            source.position(0);
+            while (source.hasRemaining())
+            {
+                var length = Math.min(bytes.length, source.remaining());
+                source.get(bytes, 0, length);
+                out.write(bytes, 0, length);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to save road name lookup index to $", file);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the index of the given graph's road names as a buffer
+     */
+    private static ByteBuffer build(Graph graph, RoadNameStandardizer standardizer)
+    {
+        // Find the base name of each road name of each edge in parallel,
+        var baseNames = new ConcurrentHashMap<String, String>();
+        Map<String, List<Long>> identifiersForName = StreamSupport.stream(graph.edges().spliterator(), true)
+                .flatMap(edge -> edge.roadNames() == null
+                        ? Stream.<Map.Entry<String, Long>>empty()
+                        : edge.roadNames().stream()
+                        .filter(roadName -> roadName != null)
+                        .map(roadName -> baseNames.computeIfAbsent(roadName.name(),
+                                name -> baseName(standardizer, name)))
+                        .filter(name -> !name.isEmpty())
+                        .map(name -> Map.entry(name, edge.identifierAsLong())))
+                .collect(Collectors.groupingByConcurrent(Map.Entry::getKey,
+                        Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
+
+        // then sort the names by their bytes, so that names with a common prefix are together,
+        var sorted = identifiersForName.keySet().stream()
+                .map(name -> name.getBytes(UTF_8))
+                .sorted(Arrays::compareUnsigned)
+                .toArray(byte[][]::new);
+
+        // and sort each name's identifiers.
+        var lists = new long[sorted.length][];
+        Arrays.parallelSetAll(lists, index -> identifiersForName.get(new String(sorted[index], UTF_8)).stream()
+                .mapToLong(Long::longValue)
+                .sorted()
+                .distinct()
+                .toArray());
+
+        // Lay out the sections,
+        long nameBytesSize = 0;
+        long identifierCount = 0;
+        for (var index = 0; index < sorted.length; index++)
+        {
+            nameBytesSize += sorted[index].length;
+            identifierCount += lists[index].length;
+        }
+        var identity = GraphIdentity.of(graph);
+        var sections = HEADER + identity.size();
+        var size = sections + (sorted.length + 1) * 8L + nameBytesSize + identifierCount * 8;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Road name lookup index for " + graph.name() + " is too large");
+        }
+
+        // write the header and graph identity,
+        var buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sorted.length);
+        buffer.putInt((int) nameBytesSize);
+        buffer.putInt((int) identifierCount);
+        buffer.putInt(sections);
+        identity.write(buffer);
+
+        // the offsets of the names and their identifiers,
+        var offset = 0;
+        for (var name : sorted)
+        {
+            buffer.putInt(offset);
+            offset += name.length;
+        }
+        buffer.putInt(offset);
+        offset = 0;
+        for (var list : lists)
+        {
+            buffer.putInt(offset);
+            offset += list.length;
+        }
+        buffer.putInt(offset);
+
+        // the names,
+        for (var name : sorted)
+        {
+            buffer.put(name);
+        }
+
+        // and the identifiers.
+        for (var list : lists)
+        {
+            for (var identifier : list)
+            {
+                buffer.putLong(identifier);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the upper-case base name of the given name, or an empty string if it has none
+     */
+    private static String baseName(RoadNameStandardizer standardizer, String name)
+    {
+        var baseName = standardizer != null ? standardizer.standardize(RoadName.forName(name)).baseName() : name;
+        return baseName == null ? "" : baseName.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Compares the name at the given index with the given bytes, or with the start of the name if prefix is true
+     */
+    private int compare(int name, byte[] bytes, boolean prefix)
+    {
+        var start = nameBytes + buffer.getInt(nameOffsets + name * 4);
+        var end = nameBytes + buffer.getInt(nameOffsets + (name + 1) * 4);
+        var length = end - start;
+        var common = Math.min(length, bytes.length);
+        for (var at = 0; at < common; at++)
+        {
+            var difference = Byte.toUnsignedInt(buffer.get(start + at)) - Byte.toUnsignedInt(bytes[at]);
+            if (difference != 0)
+            {
+                return difference;
+            }
+        }
+        return prefix && length >= bytes.length ? 0 : Integer.compare(length, bytes.length);
+    }
+
+    /**
+     * Returns the index of the first name that is not less than the given bytes
+     */
+    private int find(byte[] bytes)
+    {
+        var low = 0;
+        var high = names;
+        while (low < high)
+        {
+            var middle = (low + high) >>> 1;
+            if (compare(middle, bytes, false) < 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the identifiers of the edges with the name at the given index
+     */
+    private long[] identifiers(int name)
+    {
+        var start = buffer.getInt(identifierOffsets + name * 4);
+        var end = buffer.getInt(identifierOffsets + (name + 1) * 4);
+        var list = new long[end - start];
+        for (var at = 0; at < list.length; at++)
+        {
+            list[at] = buffer.getLong(identifiers + (start + at) * 8);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the base name to look up for the given name, or null if it has none
+     */
+    private String key(String name)
+    {
+        var key = baseName(standardizer, name);
+        return key.isEmpty() ? null : key;
+    }
+}
@@ -18,12 +18,23 @@
 
 package com.telenav.mesakit.graph.geocoding.reverse;
 
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.core.value.level.Percent;
 
 import com.telenav.mesakit.graph.Edge;
 import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.geocoding.reverse.caching.ReverseGeocoderCache;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.EdgeGridIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.EdgeShapeIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameTrigramIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.instrumentation.ReverseGeocoderInstrumentation;
+import com.telenav.mesakit.graph.geocoding.reverse.instrumentation.ReverseGeocoderInstrumentation.Phase;
+import com.telenav.mesakit.graph.geocoding.reverse.matching.BoundedRoadNameMatcher;
 import com.telenav.mesakit.graph.geocoding.reverse.matching.FuzzyRoadNameMatcher;
 import com.telenav.mesakit.graph.geocoding.reverse.matching.RoadNameMatcher;
+import com.telenav.mesakit.graph.geocoding.reverse.snapping.SegmentDistanceKernel;
 import com.telenav.mesakit.map.geography.Location;
 import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnap;
 import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnapper;
@@ -33,16 +44,93 @@ import com.telenav.mesakit.map.measurements.geographic.Heading;
 import com.telenav.mesakit.map.road.model.RoadName;
 import com.telenav.mesakit.map.road.name.standardizer.RoadNameStandardizer;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.telenav.kivakit.core.value.level.Percent.percent;
 
 /**
  * Takes a location and locates the nearest appropriate edge. A road name and a heading can give assistance in finding
  * the right edge.
+ * <p>
+ * Batches of requests can be located with {@link #locateAll(List)} or {@link #locateAll(Stream)}. Batched requests are
+ * sorted along a Hilbert curve so that consecutive lookups visit neighboring parts of the graph's spatial index, and
+ * the sorted requests are then split into runs of {@link Configuration#batchSize()} that execute on the configured
+ * {@link Executor}. Responses are always returned in the order of the original requests.
+ * <p>
+ * If the geocoder is constructed with a {@link RoadNameIndex}, the pre-standardized names of candidate edges are taken
+ * from the index instead of being standardized again for every request. Unless
+ * {@link Configuration#roadNameTrigramFilter(boolean)} is turned off, or the road name matcher isn't based on edit
+ * distance, edges whose names share too few trigrams with the desired road name are skipped without being matched
+ * (see {@link RoadNameTrigramIndex}).
+ * <p>
+ * {@link #locate(Request)} returns the nearest of the edges whose road names are the closest to the desired road name.
+ * That is, edges are ranked first by road name closeness and then by distance. Which edges have the closest names
+ * doesn't depend on the order in which edges are examined, so the edge found is the same whichever spatial index
+ * supplies the edges, except among edges at exactly the same distance, where the edge examined first wins.
+ * <p>
+ * If the geocoder is constructed with an {@link EdgeGridIndex}, nearby edges are found by reading a few cells of the
+ * grid instead of walking the graph's spatial index. The grid matches edges by their bounding boxes and returns them in
+ * cell order, so a few more edges may be examined, and among edges at exactly the same distance a different one may
+ * win.
+ * <p>
+ * If the geocoder is constructed with an {@link EdgeShapeIndex}, distances to candidate edges are measured from the
+ * primitive shape points in the index by a {@link SegmentDistanceKernel}, and only the edges that are returned are
+ * snapped. The kernel measures distances on a flat projection, so an edge can win over another that is less than a
+ * millimeter nearer by great circle distance.
+ * <p>
+ * Candidate edges that pass the heading and road name filters are snapped in order of the distance to their bounding
+ * boxes, and snapping stops as soon as no remaining bounding box is as close as the closest snap. The result is the
+ * same as snapping every candidate.
+ * <p>
+ * {@link #locate(Request, Count)} returns the nearest few matching edges instead of just one, optionally starting with
+ * a small search area that grows only until enough edges are found (see {@link Configuration#initialWithin()}).
+ * <p>
+ * A request can be given a time limit and a limit on the number of candidate edges examined, or limits can be set
+ * for all requests in the configuration. The candidate limit bounds only how many edges are gathered: every gathered
+ * candidate is still considered for snapping, so the best of them is returned. The time limit stops both gathering and
+ * snapping. If an edge was left out because of the candidate limit, or time ran out, the best edge found is returned
+ * with {@link Response#isPartial()} set. At least one candidate is always snapped if there are any, so a request can
+ * run over its time limit by one snap. Partial results are not cached.
+ * <p>
+ * If {@link Configuration#cache(ReverseGeocoderCache)} is set, {@link #locate(Request)} reuses the edge located for
+ * an earlier request with the same quantized location, heading and road name.
+ * <p>
+ * If {@link Configuration#instrumentation(ReverseGeocoderInstrumentation)} is set, the time spent in each phase of
+ * every request is recorded, along with the number of candidate edges examined and snaps performed. Without
+ * instrumentation, each phase costs one extra branch.
+ * <p>
+ * Each thread that locates requests keeps a {@link Context} of reusable buffers, and candidates are scored and compared
+ * as primitive values, so that locating a request allocates little besides the response for the winning edge. A
+ * caller that manages its own threads can hold a context from {@link #newContext()} and pass it to
+ * {@link #locate(Request, Context)} instead.
+ * <p>
+ * A reverse geocoder keeps no per-request state outside of contexts, so a single instance can be shared by any number
+ * of threads, provided that the configured {@link RoadNameStandardizer} and {@link RoadNameMatcher} are themselves
+ * thread-safe.
  *
  * @author jonathanl (shibo)
  */
 public class ReverseGeocoder
 {
+    /** Scales bounding box distances down to allow for the difference between them and snap distances */
+    private static final double LOWER_BOUND_SLACK = 0.99;
+
+    /** The mean radius of the earth */
+    private static final double EARTH_RADIUS_IN_METERS = 6_371_008.8;
+
     public static class Configuration
     {
         private Distance within;
@@ -58,6 +146,54 @@ public class ReverseGeocoder
         /** if compare direction of name or not */
         private boolean compareDirection = true;
 
+        /** The number of spatially sorted requests in each unit of batch work */
+        private Count batchSize = Count.count(256);
+
+        /** The cache of located edges, or null if results are not cached */
+        private ReverseGeocoderCache cache;
+
+        /** The executor for batch work, or null to use the common fork-join pool */
+        private Executor executor;
+
+        /** The distance to search first when locating more than one edge, or null to search within() directly */
+        private Distance initialWithin;
+
+        /** The most candidate edges to examine for a request that doesn't set its own limit, or null for no limit */
+        private Count maximumCandidates;
+
+        /** The longest time to spend on a request that doesn't set its own limit, or null for no limit */
+        private Duration timeLimit;
+
+        /** Where to record phase latencies and counts, or null if requests are not instrumented */
+        private ReverseGeocoderInstrumentation instrumentation;
+
+        /** True to exclude candidate edges by road name trigrams when a road name index is available */
+        private boolean roadNameTrigramFilter = true;
+
+        public Count batchSize()
+        {
+            return batchSize;
+        }
+
+        public void batchSize(Count batchSize)
+        {
+            this.batchSize = batchSize;
+        }
+
+        public ReverseGeocoderCache cache()
+        {
+            return cache;
+        }
+
+        /**
+         * @param cache A cache of located edges to consult before searching, or null to search for every request.
+         * Cached responses are approximate (see {@link ReverseGeocoderCache}).
+         */
+        public void cache(ReverseGeocoderCache cache)
+        {
+            this.cache = cache;
+        }
+
         public boolean compareDirection()
         {
             return compareDirection;
@@ -68,6 +204,20 @@ public class ReverseGeocoder
             compareDirection = compare;
         }
 
+        public Executor executor()
+        {
+            return executor;
+        }
+
+        /**
+         * @param executor The executor to run batches of requests on. If this is null, batches run on the common
+         * fork-join pool.
+         */
+        public void executor(Executor executor)
+        {
+            this.executor = executor;
+        }
+
         public Angle headingTolerance()
         {
             return headingTolerance;
@@ -78,6 +228,50 @@ public class ReverseGeocoder
             this.headingTolerance = headingTolerance;
         }
 
+        public Distance initialWithin()
+        {
+            return initialWithin;
+        }
+
+        /**
+         * @param initialWithin The distance to search first when locating the nearest edges with
+         * {@link ReverseGeocoder#locate(Request, Count)}. The distance searched is doubled up to {@link #within()} until
+         * enough edges are found, so a small initial distance saves work where most locations are near a road. If this
+         * is null, the search is within {@link #within()} from the start.
+         */
+        public void initialWithin(Distance initialWithin)
+        {
+            this.initialWithin = initialWithin;
+        }
+
+        public ReverseGeocoderInstrumentation instrumentation()
+        {
+            return instrumentation;
+        }
+
+        /**
+         * @param instrumentation The instrumentation to record the latencies of the phases of each request in, or null
+         * to leave requests uninstrumented
+         */
+        public void instrumentation(ReverseGeocoderInstrumentation instrumentation)
+        {
+            this.instrumentation = instrumentation;
+        }
+
+        public Count maximumCandidates()
+        {
+            return maximumCandidates;
+        }
+
+        /**
+         * @param maximumCandidates The most candidate edges to examine for each request that doesn't set its own
+         * {@link Request#maximumCandidates(Count)}, or null to examine every edge within {@link #within()}
+         */
+        public void maximumCandidates(Count maximumCandidates)
+        {
+            this.maximumCandidates = maximumCandidates;
+        }
+
         public Percent roadNameCloseness()
         {
             return roadNameCloseness;
@@ -120,6 +314,37 @@ public class ReverseGeocoder
             roadNameStandardizer = standardizer;
         }
 
+        public boolean roadNameTrigramFilter()
+        {
+            return roadNameTrigramFilter;
+        }
+
+        /**
+         * @param filter True to skip candidate edges whose road names share too few trigrams with the desired road
+         * name to reach the road name closeness. This is only used when the geocoder has a {@link RoadNameIndex} and
+         * the configured {@link RoadNameMatcher} scores names by edit distance (see
+         * {@link RoadNameMatcher#isEditDistanceBased()}), as {@link FuzzyRoadNameMatcher} and
+         * {@link BoundedRoadNameMatcher} do. For other matchers the filter could discard names they would accept.
+         */
+        public void roadNameTrigramFilter(boolean filter)
+        {
+            roadNameTrigramFilter = filter;
+        }
+
+        public Duration timeLimit()
+        {
+            return timeLimit;
+        }
+
+        /**
+         * @param timeLimit The longest time to spend on each request that doesn't set its own
+         * {@link Request#timeLimit(Duration)}, or null for no limit
+         */
+        public void timeLimit(Duration timeLimit)
+        {
+            this.timeLimit = timeLimit;
+        }
+
         public Distance within()
         {
             return within;
@@ -139,6 +364,10 @@ public class ReverseGeocoder
 
         private RoadName roadName;
 
+        private Count maximumCandidates;
+
+        private Duration timeLimit;
+
         public Heading heading()
         {
             return heading;
@@ -159,6 +388,21 @@ public class ReverseGeocoder
             this.location = location;
         }
 
+        public Count maximumCandidates()
+        {
+            return maximumCandidates;
+        }
+
+        /**
+         * @param maximumCandidates The most edges to examine while gathering candidates for this request, or null to
+         * use {@link Configuration#maximumCandidates()}. If edges are left out, the best of the candidates gathered is
+         * returned as a partial response.
+         */
+        public void maximumCandidates(Count maximumCandidates)
+        {
+            this.maximumCandidates = maximumCandidates;
+        }
+
         public RoadName roadName()
         {
             return roadName;
@@ -168,6 +412,20 @@ public class ReverseGeocoder
         {
             this.roadName = roadName;
         }
+
+        public Duration timeLimit()
+        {
+            return timeLimit;
+        }
+
+        /**
+         * @param timeLimit The longest time to spend locating this request before returning the best edge found so
+         * far as a partial response, or null to use {@link Configuration#timeLimit()}
+         */
+        public void timeLimit(Duration timeLimit)
+        {
+            this.timeLimit = timeLimit;
+        }
     }
 
     public static class Response
@@ -178,6 +436,9 @@ public class ReverseGeocoder
 
         private Percent percentage = Percent._0;
 
+        /** True if an edge was left out because of the candidate limit, or the request ran out of time */
+        private boolean partial;
+
         Response(Edge edge, PolylineSnap snap)
         {
             this.edge = edge;
@@ -195,6 +456,15 @@ public class ReverseGeocoder
             return edge;
         }
 
+        /**
+         * Returns true if an edge within range was left out because of the candidate limit, or the request ran out of
+         * time, so that this is the best edge found, which may not be the best edge there is
+         */
+        public boolean isPartial()
+        {
+            return partial;
+        }
+
         public Percent percentage()
         {
             return percentage;
@@ -206,88 +476,1001 @@ public class ReverseGeocoder
         }
     }
 
+    /**
+     * Reusable state for locating requests on one thread. A context holds the snapper and the candidate buffers that
+     * would otherwise be allocated for every request, so a thread that keeps a context (as {@link #locate(Request)}
+     * does for each thread that calls it) allocates little more than the winning response. A context must not be used
+     * by more than one thread at a time.
+     * <p>
+     * A context only refers to a geocoder while it is locating a request with it. The contexts that a geocoder keeps
+     * for its threads therefore don't keep the geocoder, its graph or its indexes from being garbage collected once the
+     * geocoder is no longer used, even though the threads live on.
+     */
+    public static class Context
+    {
+        private final Search search = new Search();
+
+        private Context()
+        {
+        }
+    }
+
+    /**
+     * A candidate edge and the snap of the requested location to it
+     */
+    private static class Snapped
+    {
+        private final Edge edge;
+
+        private final double roadNameCloseness;
+
+        /** The order in which the spatial index returned this edge, among candidates */
+        private final int order;
+
+        /** The snap, or null if the distance was measured by the segment distance kernel */
+        private final PolylineSnap snap;
+
+        private final double distance;
+
+        Snapped(Edge edge, double roadNameCloseness, int order, PolylineSnap snap, double distance)
+        {
+            this.edge = edge;
+            this.roadNameCloseness = roadNameCloseness;
+            this.order = order;
+            this.snap = snap;
+            this.distance = distance;
+        }
+    }
+
+    /**
+     * The state of a search for the edges matching a request, which is computed once even if the search looks at
+     * more than one area. The candidate edges that pass the heading and road name filters are kept in parallel
+     * arrays, indexed by the order in which the spatial index returned them, and the arrays are reused by each search
+     * in the same {@link Context}.
+     */
+    private static class Search
+    {
+        /** The geocoder the current request is located with, or null between requests */
+        private ReverseGeocoder geocoder;
+
+        private final PolylineSnapper snapper = new PolylineSnapper();
+
+        private final SegmentDistanceKernel kernel = new SegmentDistanceKernel();
+
+        /** The snap made by the last call to distance(), or null if the kernel measured the distance */
+        private PolylineSnap snapped;
+
+        private Location location;
+
+        private double latitude;
+
+        private double longitude;
+
+        private Heading heading;
+
+        private RoadNameStandardizer standardizer;
+
+        /** The desired road name, standardized if there is a standardizer */
+        private RoadName desired;
+
+        private boolean desiredHasDirection;
+
+        /** The trigrams of the desired road name, or null if edges aren't filtered by trigrams */
+        private RoadNameTrigramIndex.Query trigrams;
+
+        private ReverseGeocoderInstrumentation instrumentation;
+
+        /** The time spent in each phase of this search, or null if it isn't instrumented */
+        private ReverseGeocoderInstrumentation.Timings timings;
+
+        /** The number of candidates */
+        private int candidates;
+
+        /** The number of edges examined while gathering the current candidates */
+        private int examined;
+
+        /** The most edges to examine for the request */
+        private int maximumExamined;
+
+        /** The time by which the request must be done, or Long.MAX_VALUE if it has no time limit */
+        private long deadline;
+
+        /** True once the request has run out of time */
+        private boolean timedOut;
+
+        /** True if an edge was left out of the candidates because the request reached its candidate limit */
+        private boolean truncated;
+
+        private Edge[] edges = new Edge[16];
+
+        /** The road name closeness of each candidate as a percentage */
+        private double[] roadNameCloseness = new double[16];
+
+        /** A lower bound on the distance in meters from the requested location to each candidate */
+        private double[] lowerBounds = new double[16];
+
+        /** Candidate indexes in increasing order of their lower bounds */
+        private int[] sorted = new int[16];
+
+        private int[] scratch = new int[16];
+
+        /** The edges found in the edge grid, if there is one */
+        private final EdgeGridIndex.Matches gridMatches = new EdgeGridIndex.Matches();
+
+        /** The road name closeness that an edge has to exceed to be a candidate */
+        private double threshold;
+
+        /** The highest road name closeness of any candidate so far */
+        private double highestRoadNameCloseness;
+
+        /** True if only the edges with the closest road name are kept as candidates */
+        private boolean closestNamesOnly;
+
+        /**
+         * Returns the edges within the given distance of the requested location that pass the heading and road name
+         * filters, in the order the spatial index returns them
+         *
+         * @param within The distance to search
+         * @param closestNamesOnly True if only the edges whose road names are as close as the closest road name of any
+         * edge that passes the filters are candidates. Which edges these are doesn't depend on the order in which
+         * edges are examined.
+         * @return The number of candidates
+         */
+        int candidates(Distance within, boolean closestNamesOnly)
+        {
+            clearCandidates();
+            examined = 0;
+            threshold = desired != null ? geocoder.configuration.roadNameCloseness().value() : 0.0;
+            highestRoadNameCloseness = 0.0;
+            this.closestNamesOnly = closestNamesOnly;
+
+            // If there's an edge grid,
+            var fetched = now();
+            if (geocoder.edgeGridIndex != null)
+            {
+                // go through each edge whose bounds are within the given distance of the requested location,
+                geocoder.edgeGridIndex.intersecting(location.within(within), gridMatches);
+                time(Phase.SPATIAL_FETCH, fetched);
+                for (var match = 0; match < gridMatches.count() && !outOfTime(); match++)
+                {
+                    // (unless the request has reached its candidate limit with edges left over).
+                    if (examined >= maximumExamined)
+                    {
+                        truncated = true;
+                        break;
+                    }
+                    consider(gridMatches.edge(match), match);
+                }
+                gridMatches.clear();
+            }
+            else
+            {
+                // otherwise go through each edge that the graph's spatial index returns.
+                var edges = geocoder.graph.edgesIntersecting(location.within(within)).iterator();
+                while (edges.hasNext() && !outOfTime())
+                {
+                    if (examined >= maximumExamined)
+                    {
+                        truncated = true;
+                        break;
+                    }
+                    var edge = edges.next();
+                    time(Phase.SPATIAL_FETCH, fetched);
+                    consider(edge, -1);
+                    fetched = now();
+                }
+                time(Phase.SPATIAL_FETCH, fetched);
+            }
+            return candidates;
+        }
+
+        /**
+         * Records this search's timings if it is instrumented, and lets go of its candidate edges and its geocoder
+         */
+        void finish()
+        {
+            if (timings != null)
+            {
+                instrumentation.finish(timings);
+                timings = null;
+            }
+            clearCandidates();
+            snapped = null;
+            location = null;
+            heading = null;
+            desired = null;
+            trigrams = null;
+            standardizer = null;
+            instrumentation = null;
+            geocoder = null;
+        }
+
+        /**
+         * Returns true if the request has run out of time
+         */
+        boolean outOfTime()
+        {
+            if (!timedOut)
+            {
+                timedOut = deadline != Long.MAX_VALUE && System.nanoTime() > deadline;
+            }
+            return timedOut;
+        }
+
+        /**
+         * Returns true if an edge was left out of the candidates or the request ran out of time, so that the best
+         * edge found may not be the best edge there is
+         */
+        boolean partial()
+        {
+            return truncated || timedOut;
+        }
+
+        /**
+         * Returns the current time if this search is instrumented
+         */
+        long now()
+        {
+            return timings != null ? System.nanoTime() : 0L;
+        }
+
+        /**
+         * Returns the distance in meters from the requested location to the given edge, measured by the segment
+         * distance kernel if there is an edge shape index, and otherwise by snapping
+         */
+        double distance(Edge edge)
+        {
+            if (geocoder.edgeShapeIndex == null)
+            {
+                snapped = snap(edge);
+                return snapped.distanceToSource().asMeters();
+            }
+            snapped = null;
+            if (timings == null)
+            {
+                return kernel.distance(geocoder.edgeShapeIndex, edge, latitude, longitude);
+            }
+            var started = System.nanoTime();
+            var distance = kernel.distance(geocoder.edgeShapeIndex, edge, latitude, longitude);
+            timings.add(Phase.SNAPPING, System.nanoTime() - started);
+            timings.snapped();
+            return distance;
+        }
+
+        /**
+         * Snaps the requested location to the given edge
+         */
+        PolylineSnap snap(Edge edge)
+        {
+            if (timings == null)
+            {
+                return snapper.snap(edge, location);
+            }
+            var started = System.nanoTime();
+            var snap = snapper.snap(edge, location);
+            timings.add(Phase.SNAPPING, System.nanoTime() - started);
+            timings.snapped();
+            return snap;
+        }
+
+        /**
+         * Returns the indexes of the candidates sorted by increasing lower bound, with candidates that have equal
+         * bounds in their original order. Only the first {@link #candidates} entries are meaningful.
+         */
+        int[] sortedByLowerBound()
+        {
+            for (var index = 0; index < candidates; index++)
+            {
+                sorted[index] = index;
+            }
+            if (candidates <= 32)
+            {
+                // Few candidates are sorted by insertion,
+                for (var at = 1; at < candidates; at++)
+                {
+                    var index = sorted[at];
+                    var key = lowerBounds[index];
+                    var to = at;
+                    while (to > 0 && lowerBounds[sorted[to - 1]] > key)
+                    {
+                        sorted[to] = sorted[to - 1];
+                        to--;
+                    }
+                    sorted[to] = index;
+                }
+                return sorted;
+            }
+
+            // and more with a bottom-up merge sort, which like insertion is stable.
+            var from = sorted;
+            var to = scratch;
+            for (var width = 1; width < candidates; width *= 2)
+            {
+                for (var low = 0; low < candidates; low += 2 * width)
+                {
+                    var middle = Math.min(low + width, candidates);
+                    var high = Math.min(low + 2 * width, candidates);
+                    var left = low;
+                    var right = middle;
+                    for (var at = low; at < high; at++)
+                    {
+                        if (left < middle && (right >= high || lowerBounds[from[left]] <= lowerBounds[from[right]]))
+                        {
+                            to[at] = from[left++];
+                        }
+                        else
+                        {
+                            to[at] = from[right++];
+                        }
+                    }
+                }
+                var swap = from;
+                from = to;
+                to = swap;
+            }
+            sorted = from;
+            scratch = to;
+            return sorted;
+        }
+
+        /**
+         * Starts searching for the given request with the given geocoder
+         */
+        void start(ReverseGeocoder geocoder, Request request)
+        {
+            this.geocoder = geocoder;
+            instrumentation = geocoder.configuration.instrumentation();
+            timings = instrumentation != null ? instrumentation.start() : null;
+
+            var maximumCandidates = request.maximumCandidates() != null
+                    ? request.maximumCandidates()
+                    : geocoder.configuration.maximumCandidates();
+            var timeLimit = request.timeLimit() != null ? request.timeLimit() : geocoder.configuration.timeLimit();
+            examined = 0;
+            maximumExamined = maximumCandidates != null ? maximumCandidates.asInt() : Integer.MAX_VALUE;
+            deadline = timeLimit != null
+                    ? System.nanoTime() + (long) (timeLimit.asMilliseconds() * 1_000_000)
+                    : Long.MAX_VALUE;
+            timedOut = false;
+            truncated = false;
+
+            location = request.location();
+            latitude = location.latitudeInDegrees();
+            longitude = location.longitudeInDegrees();
+            heading = request.heading();
+            standardizer = geocoder.configuration.roadNameStandardizer();
+
+            var desired = request.roadName();
+            if (standardizer != null && desired != null)
+            {
+                var started = now();
+                desired = standardizer.standardize(desired).asRoadName();
+                time(Phase.STANDARDIZATION, started);
+            }
+            this.desired = desired;
+            desiredHasDirection = desired != null && desired.extractDirection() != null;
+
+            // Filter names by trigrams only if the matcher, which may have been replaced since the trigram index was
+            // built, is based on edit distance
+            var started = now();
+            trigrams = desired != null && geocoder.roadNameTrigramIndex != null
+                    && geocoder.configuration.roadNameMatcher().isEditDistanceBased()
+                    ? geocoder.roadNameTrigramIndex.query(desired, geocoder.configuration.roadNameCloseness())
+                    : null;
+            if (trigrams != null)
+            {
+                time(Phase.NAME_MATCHING, started);
+            }
+        }
+
+        /**
+         * Adds the time since the given start to the given phase if this search is instrumented
+         */
+        void time(Phase phase, long started)
+        {
+            if (timings != null)
+            {
+                timings.add(phase, System.nanoTime() - started);
+            }
+        }
+
+        /**
+         * Adds the given edge as a candidate if it passes the heading and road name filters
+         *
+         * @param edge The edge
+         * @param match The edge's index in the edge grid matches, or -1 if it came from the graph's spatial index
+         */
+        private void consider(Edge edge, int match)
+        {
+            examined++;
+            if (timings != null)
+            {
+                timings.examined();
+            }
+
+            // If no heading was specified or the edge's heading is close to what we're looking for,
+            var started = now();
+            var headingIsClose = heading == null
+                    || edge.heading().isClose(heading, geocoder.configuration.headingTolerance());
+            time(Phase.HEADING_FILTER, started);
+            if (headingIsClose)
+            {
+                // (skipping it if none of its road names has enough trigrams in common with the desired road
+                // name to be close enough),
+                if (trigrams != null)
+                {
+                    started = now();
+                    var mayMatch = geocoder.roadNameTrigramIndex.mayMatch(edge, trigrams);
+                    time(Phase.NAME_MATCHING, started);
+                    if (!mayMatch)
+                    {
+                        return;
+                    }
+                }
+
+                var roadNameCloseness = 100.0;
+                if (desired != null)
+                {
+                    roadNameCloseness = geocoder.matches(edge, this);
+                }
+                if (desired == null || roadNameCloseness > threshold)
+                {
+                    // and if only the closest names are wanted, edges with less close names than the closest so far
+                    // are skipped, and a closer name than any so far replaces the candidates gathered before it,
+                    if (closestNamesOnly)
+                    {
+                        if (roadNameCloseness < highestRoadNameCloseness)
+                        {
+                            return;
+                        }
+                        if (roadNameCloseness > highestRoadNameCloseness)
+                        {
+                            clearCandidates();
+                            highestRoadNameCloseness = roadNameCloseness;
+                        }
+                    }
+
+                    // then the edge is a candidate to snap to.
+                    var lowerBound = match < 0
+                            ? lowerBoundInMeters(edge, latitude, longitude)
+                            : lowerBoundInMeters(gridMatches.bottom(match), gridMatches.left(match),
+                                    gridMatches.top(match), gridMatches.right(match), latitude, longitude);
+                    addCandidate(edge, roadNameCloseness, lowerBound);
+                }
+            }
+        }
+
+        private void addCandidate(Edge edge, double roadNameCloseness, double lowerBound)
+        {
+            if (candidates == edges.length)
+            {
+                var capacity = candidates * 2;
+                edges = Arrays.copyOf(edges, capacity);
+                this.roadNameCloseness = Arrays.copyOf(this.roadNameCloseness, capacity);
+                lowerBounds = Arrays.copyOf(lowerBounds, capacity);
+                sorted = new int[capacity];
+                scratch = new int[capacity];
+            }
+            edges[candidates] = edge;
+            this.roadNameCloseness[candidates] = roadNameCloseness;
+            lowerBounds[candidates] = lowerBound;
+            candidates++;
+        }
+
+        private void clearCandidates()
+        {
+            Arrays.fill(edges, 0, candidates, null);
+            candidates = 0;
+        }
+    }
+
     private final Graph graph;
 
     private final Configuration configuration;
 
+    /** Pre-standardized road names for the graph, or null if names are standardized for each request */
+    private final RoadNameIndex roadNameIndex;
+
+    /** A grid of the graph's edges, or null if nearby edges are found with the graph's spatial index */
+    private final EdgeGridIndex edgeGridIndex;
+
+    /** The shape points of the graph's edges, or null if distances to candidate edges are measured by snapping */
+    private final EdgeShapeIndex edgeShapeIndex;
+
+    /** Road name trigrams for the graph, or null if candidate edges are not filtered by trigrams */
+    private final RoadNameTrigramIndex roadNameTrigramIndex;
+
+    /** The context of each thread that locates requests without its own context */
+    private final ThreadLocal<Context> contexts = ThreadLocal.withInitial(Context::new);
+
     public ReverseGeocoder(Graph graph, Configuration configuration)
     {
+        this(graph, configuration, null);
+    }
+
+    /**
+     * @param graph The graph to geocode against
+     * @param configuration The geocoder configuration
+     * @param roadNameIndex An index of the graph's standardized road names, built with the same standardizer as the
+     * configuration, or null to standardize names for each request
+     */
+    public ReverseGeocoder(Graph graph, Configuration configuration, RoadNameIndex roadNameIndex)
+    {
+        this(graph, configuration, roadNameIndex, null);
+    }
+
+    /**
+     * @param graph The graph to geocode against
+     * @param configuration The geocoder configuration
+     * @param roadNameIndex An index of the graph's standardized road names, built with the same standardizer as the
+     * configuration, or null to standardize names for each request
+     * @param edgeGridIndex A grid of the graph's edges, or null to find nearby edges with the graph's spatial index
+     */
+    public ReverseGeocoder(Graph graph, Configuration configuration, RoadNameIndex roadNameIndex,
+                           EdgeGridIndex edgeGridIndex)
+    {
+        this(graph, configuration, roadNameIndex, edgeGridIndex, null);
+    }
+
+    /**
+     * @param graph The graph to geocode against
+     * @param configuration The geocoder configuration
+     * @param roadNameIndex An index of the graph's standardized road names, built with the same standardizer as the
+     * configuration, or null to standardize names for each request
+     * @param edgeGridIndex A grid of the graph's edges, or null to find nearby edges with the graph's spatial index
+     * @param edgeShapeIndex The shape points of the graph's edges, or null to measure distances to candidate edges by
+     * snapping
+     */
+    public ReverseGeocoder(Graph graph, Configuration configuration, RoadNameIndex roadNameIndex,
+                           EdgeGridIndex edgeGridIndex, EdgeShapeIndex edgeShapeIndex)
+    {
+        if (roadNameIndex != null && roadNameIndex.graph() != graph)
+        {
+            throw new IllegalArgumentException("Road name index was built for a different graph");
+        }
+        if (edgeGridIndex != null && edgeGridIndex.graph() != graph)
+        {
+            throw new IllegalArgumentException("Edge grid was built for a different graph");
+        }
+        if (edgeShapeIndex != null && edgeShapeIndex.graph() != graph)
+        {
+            throw new IllegalArgumentException("Edge shape index was built for a different graph");
+        }
         this.graph = graph;
         this.configuration = configuration;
+        this.roadNameIndex = roadNameIndex;
+        this.edgeGridIndex = edgeGridIndex;
+        this.edgeShapeIndex = edgeShapeIndex;
+        this.roadNameTrigramIndex = roadNameIndex != null && configuration.roadNameTrigramFilter()
+                && configuration.roadNameMatcher().isEditDistanceBased()
+                ? new RoadNameTrigramIndex(roadNameIndex)
+                : null;
     }
 
     public Response locate(Request request)
     {
-        var snapper = new PolylineSnapper();
-        var standardizer = configuration.roadNameStandardizer();
-        var location = request.location();
-        var heading = request.heading();
+        return locate(request, contexts.get());
+    }
 
-        var desired = request.roadName();
-        if (standardizer != null)
+    /**
+     * Locates the nearest appropriate edge for the given request, using the given context instead of the calling
+     * thread's own
+     *
+     * @param request The request to locate
+     * @param context A context from {@link #newContext()} that no other thread is using
+     * @return The response, or null if no edge was found
+     */
+    public Response locate(Request request, Context context)
+    {
+        var search = context.search;
+        search.start(this, request);
+        try
         {
-            desired = request.roadName() != null ? standardizer.standardize(request.roadName()).asRoadName()
-                    : null;
+            // If there's no cache, search for the edge,
+            var cache = configuration.cache();
+            if (cache == null)
+            {
+                return locate(search);
+            }
+
+            // otherwise, if a request with the same key has been located,
+            var key = cache.key(search.location, search.heading, search.desired);
+            var cached = cache.get(graph, key);
+            if (cached != null)
+            {
+                // snap to the same edge.
+                return cached.edge() == null
+                        ? null
+                        : new Response(cached.edge(), search.snap(cached.edge()),
+                        cached.roadNameCloseness());
+            }
+
+            // If it hasn't been located, search for the edge and cache it (unless the search was cut short)
+            var response = locate(search);
+            if (!search.partial())
+            {
+                cache.put(graph, key, response == null ? null : response.edge(),
+                        response == null ? null : response.percentage());
+            }
+            return response;
         }
+        finally
+        {
+            search.finish();
+        }
+    }
 
-        var closestDistance = Distance.MAXIMUM;
-        Response response = null;
-        var highestRoadNameCloseness = Percent._0;
+    /**
+     * Locates up to the given number of the nearest appropriate edges for the given request. Unlike
+     * {@link #locate(Request)}, which only considers the edges with the closest road names, every edge with a road
+     * name closer than {@link Configuration#roadNameCloseness()} qualifies here.
+     * <p>
+     * If {@link Configuration#initialWithin()} is set, the search starts within that distance of the requested
+     * location, and the distance is doubled (up to {@link Configuration#within()}) only while fewer than the given
+     * number of edges have been found within the distance searched. Edges outside that distance can't be nearer than
+     * the ones found inside it, so the result is the same as searching {@link Configuration#within()} directly.
+     *
+     * @param request The request to locate
+     * @param maximum The maximum number of edges to return
+     * @return The responses for the nearest qualifying edges, nearest first, and ordered as the spatial index returned
+     * them where they are equally near
+     */
+    public List<Response> locate(Request request, Count maximum)
+    {
+        var wanted = maximum.asInt();
+        if (wanted <= 0)
+        {
+            return List.of();
+        }
 
-        // Go through each edge within the given distance of the requested location
-        for (var edge : graph.edgesIntersecting(location.within(configuration.within())))
+        var search = contexts.get().search;
+        search.start(this, request);
+        var within = configuration.within();
+        var radius = configuration.initialWithin() != null && configuration.initialWithin().isLessThan(within)
+                ? configuration.initialWithin()
+                : within;
+
+        try
         {
-            // and if no heading was specified or the edge's heading is close to what we're
-            // looking for,
-            if (heading == null || edge.heading().isClose(heading, configuration.headingTolerance()))
+            while (true)
             {
-                var roadNameCloseness = Percent._100;
-                if (desired != null)
+                // Find the nearest edges within the current radius,
+                var nearest = nearest(search, search.candidates(radius, false), wanted);
+
+                // and if there are enough of them inside the radius, or we can't look any farther, we're done
+                if (!radius.isLessThan(within) || search.partial() || (nearest.size() == wanted
+                        && !radius.isLessThan(nearest.get(wanted - 1).snap().distanceToSource())))
+                {
+                    return nearest;
+                }
+
+                // otherwise, look twice as far.
+                radius = Distance.meters(Math.min(radius.asMeters() * 2, within.asMeters()));
+            }
+        }
+        finally
+        {
+            search.finish();
+        }
+    }
+
+    /**
+     * Locates the nearest appropriate edge for each of the given requests in parallel
+     *
+     * Each request has its own time and candidate limits (see {@link Request#timeLimit(Duration)} and
+     * {@link Configuration#timeLimit(Duration)}), so one slow request can't hold up the rest of its batch for longer
+     * than its limit.
+     *
+     * @param requests The requests to locate
+     * @return A list of responses where the response at each index is the response for the request at the same index.
+     * A response is null if no edge could be located for its request.
+     */
+    public List<Response> locateAll(List<Request> requests)
+    {
+        var responses = new Response[requests.size()];
+        var order = hilbertOrder(requests);
+        var batchSize = Math.max(1, configuration.batchSize().asInt());
+        var executor = configuration.executor() != null ? configuration.executor() : ForkJoinPool.commonPool();
+
+        // Split the spatially sorted requests into batches,
+        var batches = new ArrayList<CompletableFuture<Void>>();
+        for (var start = 0; start < order.length; start += batchSize)
+        {
+            var from = start;
+            var to = Math.min(order.length, start + batchSize);
+
+            // and locate each batch on the executor, storing responses at the index of their request
+            batches.add(CompletableFuture.runAsync(() ->
+            {
+                for (var at = from; at < to; at++)
                 {
-                    roadNameCloseness = matches(edge.roadNames(), desired, standardizer, edge.heading());
+                    var index = order[at];
+                    responses[index] = locate(requests.get(index));
                 }
-                if (desired == null || (roadNameCloseness.isGreaterThan(configuration.roadNameCloseness())
-                        && roadNameCloseness.isGreaterThanOrEqualTo(highestRoadNameCloseness)))
+            }, executor));
+        }
+
+        // then wait for all batches to complete.
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * Locates the nearest appropriate edge for each request in the given stream. Requests are consumed in windows of
+     * several batches, and each window is located with {@link #locateAll(List)}, so only one window of requests and
+     * responses is held in memory at a time.
+     *
+     * @param requests The stream of requests to locate
+     * @return A sequential stream of responses in the same order as the requests
+     */
+    public Stream<Response> locateAll(Stream<Request> requests)
+    {
+        var windowSize = Math.max(1, configuration.batchSize().asInt()) * Runtime.getRuntime().availableProcessors();
+        var iterator = requests.iterator();
+        var windows = new Iterator<List<Response>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public List<Response> next()
+            {
+                var window = new ArrayList<Request>(windowSize);
+                while (iterator.hasNext() && window.size() < windowSize)
                 {
-                    highestRoadNameCloseness = roadNameCloseness;
-                    // then snap the location to the edge
-                    var snap = snapper.snap(edge, location);
+                    window.add(iterator.next());
+                }
+                return locateAll(window);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(windows, Spliterator.ORDERED), false)
+                .flatMap(List::stream);
+    }
 
-                    // and if the snap is the closest we've seen so far,
-                    if (snap.distanceToSource().isLessThan(closestDistance))
-                    {
-                        // create a new response
-                        closestDistance = snap.distanceToSource();
-                        response = new Response(edge, snap, roadNameCloseness);
-                    }
+    /**
+     * Returns a new context for locating requests with {@link #locate(Request, Context)} on one thread
+     */
+    public Context newContext()
+    {
+        return new Context();
+    }
+
+    /**
+     * Returns the distance of the given point along a Hilbert curve of order 31 that covers the world
+     */
+    private static long hilbertDistance(long x, long y)
+    {
+        var n = 1L << 31;
+        var distance = 0L;
+        for (var s = n / 2; s > 0; s /= 2)
+        {
+            var rx = (x & s) > 0 ? 1L : 0L;
+            var ry = (y & s) > 0 ? 1L : 0L;
+            distance += s * s * ((3 * rx) ^ ry);
+
+            // Rotate the quadrant so the curve stays continuous
+            if (ry == 0)
+            {
+                if (rx == 1)
+                {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
                 }
+                var swap = x;
+                x = y;
+                y = swap;
             }
         }
+        return distance;
+    }
+
+    /**
+     * Returns the indexes of the given requests sorted by the Hilbert curve distance of their locations
+     */
+    private static int[] hilbertOrder(List<Request> requests)
+    {
+        var scale = (double) ((1L << 31) - 1);
+        var distances = new long[requests.size()];
+        for (var index = 0; index < distances.length; index++)
+        {
+            var location = requests.get(index).location();
+            if (location != null)
+            {
+                var x = (long) ((location.longitudeInDegrees() + 180.0) / 360.0 * scale);
+                var y = (long) ((location.latitudeInDegrees() + 90.0) / 180.0 * scale);
+                distances[index] = hilbertDistance(x, y);
+            }
+        }
+        return IntStream.range(0, distances.length)
+                .boxed()
+                .sorted(Comparator.comparingLong(index -> distances[index]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    /**
+     * Locates the nearest appropriate edge for the given search
+     */
+    private Response locate(Search search)
+    {
+        // Find the edges that pass the heading and road name filters,
+        var candidates = search.candidates(configuration.within(), true);
+
+        // then visit them from the nearest bounding box to the farthest (the sort is stable, so candidates with
+        // equal bounds stay in their original order),
+        var sorted = search.sortedByLowerBound();
+        var closestDistance = Double.MAX_VALUE;
+        var closest = Integer.MAX_VALUE;
+        PolylineSnap closestSnap = null;
+        for (var at = 0; at < candidates; at++)
+        {
+            // and once no remaining candidate can be as close as the closest snap so far, or the request is out of
+            // time, we're done (the candidate limit only bounds gathering, so every candidate gathered is considered).
+            var candidate = sorted[at];
+            if (closest != Integer.MAX_VALUE
+                    && (search.lowerBounds[candidate] > closestDistance || search.outOfTime()))
+            {
+                break;
+            }
+
+            // Otherwise, measure the distance to the candidate edge,
+            var distance = search.distance(search.edges[candidate]);
+
+            // and if it's the closest we've seen so far (breaking ties in favor of the edge that came first from the
+            // spatial index),
+            if (distance < closestDistance || (distance == closestDistance && candidate < closest))
+            {
+                // it's the one to beat.
+                closestDistance = distance;
+                closest = candidate;
+                closestSnap = search.snapped;
+            }
+        }
+
+        // Only the winner gets a response (and is snapped, if the kernel measured its distance)
+        if (closest == Integer.MAX_VALUE)
+        {
+            return null;
+        }
+        var edge = search.edges[closest];
+        var response = new Response(edge, closestSnap != null ? closestSnap : search.snap(edge),
+                percent(search.roadNameCloseness[closest]));
+        response.partial = search.partial();
         return response;
     }
 
-    private Percent matches(Set<RoadName> roadNames,
-                            RoadName desired,
-                            RoadNameStandardizer standardizer,
-                            Heading edgeHeading)
+    /**
+     * Snaps the given number of candidates in order of their bounding boxes, keeping the given number of nearest in a
+     * bounded heap whose top is the farthest kept, and stopping once no remaining bounding box is nearer than that
+     *
+     * @return Responses for the nearest candidates, nearest first
+     */
+    private List<Response> nearest(Search search, int candidates, int wanted)
     {
-        var highestScore = Percent._0;
-        for (var roadName : roadNames)
+        var sorted = search.sortedByLowerBound();
+        Comparator<Snapped> nearestFirst = Comparator
+                .comparingDouble((Snapped snapped) -> snapped.distance)
+                .thenComparingInt(snapped -> snapped.order);
+        var heap = new PriorityQueue<>(wanted + 1, nearestFirst.reversed());
+        for (var at = 0; at < candidates; at++)
+        {
+            var candidate = sorted[at];
+            if ((heap.size() == wanted && search.lowerBounds[candidate] > heap.peek().distance)
+                    || (!heap.isEmpty() && search.outOfTime()))
+            {
+                break;
+            }
+            var edge = search.edges[candidate];
+            var distance = search.distance(edge);
+            heap.add(new Snapped(edge, search.roadNameCloseness[candidate], candidate, search.snapped, distance));
+            if (heap.size() > wanted)
+            {
+                heap.poll();
+            }
+        }
+
+        var nearest = new ArrayList<>(heap);
+        nearest.sort(nearestFirst);
+        var responses = new ArrayList<Response>(nearest.size());
+        for (var snapped : nearest)
+        {
+            var snap = snapped.snap != null ? snapped.snap : search.snap(snapped.edge);
+            var response = new Response(snapped.edge, snap, percent(snapped.roadNameCloseness));
+            response.partial = search.partial();
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Returns a lower bound on the distance in meters from the given location to any point on the given edge. This
+     * is the great circle distance to the nearest point of the edge's bounding box, reduced slightly so that it is
+     * never more than the distance computed by snapping, even though the box is measured in degrees.
+     */
+    private static double lowerBoundInMeters(Edge edge, double latitude, double longitude)
+    {
+        var bounds = edge.bounds();
+        return lowerBoundInMeters(bounds.bottomLeft().latitudeInDegrees(), bounds.bottomLeft().longitudeInDegrees(),
+                bounds.topRight().latitudeInDegrees(), bounds.topRight().longitudeInDegrees(), latitude, longitude);
+    }
+
+    /**
+     * Returns a lower bound on the distance in meters from the given location to the given bounding box in degrees
+     */
+    private static double lowerBoundInMeters(double bottom, double left, double top, double right,
+                                             double latitude, double longitude)
+    {
+        var nearestLatitude = Math.max(bottom, Math.min(top, latitude));
+        var nearestLongitude = Math.max(left, Math.min(right, longitude));
+        if (nearestLatitude == latitude && nearestLongitude == longitude)
+        {
+            return 0;
+        }
+
+        // Compute the haversine distance without creating locations or distances
+        var latitudeSine = Math.sin(Math.toRadians(nearestLatitude - latitude) / 2);
+        var longitudeSine = Math.sin(Math.toRadians(nearestLongitude - longitude) / 2);
+        var a = latitudeSine * latitudeSine + Math.cos(Math.toRadians(latitude))
+                * Math.cos(Math.toRadians(nearestLatitude)) * longitudeSine * longitudeSine;
+        return 2 * EARTH_RADIUS_IN_METERS * Math.asin(Math.min(1.0, Math.sqrt(a))) * LOWER_BOUND_SLACK;
+    }
+
+    /**
+     * Returns the closeness, as a percentage, of the edge's road name that is closest to the desired road name. If that
+     * closeness can't make the edge a candidate of the search, a lower value may be returned.
+     */
+    private double matches(Edge edge, Search search)
+    {
+        var matcher = configuration.roadNameMatcher();
+        var desired = search.desired;
+        var standardizer = search.standardizer;
+        var highestScore = 0.0;
+
+        // Names that are no closer than this can't make the edge a candidate, so they needn't be scored exactly
+        var bound = search.closestNamesOnly
+                ? Math.max(search.threshold, Math.nextDown(search.highestRoadNameCloseness))
+                : search.threshold;
+
+        // If there's an index, match against the edge's pre-standardized names
+        if (roadNameIndex != null)
+        {
+            var started = search.now();
+            var roadNames = search.desiredHasDirection
+                    ? roadNameIndex.directionalNames(edge)
+                    : roadNameIndex.standardizedNames(edge);
+            for (var roadName : roadNames)
+            {
+                highestScore = Math.max(highestScore,
+                        matcher.closeness(roadName, desired, Math.max(bound, highestScore)));
+            }
+            search.time(Phase.NAME_MATCHING, started);
+            return highestScore;
+        }
+
+        for (var roadName : edge.roadNames())
         {
             // and if the edge is named,
             if (roadName != null)
             {
-                if (desired.extractDirection() != null && roadName.extractDirection() == null)
+                var started = search.now();
+                if (search.desiredHasDirection && roadName.extractDirection() == null)
                 {
-                    roadName = RoadName.forName(roadName.name() + " " + edgeHeading.asApproximateDirection());
+                    roadName = RoadName.forName(roadName.name() + " " + edge.heading().asApproximateDirection());
                 }
-                // and the standardized road name matches the desired road name,
-                var score = configuration.roadNameMatcher().matches(
-                        standardizer != null ? standardizer.standardize(roadName).asRoadName() : roadName, desired);
-                if (score.isGreaterThan(highestScore))
+                if (standardizer != null)
                 {
-                    highestScore = score;
+                    roadName = standardizer.standardize(roadName).asRoadName();
                 }
+                search.time(Phase.STANDARDIZATION, started);
+
+                // and the standardized road name matches the desired road name,
+                started = search.now();
+                highestScore = Math.max(highestScore,
+                        matcher.closeness(roadName, desired, Math.max(bound, highestScore)));
+                search.time(Phase.NAME_MATCHING, started);
             }
         }
         return highestScore;
@@ -0,0 +1,383 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.caching;
+
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.measurements.geographic.Angle;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+import com.telenav.mesakit.map.measurements.geographic.Heading;
+import com.telenav.mesakit.map.road.model.RoadName;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of the edges located by a {@link com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder}.
+ * Requests are keyed by:
+ *
+ * <ul>
+ *     <li>the square cell of the given size that the requested location falls in</li>
+ *     <li>the bucket of the given angle that the requested heading falls in (if any)</li>
+ *     <li>the standardized desired road name (if any)</li>
+ * </ul>
+ * <p>
+ * The cache holds the edge that was located for the first request with a key, and the geocoder snaps later requests
+ * with the same key to that edge. Responses from the cache are therefore approximate: near the boundary between the
+ * nearest edges of two streets, a request can get the edge located for a nearby point in the same cell. Cells should
+ * be small compared to the spacing of roads, and the cache should be left off where exact results are needed.
+ * <p>
+ * Entries are evicted when the cache is full (least recently used first) and when they are older than the maximum
+ * age. The cache is split into stripes, each with its own lock, so that threads rarely contend. Counts of hits,
+ * misses and evictions are kept, and the cache is cleared if it is used with a different graph instance than before.
+ * Each entry also records the graph it was located on, and is never returned for another graph, so an entry put by a
+ * thread that was still geocoding against the old graph while another thread cleared the cache is ignored. A cache
+ * should only be shared by geocoders with the same configuration.
+ *
+ * @author jonathanl (shibo)
+ */
+public class ReverseGeocoderCache
+{
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_319.49;
+
+    private static final int STRIPES = 64;
+
+    /**
+     * A cached result: the edge located and its road name closeness, or no edge if none was found
+     */
+    public static class Entry
+    {
+        /** The graph that the edge was located on */
+        private final Graph graph;
+
+        private final Edge edge;
+
+        private final Percent roadNameCloseness;
+
+        private final long created;
+
+        Entry(Graph graph, Edge edge, Percent roadNameCloseness, long created)
+        {
+            this.graph = graph;
+            this.edge = edge;
+            this.roadNameCloseness = roadNameCloseness;
+            this.created = created;
+        }
+
+        /**
+         * Returns the edge that was located, or null if no edge was found
+         */
+        public Edge edge()
+        {
+            return edge;
+        }
+
+        public Percent roadNameCloseness()
+        {
+            return roadNameCloseness;
+        }
+    }
+
+    /**
+     * The key for a request
+     */
+    public static class Key
+    {
+        private final long latitudeCell;
+
+        private final long longitudeCell;
+
+        private final int headingBucket;
+
+        private final String roadName;
+
+        Key(long latitudeCell, long longitudeCell, int headingBucket, String roadName)
+        {
+            this.latitudeCell = latitudeCell;
+            this.longitudeCell = longitudeCell;
+            this.headingBucket = headingBucket;
+            this.roadName = roadName;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (object instanceof Key)
+            {
+                var that = (Key) object;
+                return latitudeCell == that.latitudeCell
+                        && longitudeCell == that.longitudeCell
+                        && headingBucket == that.headingBucket
+                        && Objects.equals(roadName, that.roadName);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            var hash = Long.hashCode(latitudeCell * 0x9E3779B97F4A7C15L ^ longitudeCell);
+            return 31 * (31 * hash + headingBucket) + Objects.hashCode(roadName);
+        }
+    }
+
+    /**
+     * One lock's worth of the cache
+     */
+    private static class Stripe extends LinkedHashMap<Key, Entry>
+    {
+        private final int maximumSize;
+
+        private final LongAdder evictions;
+
+        Stripe(int maximumSize, LongAdder evictions)
+        {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+        {
+            if (size() > maximumSize)
+            {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final long maximumAgeNanoseconds;
+
+    private final double cellDegrees;
+
+    private final double headingBucketDegrees;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /** The graph that the cached edges belong to */
+    private volatile Graph graph;
+
+    /**
+     * Creates a cache with 2 meter cells and 30 degree heading buckets
+     *
+     * @param maximumSize The maximum number of entries to hold
+     * @param maximumAge The age at which entries are evicted
+     */
+    public ReverseGeocoderCache(Count maximumSize, Duration maximumAge)
+    {
+        this(maximumSize, maximumAge, Distance.meters(2), Angle.degrees(30));
+    }
+
+    /**
+     * @param maximumSize The maximum number of entries to hold
+     * @param maximumAge The age at which entries are evicted
+     * @param cellSize The size of the cells that requested locations are quantized to
+     * @param headingBucketSize The size of the buckets that requested headings are quantized to
+     */
+    public ReverseGeocoderCache(Count maximumSize, Duration maximumAge, Distance cellSize, Angle headingBucketSize)
+    {
+        var stripeSize = Math.max(1, (int) Math.min(Integer.MAX_VALUE, maximumSize.asLong() / STRIPES));
+        for (var index = 0; index < STRIPES; index++)
+        {
+            stripes[index] = new Stripe(stripeSize, evictions);
+        }
+        maximumAgeNanoseconds = (long) (maximumAge.asMilliseconds() * 1_000_000);
+        cellDegrees = cellSize.asMeters() / METERS_PER_DEGREE;
+        headingBucketDegrees = headingBucketSize.asDegrees();
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear()
+    {
+        for (var stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries evicted because the cache was full or they were too old
+     */
+    public long evictions()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the cached result for the given key, or null if there is none
+     *
+     * @param graph The graph being geocoded against. If this is not the graph that the cache was last used with, the
+     * cache is cleared.
+     */
+    public Entry get(Graph graph, Key key)
+    {
+        use(graph);
+        var stripe = stripe(key);
+        synchronized (stripe)
+        {
+            var entry = stripe.get(key);
+            if (entry != null && entry.graph != graph)
+            {
+                // An entry for another graph, put after the cache was last cleared, is discarded
+                stripe.remove(key);
+                entry = null;
+            }
+            if (entry != null && System.nanoTime() - entry.created > maximumAgeNanoseconds)
+            {
+                stripe.remove(key);
+                evictions.increment();
+                entry = null;
+            }
+            if (entry == null)
+            {
+                misses.increment();
+            }
+            else
+            {
+                hits.increment();
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found an entry
+     */
+    public long hits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the key for a request with the given location, heading and standardized road name
+     */
+    public Key key(Location location, Heading heading, RoadName roadName)
+    {
+        // Longitude cells are narrower in degrees away from the equator, so cells stay roughly square
+        var latitude = location.latitudeInDegrees();
+        var longitudeCellDegrees = cellDegrees / Math.max(0.01, Math.cos(Math.toRadians(latitude)));
+        return new Key(
+                (long) Math.floor(latitude / cellDegrees),
+                (long) Math.floor(location.longitudeInDegrees() / longitudeCellDegrees),
+                heading == null ? -1 : (int) Math.floor(normalized(heading.asDegrees()) / headingBucketDegrees),
+                roadName == null ? null : roadName.name());
+    }
+
+    /**
+     * Returns the number of lookups that found no entry
+     */
+    public long misses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Caches the result for the given key
+     *
+     * @param graph The graph being geocoded against
+     * @param edge The edge that was located, or null if none was found
+     * @param roadNameCloseness The road name closeness of the edge
+     */
+    public void put(Graph graph, Key key, Edge edge, Percent roadNameCloseness)
+    {
+        use(graph);
+        var stripe = stripe(key);
+        synchronized (stripe)
+        {
+            stripe.put(key, new Entry(graph, edge, roadNameCloseness, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Sets the counts of hits, misses and evictions back to zero
+     */
+    public void resetCounts()
+    {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * Returns the number of entries in the cache
+     */
+    public long size()
+    {
+        var size = 0L;
+        for (var stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private static double normalized(double degrees)
+    {
+        var normalized = degrees % 360.0;
+        return normalized < 0 ? normalized + 360.0 : normalized;
+    }
+
+    private Stripe stripe(Key key)
+    {
+        var hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Clears the cache if the given graph is not the one it was last used with
+     */
+    private void use(Graph graph)
+    {
+        if (this.graph != graph)
+        {
+            synchronized (this)
+            {
+                if (this.graph != graph)
+                {
+                    clear();
+                    this.graph = graph;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,538 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.indexing;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.map.geography.shape.rectangle.Rectangle;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * A uniform grid over the edges of a graph, for finding the edges near a point without walking the graph's spatial
+ * index. The grid is held in compressed sparse row form: one array of offsets with an entry for each cell, and one
+ * array of the edge slots in each cell, one cell after another. An edge is in every cell that its bounding box
+ * overlaps, and the bounding box of each edge is held in a primitive array, so a query reads a few cells and compares
+ * primitive bounds without allocating anything.
+ * <p>
+ * A long edge, like a ferry route, can be in a great many cells. If the entries of all cells together wouldn't fit in
+ * one array, building the grid fails with an {@link IllegalStateException}, and a larger cell size or the graph's
+ * own spatial index should be used instead.
+ * <p>
+ * {@link #intersecting(Rectangle, Matches)} finds the edges whose bounding boxes intersect an area. This is a superset
+ * of the edges that {@link Graph#edgesIntersecting(Rectangle)} returns if the graph tests edge shapes rather than
+ * bounding boxes, and edges are returned in cell order rather than in the order of the graph's spatial index.
+ * <p>
+ * The index is built once for a graph with {@link #EdgeGridIndex(Graph, Distance)}, counting and filling cells in
+ * parallel. It can be saved next to the graph's archive with {@link #save(File)} and reloaded with
+ * {@link #load(Listener, Graph, File)}, which skips computing edge bounds. The file next to a graph archive is given
+ * by {@link #sidecarFile(Listener, File)}. A saved grid starts with the {@link GraphIdentity} of its graph, and is only
+ * loaded for a graph with the same identity. The index holds every edge of the graph, so it needs about 100 bytes of
+ * memory per edge and as much again for the graph's edge objects.
+ *
+ * @author jonathanl (shibo)
+ */
+public class EdgeGridIndex extends BaseRepeater
+{
+    /** The extension of an edge grid file saved next to a graph archive */
+    public static final String EXTENSION = ".edge-grid";
+
+    /** Meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111_319.49;
+
+    /** The largest number of cells in a grid, beyond which cells are made larger */
+    private static final long MAXIMUM_CELLS = 1L << 26;
+
+    /** The largest number of edge entries in all cells together, which is the largest array that a JVM can allocate */
+    private static final long MAXIMUM_ENTRIES = Integer.MAX_VALUE - 8;
+
+    private static final int MAGIC = 0x45474958;
+
+    private static final int VERSION = 2;
+
+    /**
+     * The edges found by a query, which can be reused by one thread for any number of queries
+     */
+    public static class Matches
+    {
+        private Edge[] edges = new Edge[64];
+
+        /** The bottom, left, top and right of each edge's bounds in degrees */
+        private double[] bounds = new double[64 * 4];
+
+        private int count;
+
+        /**
+         * Returns the bottom of the bounds of the given match in degrees
+         */
+        public double bottom(int match)
+        {
+            return bounds[match * 4];
+        }
+
+        public int count()
+        {
+            return count;
+        }
+
+        public Edge edge(int match)
+        {
+            return edges[match];
+        }
+
+        /**
+         * Returns the left of the bounds of the given match in degrees
+         */
+        public double left(int match)
+        {
+            return bounds[match * 4 + 1];
+        }
+
+        /**
+         * Returns the right of the bounds of the given match in degrees
+         */
+        public double right(int match)
+        {
+            return bounds[match * 4 + 3];
+        }
+
+        /**
+         * Returns the top of the bounds of the given match in degrees
+         */
+        public double top(int match)
+        {
+            return bounds[match * 4 + 2];
+        }
+
+        void add(Edge edge, double[] bounds, int slot)
+        {
+            if (count == edges.length)
+            {
+                edges = Arrays.copyOf(edges, count * 2);
+                this.bounds = Arrays.copyOf(this.bounds, count * 2 * 4);
+            }
+            edges[count] = edge;
+            System.arraycopy(bounds, slot * 4, this.bounds, count * 4, 4);
+            count++;
+        }
+
+        /**
+         * Lets go of the edges found by the last query
+         */
+        public void clear()
+        {
+            Arrays.fill(edges, 0, count, null);
+            count = 0;
+        }
+    }
+
+    /**
+     * Loads the edge grid for the given graph from the given file
+     *
+     * @return The grid, or null if it could not be loaded or was saved for a different graph
+     */
+    public static EdgeGridIndex load(Listener listener, Graph graph, File file)
+    {
+        try (var in = new DataInputStream(new BufferedInputStream(file.openForReading())))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                listener.problem("$ is not an edge grid", file);
+                return null;
+            }
+            var identity = GraphIdentity.read(in);
+            var expected = GraphIdentity.of(graph);
+            if (!identity.matches(expected))
+            {
+                listener.problem("Edge grid $ was built for graph $, not $", file, identity, expected);
+                return null;
+            }
+
+            // Read the shape of the grid,
+            var bottom = in.readDouble();
+            var left = in.readDouble();
+            var cellHeight = in.readDouble();
+            var cellWidth = in.readDouble();
+            var rows = in.readInt();
+            var columns = in.readInt();
+
+            // the bounds of each edge slot,
+            var bounds = new double[in.readInt()];
+            for (var index = 0; index < bounds.length; index++)
+            {
+                bounds[index] = in.readDouble();
+            }
+
+            // and the cells.
+            var offsets = new int[rows * columns + 1];
+            for (var index = 0; index < offsets.length; index++)
+            {
+                offsets[index] = in.readInt();
+            }
+            var slots = new int[offsets[offsets.length - 1]];
+            for (var index = 0; index < slots.length; index++)
+            {
+                slots[index] = in.readInt();
+            }
+
+            var edges = edges(graph, bounds.length / 4);
+            return new EdgeGridIndex(graph, edges, bounds, bottom, left, cellHeight, cellWidth, rows, columns,
+                    offsets, slots);
+        }
+        catch (IOException e)
+        {
+            listener.problem(e, "Unable to load edge grid $", file);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file next to the given graph archive where an edge grid for the graph is saved
+     */
+    public static File sidecarFile(Listener listener, File graphFile)
+    {
+        return File.parseFile(listener, graphFile + EXTENSION);
+    }
+
+    private final Graph graph;
+
+    /** Edges by slot */
+    private final Edge[] edges;
+
+    /** The bottom, left, top and right of each edge slot's bounds in degrees, or NaN for empty slots */
+    private final double[] bounds;
+
+    /** The bottom left corner of the grid in degrees */
+    private final double bottom;
+
+    private final double left;
+
+    /** The size of each cell in degrees */
+    private final double cellHeight;
+
+    private final double cellWidth;
+
+    private final int rows;
+
+    private final int columns;
+
+    /** The start of each cell's edge slots in the slots array, with a final entry for the end of the last cell */
+    private final int[] offsets;
+
+    /** The edge slots in each cell, in increasing order */
+    private final int[] slots;
+
+    /**
+     * Builds an edge grid for the given graph with cells of about 250 meters
+     */
+    public EdgeGridIndex(Graph graph)
+    {
+        this(graph, Distance.meters(250));
+    }
+
+    /**
+     * Builds an edge grid for the given graph. Cells should be about as large as the distance searched by the reverse
+     * geocoder, so that a search reads only a few cells, each holding only a few edges.
+     *
+     * @param graph The graph to index
+     * @param cellSize The approximate width and height of each cell
+     */
+    public EdgeGridIndex(Graph graph, Distance cellSize)
+    {
+        this.graph = graph;
+
+        // Find the edge in each slot and compute its bounds,
+        var slotCount = 0;
+        for (var edge : graph.edges())
+        {
+            slotCount = Math.max(slotCount, RoadNameIndex.slot(edge) + 1);
+        }
+        edges = edges(graph, slotCount);
+        bounds = new double[slotCount * 4];
+        IntStream.range(0, slotCount).parallel().forEach(slot ->
+        {
+            var edge = edges[slot];
+            if (edge == null)
+            {
+                Arrays.fill(bounds, slot * 4, slot * 4 + 4, Double.NaN);
+            }
+            else
+            {
+                var edgeBounds = edge.bounds();
+                bounds[slot * 4] = edgeBounds.bottomLeft().latitudeInDegrees();
+                bounds[slot * 4 + 1] = edgeBounds.bottomLeft().longitudeInDegrees();
+                bounds[slot * 4 + 2] = edgeBounds.topRight().latitudeInDegrees();
+                bounds[slot * 4 + 3] = edgeBounds.topRight().longitudeInDegrees();
+            }
+        });
+
+        // then lay a grid over the bounds of all the edges,
+        var minimumLatitude = 90.0;
+        var minimumLongitude = 180.0;
+        var maximumLatitude = -90.0;
+        var maximumLongitude = -180.0;
+        for (var slot = 0; slot < slotCount; slot++)
+        {
+            if (edges[slot] != null)
+            {
+                minimumLatitude = Math.min(minimumLatitude, bounds[slot * 4]);
+                minimumLongitude = Math.min(minimumLongitude, bounds[slot * 4 + 1]);
+                maximumLatitude = Math.max(maximumLatitude, bounds[slot * 4 + 2]);
+                maximumLongitude = Math.max(maximumLongitude, bounds[slot * 4 + 3]);
+            }
+        }
+        if (minimumLatitude > maximumLatitude)
+        {
+            minimumLatitude = maximumLatitude = minimumLongitude = maximumLongitude = 0;
+        }
+        var middleLatitude = (minimumLatitude + maximumLatitude) / 2;
+        var height = cellSize.asMeters() / METERS_PER_DEGREE;
+        var width = height / Math.max(0.01, Math.cos(Math.toRadians(middleLatitude)));
+        var latitudeSpan = maximumLatitude - minimumLatitude;
+        var longitudeSpan = maximumLongitude - minimumLongitude;
+        while ((long) (latitudeSpan / height + 1) * (long) (longitudeSpan / width + 1) > MAXIMUM_CELLS)
+        {
+            // (with larger cells if there would be too many),
+            height *= 2;
+            width *= 2;
+        }
+        bottom = minimumLatitude;
+        left = minimumLongitude;
+        cellHeight = height;
+        cellWidth = width;
+        rows = (int) (latitudeSpan / height) + 1;
+        columns = (int) (longitudeSpan / width) + 1;
+
+        // count the edges in each cell,
+        var counts = new AtomicIntegerArray(rows * columns);
+        IntStream.range(0, slotCount).parallel().forEach(slot -> forEachCell(slot, counts::incrementAndGet));
+
+        // find where each cell starts (failing if edges with large bounds, like ferries, are in so many cells that
+        // the cells can't be held in one array),
+        offsets = new int[rows * columns + 1];
+        var total = 0L;
+        for (var cell = 0; cell < rows * columns; cell++)
+        {
+            total += counts.get(cell);
+            if (total > MAXIMUM_ENTRIES)
+            {
+                throw new IllegalStateException("Graph " + graph.name() + " has more than " + MAXIMUM_ENTRIES
+                        + " edge entries in a grid of " + rows + " by " + columns + " cells of " + cellSize
+                        + ", so it can't be indexed with an edge grid");
+            }
+            offsets[cell + 1] = (int) total;
+        }
+
+        // put each edge in its cells,
+        slots = new int[offsets[rows * columns]];
+        var next = new AtomicIntegerArray(offsets.length - 1);
+        IntStream.range(0, slotCount).parallel().forEach(slot ->
+                forEachCell(slot, cell -> slots[offsets[cell] + next.getAndIncrement(cell)] = slot));
+
+        // and sort each cell's edges so that the grid is the same however the threads ran.
+        IntStream.range(0, rows * columns).parallel().forEach(cell ->
+                Arrays.sort(slots, offsets[cell], offsets[cell + 1]));
+    }
+
+    private EdgeGridIndex(Graph graph, Edge[] edges, double[] bounds, double bottom, double left, double cellHeight,
+                          double cellWidth, int rows, int columns, int[] offsets, int[] slots)
+    {
+        this.graph = graph;
+        this.edges = edges;
+        this.bounds = bounds;
+        this.bottom = bottom;
+        this.left = left;
+        this.cellHeight = cellHeight;
+        this.cellWidth = cellWidth;
+        this.rows = rows;
+        this.columns = columns;
+        this.offsets = offsets;
+        this.slots = slots;
+    }
+
+    /**
+     * Returns the graph that this grid was built for
+     */
+    public Graph graph()
+    {
+        return graph;
+    }
+
+    /**
+     * Finds the edges whose bounding boxes intersect the given area
+     *
+     * @param area The area to search
+     * @param matches The matches to clear and fill with the edges found
+     */
+    public void intersecting(Rectangle area, Matches matches)
+    {
+        var bottomLeft = area.bottomLeft();
+        var topRight = area.topRight();
+        intersecting(bottomLeft.latitudeInDegrees(), bottomLeft.longitudeInDegrees(), topRight.latitudeInDegrees(),
+                topRight.longitudeInDegrees(), matches);
+    }
+
+    /**
+     * Finds the edges whose bounding boxes intersect the given area in degrees
+     */
+    public void intersecting(double areaBottom, double areaLeft, double areaTop, double areaRight, Matches matches)
+    {
+        matches.clear();
+
+        var firstRow = Math.max(0, row(areaBottom));
+        var lastRow = Math.min(rows - 1, row(areaTop));
+        var firstColumn = Math.max(0, column(areaLeft));
+        var lastColumn = Math.min(columns - 1, column(areaRight));
+
+        for (var row = firstRow; row <= lastRow; row++)
+        {
+            for (var column = firstColumn; column <= lastColumn; column++)
+            {
+                var cell = row * columns + column;
+                for (var at = offsets[cell]; at < offsets[cell + 1]; at++)
+                {
+                    var slot = slots[at];
+                    var base = slot * 4;
+
+                    // If the edge's bounds intersect the area,
+                    if (bounds[base] <= areaTop && bounds[base + 2] >= areaBottom
+                            && bounds[base + 1] <= areaRight && bounds[base + 3] >= areaLeft)
+                    {
+                        // and this is the first cell of the area that the edge is in (so that each edge is found
+                        // only once), it's a match.
+                        if (row == Math.max(firstRow, row(bounds[base]))
+                                && column == Math.max(firstColumn, column(bounds[base + 1])))
+                        {
+                            matches.add(edges[slot], bounds, slot);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves this grid to the given file
+     *
+     * @return True if the grid was saved
+     */
+    public boolean save(File file)
+    {
+        try (var out = new DataOutputStream(new BufferedOutputStream(file.openForWriting())))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            GraphIdentity.of(graph).write(out);
+
+            out.writeDouble(bottom);
+            out.writeDouble(left);
+            out.writeDouble(cellHeight);
+            out.writeDouble(cellWidth);
+            out.writeInt(rows);
+            out.writeInt(columns);
+
+            out.writeInt(bounds.length);
+            for (var value : bounds)
+            {
+                out.writeDouble(value);
+            }
+            for (var offset : offsets)
+            {
+                out.writeInt(offset);
+            }
+            for (var slot : slots)
+            {
+                out.writeInt(slot);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to save edge grid to $", file);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the edges of the given graph by slot
+     */
+    static Edge[] edges(Graph graph, int slotCount)
+    {
+        var edges = new Edge[slotCount];
+        for (var edge : graph.edges())
+        {
+            var slot = RoadNameIndex.slot(edge);
+            if (slot < slotCount)
+            {
+                edges[slot] = edge;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Returns the column of the given longitude, which may be outside the grid
+     */
+    private int column(double longitude)
+    {
+        return (int) Math.floor((longitude - left) / cellWidth);
+    }
+
+    /**
+     * Calls the given consumer with each cell that the bounds of the edge in the given slot overlap
+     */
+    private void forEachCell(int slot, IntConsumer consumer)
+    {
+        if (edges[slot] != null)
+        {
+            var base = slot * 4;
+            var firstRow = Math.max(0, row(bounds[base]));
+            var lastRow = Math.min(rows - 1, row(bounds[base + 2]));
+            var firstColumn = Math.max(0, column(bounds[base + 1]));
+            var lastColumn = Math.min(columns - 1, column(bounds[base + 3]));
+            for (var row = firstRow; row <= lastRow; row++)
+            {
+                for (var column = firstColumn; column <= lastColumn; column++)
+                {
+                    consumer.accept(row * columns + column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the row of the given latitude, which may be outside the grid
+     */
+    private int row(double latitude)
+    {
+        return (int) Math.floor((latitude - bottom) / cellHeight);
+    }
+}
@@ -0,0 +1,127 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.indexing;
+
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+
+import java.util.stream.IntStream;
+
+/**
+ * The shape points of every edge in a graph, held as primitive arrays of latitudes and longitudes in degrees so that
+ * the {@link com.telenav.mesakit.graph.geocoding.reverse.snapping.SegmentDistanceKernel} can measure distances to an
+ * edge without creating locations. The points of each edge are stored one edge after another, and
+ * {@link #first(Edge)} and {@link #end(Edge)} give the range of an edge's points in the arrays.
+ * <p>
+ * The index is built in parallel from the road shapes of the graph's edges. It needs 16 bytes of memory for each shape
+ * point, and it is not saved, since it holds nothing that the graph doesn't.
+ *
+ * @author jonathanl (shibo)
+ */
+public class EdgeShapeIndex
+{
+    private final Graph graph;
+
+    /** The start of each edge slot's points in the arrays, with a final entry for the end of the last slot */
+    private final int[] offsets;
+
+    private final double[] latitudes;
+
+    private final double[] longitudes;
+
+    public EdgeShapeIndex(Graph graph)
+    {
+        this.graph = graph;
+
+        // Count the shape points of the edge in each slot,
+        var slotCount = 0;
+        for (var edge : graph.edges())
+        {
+            slotCount = Math.max(slotCount, RoadNameIndex.slot(edge) + 1);
+        }
+        var edges = EdgeGridIndex.edges(graph, slotCount);
+        var sizes = new int[slotCount];
+        IntStream.range(0, slotCount).parallel().forEach(slot ->
+                sizes[slot] = edges[slot] == null ? 0 : edges[slot].roadShape().size());
+
+        // find where each slot's points start,
+        offsets = new int[slotCount + 1];
+        for (var slot = 0; slot < slotCount; slot++)
+        {
+            offsets[slot + 1] = offsets[slot] + sizes[slot];
+        }
+
+        // and copy the points.
+        latitudes = new double[offsets[slotCount]];
+        longitudes = new double[offsets[slotCount]];
+        IntStream.range(0, slotCount).parallel().forEach(slot ->
+        {
+            if (edges[slot] != null)
+            {
+                var at = offsets[slot];
+                for (var location : edges[slot].roadShape())
+                {
+                    latitudes[at] = location.latitudeInDegrees();
+                    longitudes[at] = location.longitudeInDegrees();
+                    at++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the index after the last shape point of the given edge
+     */
+    public int end(Edge edge)
+    {
+        return offsets[RoadNameIndex.slot(edge) + 1];
+    }
+
+    /**
+     * Returns the index of the first shape point of the given edge
+     */
+    public int first(Edge edge)
+    {
+        return offsets[RoadNameIndex.slot(edge)];
+    }
+
+    /**
+     * Returns the graph that this index was built for
+     */
+    public Graph graph()
+    {
+        return graph;
+    }
+
+    /**
+     * Returns the latitudes of all shape points in degrees. The array must not be modified.
+     */
+    public double[] latitudes()
+    {
+        return latitudes;
+    }
+
+    /**
+     * Returns the longitudes of all shape points in degrees. The array must not be modified.
+     */
+    public double[] longitudes()
+    {
+        return longitudes;
+    }
+}
@@ -0,0 +1,189 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.indexing;
+
+import com.telenav.mesakit.graph.Graph;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Identifies the graph that an index saved next to a graph archive was built for, so that an index saved for one
+ * graph isn't loaded for another that happens to have the same number of edges. The identity is the graph's name, its
+ * edge count and a fingerprint of its metadata descriptor and of its first {@link #SAMPLED_EDGES} edges (their
+ * identifiers, way identifiers and end locations). Only a sample of edges is read, so that checking the identity of a
+ * large graph is quick.
+ * <p>
+ * An identity is saved as the edge count and fingerprint as longs, then the length of the name in UTF-8 bytes as an
+ * int, then the name's bytes, with {@link #write(DataOutput)} or {@link #write(ByteBuffer)}.
+ *
+ * @author jonathanl (shibo)
+ */
+public class GraphIdentity
+{
+    /** The number of edges that the fingerprint covers */
+    public static final int SAMPLED_EDGES = 4_096;
+
+    /**
+     * Returns the identity of the given graph
+     */
+    public static GraphIdentity of(Graph graph)
+    {
+        var fingerprint = mix(FNV_OFFSET, graph.edgeCount().asLong());
+        var metadata = graph.metadata();
+        if (metadata != null)
+        {
+            for (var character : String.valueOf(metadata.descriptor()).toCharArray())
+            {
+                fingerprint = mix(fingerprint, character);
+            }
+        }
+        var sampled = 0;
+        for (var edge : graph.edges())
+        {
+            if (sampled++ == SAMPLED_EDGES)
+            {
+                break;
+            }
+            fingerprint = mix(fingerprint, edge.identifierAsLong());
+            fingerprint = mix(fingerprint, edge.wayIdentifier().asLong());
+            fingerprint = mix(fingerprint, edge.fromLocation().asDm7Long());
+            fingerprint = mix(fingerprint, edge.toLocation().asDm7Long());
+        }
+        return new GraphIdentity(String.valueOf(graph.name()), graph.edgeCount().asLong(), fingerprint);
+    }
+
+    /**
+     * Reads an identity written by {@link #write(DataOutput)}
+     */
+    public static GraphIdentity read(DataInput in) throws IOException
+    {
+        var edgeCount = in.readLong();
+        var fingerprint = in.readLong();
+        var name = new byte[nameLength(in.readInt())];
+        in.readFully(name);
+        return new GraphIdentity(new String(name, UTF_8), edgeCount, fingerprint);
+    }
+
+    /**
+     * Reads an identity written by {@link #write(ByteBuffer)} at the buffer's position, advancing the position past it
+     */
+    public static GraphIdentity read(ByteBuffer buffer) throws IOException
+    {
+        if (buffer.remaining() < 20)
+        {
+            throw new IOException("Graph identity is truncated");
+        }
+        var edgeCount = buffer.getLong();
+        var fingerprint = buffer.getLong();
+        var length = nameLength(buffer.getInt());
+        if (buffer.remaining() < length)
+        {
+            throw new IOException("Graph identity is truncated");
+        }
+        var name = new byte[length];
+        buffer.get(name);
+        return new GraphIdentity(new String(name, UTF_8), edgeCount, fingerprint);
+    }
+
+    /** The FNV-1a offset basis and prime, used to mix values into a fingerprint */
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    /** The longest graph name that can be read, to reject a corrupt length before allocating */
+    private static final int MAXIMUM_NAME_LENGTH = 64 * 1024;
+
+    private static long mix(long fingerprint, long value)
+    {
+        return (fingerprint ^ value) * FNV_PRIME;
+    }
+
+    private static int nameLength(int length) throws IOException
+    {
+        if (length < 0 || length > MAXIMUM_NAME_LENGTH)
+        {
+            throw new IOException("Graph name length " + length + " is invalid");
+        }
+        return length;
+    }
+
+    private final String name;
+
+    private final long edgeCount;
+
+    private final long fingerprint;
+
+    private GraphIdentity(String name, long edgeCount, long fingerprint)
+    {
+        this.name = name;
+        this.edgeCount = edgeCount;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns true if this identity and the given one are of the same graph
+     */
+    public boolean matches(GraphIdentity that)
+    {
+        return name.equals(that.name) && edgeCount == that.edgeCount && fingerprint == that.fingerprint;
+    }
+
+    /**
+     * Returns the number of bytes that {@link #write(ByteBuffer)} writes
+     */
+    public int size()
+    {
+        return 8 + 8 + 4 + name.getBytes(UTF_8).length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " (" + edgeCount + " edges, fingerprint " + Long.toHexString(fingerprint) + ")";
+    }
+
+    /**
+     * Writes this identity to the given output
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        var bytes = name.getBytes(UTF_8);
+        out.writeLong(edgeCount);
+        out.writeLong(fingerprint);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes this identity to the given buffer at its position
+     */
+    public void write(ByteBuffer buffer)
+    {
+        var bytes = name.getBytes(UTF_8);
+        buffer.putLong(edgeCount);
+        buffer.putLong(fingerprint);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+}
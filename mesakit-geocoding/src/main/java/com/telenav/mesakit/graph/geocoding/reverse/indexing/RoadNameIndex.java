@@ -0,0 +1,353 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.indexing;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.map.road.model.RoadName;
+import com.telenav.mesakit.map.road.name.standardizer.RoadNameStandardizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the standardized road names of every edge in a graph, so that the reverse geocoder doesn't need to standardize
+ * the names of each candidate edge on every request. For each name of an edge, the index holds:
+ *
+ * <ul>
+ *     <li>the standardized name</li>
+ *     <li>the standardized name with the approximate direction of the edge's heading appended, if the name has no
+ *     direction of its own (this is the name that is matched when the desired road name has a direction)</li>
+ * </ul>
+ * <p>
+ * The index is built once for a graph with {@link #RoadNameIndex(Graph, RoadNameStandardizer)}. It can be saved next
+ * to the graph's archive with {@link #save(File)} and reloaded with {@link #load(Listener, Graph, File)}. The file
+ * next to a graph archive is given by {@link #sidecarFile(Listener, File)}. A saved index starts with the
+ * {@link GraphIdentity} of its graph, and is only loaded for a graph with the same identity.
+ * <p>
+ * Equal names are shared between edges, so the index holds only one object for each distinct name.
+ *
+ * @author jonathanl (shibo)
+ */
+public class RoadNameIndex extends BaseRepeater
+{
+    /** The extension of a road name index file saved next to a graph archive */
+    public static final String EXTENSION = ".road-names";
+
+    private static final int MAGIC = 0x524E4958;
+
+    private static final int VERSION = 2;
+
+    private static final RoadName[] NONE = new RoadName[0];
+
+    /**
+     * Loads the road name index for the given graph from the given file
+     *
+     * @return The index, or null if it could not be loaded or was saved for a different graph
+     */
+    public static RoadNameIndex load(Listener listener, Graph graph, File file)
+    {
+        try (var in = new DataInputStream(new BufferedInputStream(file.openForReading())))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                listener.problem("$ is not a road name index", file);
+                return null;
+            }
+            var identity = GraphIdentity.read(in);
+            var expected = GraphIdentity.of(graph);
+            if (!identity.matches(expected))
+            {
+                listener.problem("Road name index $ was built for graph $, not $", file, identity, expected);
+                return null;
+            }
+
+            // Read the table of distinct names,
+            var names = new RoadName[in.readInt()];
+            for (var index = 0; index < names.length; index++)
+            {
+                names[index] = RoadName.forName(in.readUTF());
+            }
+
+            // then the names of each edge slot
+            var slots = in.readInt();
+            var standardized = new RoadName[slots][];
+            var directional = new RoadName[slots][];
+            for (var slot = 0; slot < slots; slot++)
+            {
+                var count = readCount(in);
+                if (count > 0)
+                {
+                    standardized[slot] = new RoadName[count];
+                    directional[slot] = new RoadName[count];
+                    for (var at = 0; at < count; at++)
+                    {
+                        standardized[slot][at] = names[in.readInt()];
+                        directional[slot][at] = names[in.readInt()];
+                    }
+                }
+            }
+            return new RoadNameIndex(graph, standardized, directional);
+        }
+        catch (IOException e)
+        {
+            listener.problem(e, "Unable to load road name index $", file);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file next to the given graph archive where a road name index for the graph is saved
+     */
+    public static File sidecarFile(Listener listener, File graphFile)
+    {
+        return File.parseFile(listener, graphFile + EXTENSION);
+    }
+
+    private final Graph graph;
+
+    /** Standardized road names by edge slot */
+    private final RoadName[][] standardized;
+
+    /** Standardized road names extended with the edge's approximate direction, by edge slot */
+    private final RoadName[][] directional;
+
+    /**
+     * Builds a road name index for the given graph
+     *
+     * @param graph The graph to index
+     * @param standardizer The standardizer to apply to road names, or null to index names as they are. This should be
+     * the standardizer that the reverse geocoder is configured with.
+     */
+    public RoadNameIndex(Graph graph, RoadNameStandardizer standardizer)
+    {
+        this.graph = graph;
+
+        var slots = 0;
+        for (var edge : graph.edges())
+        {
+            slots = Math.max(slots, slot(edge) + 1);
+        }
+
+        standardized = new RoadName[slots][];
+        directional = new RoadName[slots][];
+
+        // Names are standardized once for each distinct name and direction, and equal results are shared
+        var standardizedForName = new HashMap<String, RoadName>();
+        var shared = new HashMap<String, RoadName>();
+
+        for (var edge : graph.edges())
+        {
+            var roadNames = edge.roadNames();
+            if (roadNames != null && !roadNames.isEmpty())
+            {
+                var edgeStandardized = new ArrayList<RoadName>();
+                var edgeDirectional = new ArrayList<RoadName>();
+                for (var roadName : roadNames)
+                {
+                    if (roadName != null)
+                    {
+                        var name = standardize(standardizer, standardizedForName, shared, roadName.name());
+                        edgeStandardized.add(name);
+                        edgeDirectional.add(roadName.extractDirection() == null
+                                ? standardize(standardizer, standardizedForName, shared,
+                                roadName.name() + " " + edge.heading().asApproximateDirection())
+                                : name);
+                    }
+                }
+                var slot = slot(edge);
+                standardized[slot] = edgeStandardized.toArray(NONE);
+                directional[slot] = edgeDirectional.toArray(NONE);
+            }
+        }
+    }
+
+    private RoadNameIndex(Graph graph, RoadName[][] standardized, RoadName[][] directional)
+    {
+        this.graph = graph;
+        this.standardized = standardized;
+        this.directional = directional;
+    }
+
+    /**
+     * Returns the standardized names of the given edge, extended with the edge's approximate direction where the name
+     * has no direction of its own. These are the names to match when the desired road name has a direction.
+     */
+    public RoadName[] directionalNames(Edge edge)
+    {
+        return names(directional, edge);
+    }
+
+    /**
+     * Returns the graph that this index was built for
+     */
+    public Graph graph()
+    {
+        return graph;
+    }
+
+    /**
+     * Saves this index to the given file
+     *
+     * @return True if the index was saved
+     */
+    public boolean save(File file)
+    {
+        try (var out = new DataOutputStream(new BufferedOutputStream(file.openForWriting())))
+        {
+            // Assign an index to each distinct name
+            var indexForName = new HashMap<String, Integer>();
+            var names = new ArrayList<String>();
+            for (var slot = 0; slot < standardized.length; slot++)
+            {
+                if (standardized[slot] != null)
+                {
+                    addNames(indexForName, names, standardized[slot]);
+                    addNames(indexForName, names, directional[slot]);
+                }
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            GraphIdentity.of(graph).write(out);
+
+            out.writeInt(names.size());
+            for (var name : names)
+            {
+                out.writeUTF(name);
+            }
+
+            out.writeInt(standardized.length);
+            for (var slot = 0; slot < standardized.length; slot++)
+            {
+                var count = standardized[slot] == null ? 0 : standardized[slot].length;
+                writeCount(out, count);
+                for (var at = 0; at < count; at++)
+                {
+                    out.writeInt(indexForName.get(standardized[slot][at].name()));
+                    out.writeInt(indexForName.get(directional[slot][at].name()));
+                }
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to save road name index to $", file);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the standardized names of the given edge
+     */
+    public RoadName[] standardizedNames(Edge edge)
+    {
+        return names(standardized, edge);
+    }
+
+    private static void addNames(Map<String, Integer> indexForName, List<String> names, RoadName[] roadNames)
+    {
+        for (var roadName : roadNames)
+        {
+            indexForName.computeIfAbsent(roadName.name(), name ->
+            {
+                names.add(name);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    private static RoadName[] names(RoadName[][] names, Edge edge)
+    {
+        var slot = slot(edge);
+        if (slot < names.length)
+        {
+            var edgeNames = names[slot];
+            if (edgeNames != null)
+            {
+                return edgeNames;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Reads a count written by {@link #writeCount(DataOutputStream, int)}
+     */
+    private static int readCount(DataInputStream in) throws IOException
+    {
+        var count = 0;
+        for (var shift = 0; shift < 32; shift += 7)
+        {
+            var next = in.readUnsignedByte();
+            count |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0 && count >= 0)
+            {
+                return count;
+            }
+        }
+        throw new IOException("Name count is invalid");
+    }
+
+    /**
+     * Returns the array slot for the given edge. Forward and reverse edges can share an index, so they are given
+     * adjacent slots.
+     */
+    public static int slot(Edge edge)
+    {
+        return edge.index() * 2 + (edge.identifierAsLong() < 0 ? 1 : 0);
+    }
+
+    private static RoadName standardize(RoadNameStandardizer standardizer,
+                                        Map<String, RoadName> standardizedForName,
+                                        Map<String, RoadName> shared,
+                                        String name)
+    {
+        return standardizedForName.computeIfAbsent(name, ignored ->
+        {
+            var roadName = RoadName.forName(name);
+            var standardized = standardizer != null ? standardizer.standardize(roadName).asRoadName() : roadName;
+            return shared.computeIfAbsent(standardized.name(), key -> standardized);
+        });
+    }
+
+    /**
+     * Writes the given count in seven-bit groups, lowest first, with the high bit set on all but the last group, so
+     * that the common counts (less than 128) take a single byte
+     */
+    private static void writeCount(DataOutputStream out, int count) throws IOException
+    {
+        while ((count & ~0x7F) != 0)
+        {
+            out.writeByte((count & 0x7F) | 0x80);
+            count >>>= 7;
+        }
+        out.writeByte(count);
+    }
+}
@@ -0,0 +1,218 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.indexing;
+
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.geocoding.reverse.matching.BoundedRoadNameMatcher;
+import com.telenav.mesakit.map.road.model.RoadName;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of the character trigrams in the standardized road names of each edge in a {@link RoadNameIndex}. The reverse
+ * geocoder uses this index to discard candidate edges whose names cannot possibly reach the configured road name
+ * closeness before running the road name matcher or snapping to the edge.
+ * <p>
+ * The filter relies on the q-gram lemma: if the edit distance between two strings is at most k, then they share at
+ * least max(length) - 2 - 3k trigrams (counted with multiplicity). The trigrams of an edge are the trigrams of all of
+ * its indexed names (both with and without the edge's direction), lowercased to match the case-insensitive edit
+ * distance of {@link BoundedRoadNameMatcher} and the fuzzy matcher. This gives an upper bound on the trigrams shared
+ * with any single name, so the filter never discards an edge that one of those matchers would accept. Names that are
+ * not ASCII are never filtered, since lowercasing them a character at a time may not agree with the matchers. The
+ * filter must not be used with matchers that are not based on edit distance, so the reverse geocoder only uses it with
+ * matchers whose {@link com.telenav.mesakit.graph.geocoding.reverse.matching.RoadNameMatcher#isEditDistanceBased()}
+ * returns true.
+ * <p>
+ * Since candidates already come from a spatial query, the trigrams are held by edge (as sorted arrays of trigram
+ * codes) rather than in posting lists by trigram, and a candidate is checked by merging two short sorted arrays.
+ * Edges with the same names share one array.
+ *
+ * @author jonathanl (shibo)
+ */
+public class RoadNameTrigramIndex
+{
+    /**
+     * The trigrams of a desired road name and the number of them that a candidate edge must share
+     */
+    public static class Query
+    {
+        private final int[] trigrams;
+
+        private final int minimumShared;
+
+        Query(int[] trigrams, int minimumShared)
+        {
+            this.trigrams = trigrams;
+            this.minimumShared = minimumShared;
+        }
+    }
+
+    private static final int[] NONE = new int[0];
+
+    /** Marks an edge with a name that is not ASCII, which is never filtered */
+    private static final int[] UNFILTERED = new int[0];
+
+    /** Sorted trigram codes by edge slot */
+    private final int[][] trigrams;
+
+    /**
+     * Builds a trigram index from the names in the given road name index
+     */
+    public RoadNameTrigramIndex(RoadNameIndex roadNameIndex)
+    {
+        var graph = roadNameIndex.graph();
+        var slots = 0;
+        for (var edge : graph.edges())
+        {
+            slots = Math.max(slots, RoadNameIndex.slot(edge) + 1);
+        }
+        trigrams = new int[slots][];
+
+        var shared = new HashMap<List<String>, int[]>();
+        for (var edge : graph.edges())
+        {
+            var standardized = roadNameIndex.standardizedNames(edge);
+            var directional = roadNameIndex.directionalNames(edge);
+            if (standardized.length > 0)
+            {
+                var names = new ArrayList<String>();
+                for (var at = 0; at < standardized.length; at++)
+                {
+                    names.add(standardized[at].name());
+                    names.add(directional[at].name());
+                }
+                trigrams[RoadNameIndex.slot(edge)] = shared.computeIfAbsent(names, key ->
+                        isAscii(key) ? trigrams(key) : UNFILTERED);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the names of the given edge share enough trigrams with the query's name that one of them could
+     * reach the query's closeness
+     */
+    public boolean mayMatch(Edge edge, Query query)
+    {
+        var slot = RoadNameIndex.slot(edge);
+        var candidate = slot < trigrams.length && trigrams[slot] != null ? trigrams[slot] : NONE;
+        if (candidate == UNFILTERED)
+        {
+            return true;
+        }
+        var desired = query.trigrams;
+        var needed = query.minimumShared;
+
+        // Merge the two sorted arrays, counting shared trigrams until we have enough or can't get enough
+        int i = 0, j = 0, shared = 0;
+        while (i < desired.length && j < candidate.length)
+        {
+            if (shared + Math.min(desired.length - i, candidate.length - j) < needed)
+            {
+                return false;
+            }
+            if (desired[i] == candidate[j])
+            {
+                if (++shared >= needed)
+                {
+                    return true;
+                }
+                i++;
+                j++;
+            }
+            else if (desired[i] < candidate[j])
+            {
+                i++;
+            }
+            else
+            {
+                j++;
+            }
+        }
+        return shared >= needed;
+    }
+
+    /**
+     * Returns a query for the given (standardized) desired road name and closeness, or null if no edge could be
+     * excluded by trigrams, because the name is short or not ASCII or the closeness is low
+     */
+    public Query query(RoadName desired, Percent closeness)
+    {
+        var name = desired.name();
+        var maximumDistance = BoundedRoadNameMatcher.maximumDistance(closeness, name.length());
+        if (maximumDistance < 0 || !isAscii(List.of(name)))
+        {
+            return null;
+        }
+        var minimumShared = (long) name.length() - 2 - 3L * maximumDistance;
+        if (minimumShared <= 0)
+        {
+            return null;
+        }
+        return new Query(trigrams(List.of(name)), (int) minimumShared);
+    }
+
+    private static boolean isAscii(List<String> names)
+    {
+        for (var name : names)
+        {
+            for (var at = 0; at < name.length(); at++)
+            {
+                if (name.charAt(at) >= 128)
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static char lowerCase(char character)
+    {
+        return character >= 'A' && character <= 'Z' ? (char) (character + ('a' - 'A')) : character;
+    }
+
+    /**
+     * Returns the sorted trigram codes of the given names. Distinct trigrams may share a code, which can only
+     * increase the number of shared trigrams, so the filter stays conservative.
+     */
+    private static int[] trigrams(List<String> names)
+    {
+        var count = 0;
+        for (var name : names)
+        {
+            count += Math.max(0, name.length() - 2);
+        }
+        var codes = new int[count];
+        var at = 0;
+        for (var name : names)
+        {
+            for (var start = 0; start + 2 < name.length(); start++)
+            {
+                codes[at++] = (lowerCase(name.charAt(start)) * 31 + lowerCase(name.charAt(start + 1))) * 31
+                        + lowerCase(name.charAt(start + 2));
+            }
+        }
+        Arrays.sort(codes);
+        return codes;
+    }
+}
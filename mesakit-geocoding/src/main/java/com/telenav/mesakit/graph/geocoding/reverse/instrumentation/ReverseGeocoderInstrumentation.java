@@ -0,0 +1,212 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.instrumentation;
+
+import com.telenav.mesakit.graph.geocoding.statistics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and counts for the phases of locating edges with a
+ * {@link com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder}. Instrumentation is turned on by setting it in
+ * the geocoder's configuration, and it can be shared by any number of geocoders and threads.
+ * <p>
+ * While a request is located, the time spent in each {@link Phase} is added up in a {@link Timings} object that
+ * belongs to the request, so that a phase which runs once per candidate edge costs only a couple of clock reads each
+ * time. When the request is done, the total for each phase that ran is recorded in the phase's
+ * {@link LatencyHistogram}, and the request's total latency, candidate edges and snaps are added to the overall counts.
+ * Histograms and counts can be read at any time and reset with {@link #reset()}.
+ *
+ * @author jonathanl (shibo)
+ */
+public class ReverseGeocoderInstrumentation
+{
+    /**
+     * The phases of locating edges for a request
+     */
+    public enum Phase
+    {
+        /** Retrieving edges near the requested location from the graph's spatial index */
+        SPATIAL_FETCH,
+
+        /** Comparing edge headings with the requested heading */
+        HEADING_FILTER,
+
+        /** Standardizing the requested road name and, without a road name index, the names of candidate edges */
+        STANDARDIZATION,
+
+        /** Filtering by road name trigrams and matching road names */
+        NAME_MATCHING,
+
+        /** Snapping the requested location to candidate edges */
+        SNAPPING
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    /**
+     * The time spent in each phase for a single request, which is recorded when the request is done. Timings are used
+     * by one thread at a time.
+     */
+    public static class Timings
+    {
+        private final long started = System.nanoTime();
+
+        private final long[] nanoseconds = new long[PHASES.length];
+
+        private final int[] intervals = new int[PHASES.length];
+
+        private int examined;
+
+        private int snaps;
+
+        Timings()
+        {
+        }
+
+        /**
+         * Adds the given time to the given phase
+         */
+        public void add(Phase phase, long nanoseconds)
+        {
+            var index = phase.ordinal();
+            this.nanoseconds[index] += nanoseconds;
+            intervals[index]++;
+        }
+
+        /**
+         * Counts a candidate edge returned by the spatial index
+         */
+        public void examined()
+        {
+            examined++;
+        }
+
+        /**
+         * Counts a snap of the requested location to an edge
+         */
+        public void snapped()
+        {
+            snaps++;
+        }
+    }
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+    private final LatencyHistogram requests = new LatencyHistogram();
+
+    private final LongAdder examined = new LongAdder();
+
+    private final LongAdder snaps = new LongAdder();
+
+    public ReverseGeocoderInstrumentation()
+    {
+        for (var index = 0; index < phases.length; index++)
+        {
+            phases[index] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the number of candidate edges returned by the spatial index for all requests
+     */
+    public long candidatesExamined()
+    {
+        return examined.sum();
+    }
+
+    /**
+     * Records the given timings of a request that is done
+     */
+    public void finish(Timings timings)
+    {
+        requests.record(System.nanoTime() - timings.started);
+        for (var index = 0; index < phases.length; index++)
+        {
+            if (timings.intervals[index] > 0)
+            {
+                phases[index].record(timings.nanoseconds[index]);
+            }
+        }
+        examined.add(timings.examined);
+        snaps.add(timings.snaps);
+    }
+
+    /**
+     * Returns the histogram of the time each request spent in the given phase. Requests that didn't enter the phase
+     * at all (such as requests without a road name for {@link Phase#NAME_MATCHING}) are not counted.
+     */
+    public LatencyHistogram latencies(Phase phase)
+    {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Returns the histogram of the total time taken by each request
+     */
+    public LatencyHistogram requests()
+    {
+        return requests;
+    }
+
+    /**
+     * Clears all histograms and counts
+     */
+    public void reset()
+    {
+        for (var phase : phases)
+        {
+            phase.reset();
+        }
+        requests.reset();
+        examined.reset();
+        snaps.reset();
+    }
+
+    /**
+     * Returns the number of snaps performed for all requests
+     */
+    public long snaps()
+    {
+        return snaps.sum();
+    }
+
+    /**
+     * Returns timings for a request that is starting
+     */
+    public Timings start()
+    {
+        return new Timings();
+    }
+
+    @Override
+    public String toString()
+    {
+        var builder = new StringBuilder();
+        builder.append("requests: ").append(requests);
+        for (var phase : PHASES)
+        {
+            builder.append('\n').append(phase.name().toLowerCase().replace('_', ' ')).append(": ")
+                    .append(latencies(phase));
+        }
+        builder.append("\ncandidates examined: ").append(candidatesExamined());
+        builder.append("\nsnaps: ").append(snaps());
+        return builder.toString();
+    }
+}
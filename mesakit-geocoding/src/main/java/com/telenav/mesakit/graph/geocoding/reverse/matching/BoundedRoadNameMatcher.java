@@ -0,0 +1,249 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.matching;
+
+import com.telenav.kivakit.core.string.StringSimilarity;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.map.road.model.RoadName;
+
+import static com.telenav.kivakit.core.value.level.Percent.percent;
+
+/**
+ * A {@link RoadNameMatcher} that scores names exactly like {@link FuzzyRoadNameMatcher}, but which stops computing the
+ * edit distance between two names as soon as they can no longer reach the closeness given at construction. Names of
+ * up to 64 ASCII characters are compared with Myers' bit-parallel algorithm, which computes a whole column of the edit
+ * distance table with a few word operations and without lowercasing either name into a new string. Longer or non-ASCII
+ * names fall back to {@link StringSimilarity#levenshteinDistance(String, String)}.
+ * <p>
+ * Since scores at or below the closeness threshold are never used by the reverse geocoder, any candidate that cannot
+ * exceed the threshold scores {@link Percent#_0} instead of its exact closeness.
+ *
+ * @author jonathanl (shibo)
+ */
+public class BoundedRoadNameMatcher implements RoadNameMatcher
+{
+    /** Per-thread table of pattern bit masks, indexed by lowercase ASCII character */
+    private static final ThreadLocal<long[]> PATTERN_MASKS = ThreadLocal.withInitial(() -> new long[128]);
+
+    /** The closeness that a candidate must exceed, or null if there is no bound */
+    private final Percent closeness;
+
+    /**
+     * @param closeness The closeness that a candidate name must exceed to match, normally
+     * {@link com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder.Configuration#roadNameCloseness()}
+     */
+    public BoundedRoadNameMatcher(Percent closeness)
+    {
+        this.closeness = closeness;
+    }
+
+    @Override
+    public double closeness(RoadName candidate, RoadName desired)
+    {
+        // If the candidate precisely matches (ignoring case) the name we're looking for
+        if (candidate.equals(desired))
+        {
+            return 100.0;
+        }
+
+        // If directions were specified and they don't match
+        var candidateDirection = candidate.extractDirection();
+        var desiredDirection = desired.extractDirection();
+        if (candidateDirection != null && desiredDirection != null && !candidateDirection.equals(desiredDirection))
+        {
+            // then the road names don't match
+            return 0.0;
+        }
+
+        // Find the largest edit distance that still exceeds the closeness threshold
+        var length = desired.name().length();
+        var maximumDistance = maximumDistance(closeness, length);
+        if (maximumDistance < 0)
+        {
+            return 0.0;
+        }
+
+        // and compute the edit distance between the two names, giving up once it exceeds that distance.
+        var distance = distance(candidate.name(), desired.name(), maximumDistance);
+        if (distance > maximumDistance)
+        {
+            return 0.0;
+        }
+
+        // The score is then computed exactly as FuzzyRoadNameMatcher does
+        var percentage = (length - distance) * 100.0 / length;
+        if (percentage < 0.0)
+        {
+            percentage = 0;
+        }
+        if (percentage > 100.0)
+        {
+            percentage = 100;
+        }
+
+        return percentage;
+    }
+
+    @Override
+    public boolean isEditDistanceBased()
+    {
+        return true;
+    }
+
+    @Override
+    public Percent matches(RoadName candidate, RoadName desired)
+    {
+        var closeness = closeness(candidate, desired);
+        return closeness == 100.0 ? Percent._100 : closeness == 0.0 ? Percent._0 : percent(closeness);
+    }
+
+    /**
+     * Returns the case-insensitive edit distance between a and b if it is no more than the given maximum, or some
+     * value larger than the maximum if it is not
+     */
+    static int distance(String a, String b, int maximum)
+    {
+        // The edit distance is at least the difference in length
+        if (Math.abs(a.length() - b.length()) > maximum)
+        {
+            return maximum + 1;
+        }
+
+        // Use the shorter name as the pattern,
+        var pattern = a.length() <= b.length() ? a : b;
+        var text = pattern == a ? b : a;
+        if (pattern.isEmpty())
+        {
+            return text.length();
+        }
+
+        // and if it's too long for a machine word or either name isn't ASCII, fall back to the full computation
+        if (pattern.length() > 64 || !isAscii(pattern) || !isAscii(text))
+        {
+            return StringSimilarity.levenshteinDistance(a.toLowerCase(), b.toLowerCase());
+        }
+
+        return myersDistance(pattern, text, maximum);
+    }
+
+    private static boolean isAscii(String text)
+    {
+        for (var at = 0; at < text.length(); at++)
+        {
+            if (text.charAt(at) >= 128)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char lowerCase(char character)
+    {
+        return character >= 'A' && character <= 'Z' ? (char) (character + ('a' - 'A')) : character;
+    }
+
+    /**
+     * Myers' bit-parallel global edit distance (in Hyyrö's formulation). Each bit of the vertical delta vectors
+     * corresponds to one pattern character, so each text character advances a whole column of the edit distance table.
+     * Since the last row of the table can decrease by at most one for each remaining text character, the computation
+     * stops as soon as the distance can no longer come back under the maximum.
+     */
+    private static int myersDistance(String pattern, String text, int maximum)
+    {
+        var masks = PATTERN_MASKS.get();
+        var m = pattern.length();
+        var n = text.length();
+        try
+        {
+            for (var at = 0; at < m; at++)
+            {
+                masks[lowerCase(pattern.charAt(at))] |= 1L << at;
+            }
+
+            var positive = m == 64 ? -1L : (1L << m) - 1;
+            var negative = 0L;
+            var last = 1L << (m - 1);
+            var score = m;
+
+            for (var at = 0; at < n; at++)
+            {
+                var equal = masks[lowerCase(text.charAt(at))];
+                var vertical = equal | negative;
+                var horizontal = (((equal & positive) + positive) ^ positive) | equal;
+                var horizontalPositive = negative | ~(horizontal | positive);
+                var horizontalNegative = positive & horizontal;
+
+                if ((horizontalPositive & last) != 0)
+                {
+                    score++;
+                }
+                else if ((horizontalNegative & last) != 0)
+                {
+                    score--;
+                }
+
+                horizontalPositive = (horizontalPositive << 1) | 1;
+                horizontalNegative <<= 1;
+                positive = horizontalNegative | ~(vertical | horizontalPositive);
+                negative = horizontalPositive & vertical;
+
+                if (score - (n - at - 1) > maximum)
+                {
+                    return maximum + 1;
+                }
+            }
+            return score;
+        }
+        finally
+        {
+            // Clear only the entries this pattern used so the table can be reused
+            for (var at = 0; at < m; at++)
+            {
+                masks[lowerCase(pattern.charAt(at))] = 0L;
+            }
+        }
+    }
+
+    /**
+     * Returns the largest edit distance from a desired name of the given length that still scores above the given
+     * closeness threshold, or -1 if no distance does
+     *
+     * @param closeness The closeness threshold, or null if there is no threshold
+     * @param length The length of the desired name
+     */
+    public static int maximumDistance(Percent closeness, int length)
+    {
+        if (length == 0)
+        {
+            return -1;
+        }
+        if (closeness == null)
+        {
+            return Integer.MAX_VALUE - 1;
+        }
+        var threshold = closeness.value();
+        var maximum = length;
+        while (maximum >= 0 && !(Math.min(100.0, (length - maximum) * 100.0 / length) > threshold))
+        {
+            maximum--;
+        }
+        return maximum;
+    }
+}
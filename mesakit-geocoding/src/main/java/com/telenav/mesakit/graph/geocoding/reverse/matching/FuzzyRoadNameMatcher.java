@@ -27,12 +27,12 @@ import static com.telenav.kivakit.core.value.level.Percent.percent;
 public class FuzzyRoadNameMatcher implements RoadNameMatcher
 {
     @Override
-    public Percent matches(RoadName candidate, RoadName desired)
+    public double closeness(RoadName candidate, RoadName desired)
     {
         // If the candidate precisely matches (ignoring case) the name we're looking for
         if (candidate.equals(desired))
         {
-            return Percent._100;
+            return 100.0;
         }
 
         // If directions were specified and they don't match
@@ -41,7 +41,7 @@ public class FuzzyRoadNameMatcher implements RoadNameMatcher
         if (candidateDirection != null && desiredDirection != null && !candidateDirection.equals(desiredDirection))
         {
             // then the road names don't match
-            return Percent._0;
+            return 0.0;
         }
 
         // compute the edit distance between the two names
@@ -60,6 +60,19 @@ public class FuzzyRoadNameMatcher implements RoadNameMatcher
             percentage = 100;
         }
 
-        return percent(percentage);
+        return percentage;
+    }
+
+    @Override
+    public boolean isEditDistanceBased()
+    {
+        return true;
+    }
+
+    @Override
+    public Percent matches(RoadName candidate, RoadName desired)
+    {
+        var closeness = closeness(candidate, desired);
+        return closeness == 100.0 ? Percent._100 : closeness == 0.0 ? Percent._0 : percent(closeness);
     }
 }
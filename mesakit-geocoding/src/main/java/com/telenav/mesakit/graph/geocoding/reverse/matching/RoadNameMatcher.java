@@ -24,5 +24,37 @@ import com.telenav.mesakit.map.road.model.RoadName;
 
 public interface RoadNameMatcher
 {
+    /**
+     * Returns the closeness of the candidate road name to the desired one as a percentage from 0 to 100. Matchers
+     * should override this to compute the value without allocating a {@link Percent}, since it is called for every
+     * name of every candidate edge.
+     */
+    default double closeness(RoadName candidate, RoadName desired)
+    {
+        return matches(candidate, desired).value();
+    }
+
+    /**
+     * Returns the closeness of the candidate road name to the desired one, as {@link #closeness(RoadName, RoadName)}
+     * does, except that if the closeness is no higher than the given bound, any value no higher than the bound may be
+     * returned. Callers that only need to know whether a name is closer than the closest so far pass that closeness, so
+     * that matchers can skip work for names that can't be closer.
+     */
+    default double closeness(RoadName candidate, RoadName desired, double bound)
+    {
+        return closeness(candidate, desired);
+    }
+
+    /**
+     * Returns true if this matcher scores names by the edit distance between them, so that a name sharing too few
+     * character trigrams with the desired name can't reach the road name closeness. The reverse geocoder only uses its
+     * road name trigram filter with matchers that return true. Matchers that score names some other way must not
+     * override this.
+     */
+    default boolean isEditDistanceBased()
+    {
+        return false;
+    }
+
     Percent matches(RoadName candidate, RoadName desired);
 }
@@ -0,0 +1,350 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.matching;
+
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.map.road.model.RoadName;
+import com.telenav.mesakit.map.road.name.standardizer.RoadNameStandardizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static com.telenav.kivakit.core.value.level.Percent.percent;
+
+/**
+ * A {@link RoadNameMatcher} that scores names by the words they share rather than by the characters that would have to
+ * change to turn one into the other. Each word is weighted by its inverse document frequency among the distinct road
+ * names of a graph, so sharing a rare word like "Latona" counts for much more than sharing a common one like "St".
+ * The closeness of two names is twice the weight of the words they share divided by the total weight of the words of
+ * both (a weighted Dice coefficient), so word order doesn't matter and an extra word costs as much as its weight:
+ * "N Main St" matches "Main St N" exactly, but matches "Main St N Frontage" less well.
+ * <p>
+ * Words are hashed, and each name is turned into a signature of sorted word hashes and weights, so matching two names
+ * is a merge of two short integer arrays. Word weights are computed once per graph by
+ * {@link #TokenRoadNameMatcher(Graph, RoadNameStandardizer, Percent)}, from names standardized with the geocoder's
+ * standardizer. Words that aren't in the graph get the weight of the rarest word.
+ * <p>
+ * Candidates that score above the closeness given at construction have the edit distance between the names subtracted
+ * as a fraction of a hundredth of a percent, so that among candidates with the same words, the one spelled most like
+ * the desired name wins. Given a bound with {@link #closeness(RoadName, RoadName, double)}, the edit distance is only
+ * computed for names whose words score above the bound, and for names within a hundredth of a percent of it, only as
+ * far as could still beat the bound, so ties cost a bounded edit distance and other names none. Scores are not based
+ * on edit distance, so the reverse geocoder doesn't use its road name trigram filter with this matcher (see
+ * {@link #isEditDistanceBased()}).
+ * <p>
+ * The signatures of the graph's names, as they are and standardized, are computed at construction and kept, so memory
+ * grows with the number of distinct names in the graph. The signatures of other names, such as the desired names of
+ * requests, are computed on each call and not kept, so callers can't grow the matcher's memory. The matcher is
+ * thread-safe.
+ *
+ * @author jonathanl (shibo)
+ */
+public class TokenRoadNameMatcher implements RoadNameMatcher
+{
+    /** The largest amount subtracted from a score to break ties by edit distance */
+    private static final double TIE_BREAKER = 0.01;
+
+    /**
+     * The sorted word hashes of a name and their weights
+     */
+    private static class Signature
+    {
+        private final int[] hashes;
+
+        private final float[] weights;
+
+        private final double total;
+
+        Signature(int[] hashes, float[] weights)
+        {
+            this.hashes = hashes;
+            this.weights = weights;
+            var total = 0.0;
+            for (var weight : weights)
+            {
+                total += weight;
+            }
+            this.total = total;
+        }
+    }
+
+    /** Word hashes in an open addressing table, with zero for an empty entry */
+    private final int[] keys;
+
+    /** The weight of the word with the hash at the same index of the keys table */
+    private final float[] weights;
+
+    /** The weight of a word that isn't in the table */
+    private final float unknownWeight;
+
+    private final RoadNameStandardizer standardizer;
+
+    /** The closeness above which ties are broken by edit distance */
+    private final Percent closeness;
+
+    /** The signatures of the graph's names, which are only read after construction */
+    private final Map<String, Signature> signatures = new HashMap<>();
+
+    /**
+     * @param graph The graph whose road names determine the weight of each word
+     * @param standardizer The standardizer that the geocoder is configured with, or null if names aren't standardized
+     * @param closeness The closeness above which ties are broken by edit distance, normally
+     * {@link com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder.Configuration#roadNameCloseness()}
+     */
+    public TokenRoadNameMatcher(Graph graph, RoadNameStandardizer standardizer, Percent closeness)
+    {
+        this.standardizer = standardizer;
+        this.closeness = closeness;
+
+        // Count the distinct names that each word appears in,
+        var names = new HashSet<String>();
+        for (var edge : graph.edges())
+        {
+            var roadNames = edge.roadNames();
+            if (roadNames != null)
+            {
+                for (var roadName : roadNames)
+                {
+                    if (roadName != null)
+                    {
+                        names.add(roadName.name());
+                    }
+                }
+            }
+        }
+        var standardized = new HashSet<String>();
+        for (var name : names)
+        {
+            standardized.add(standardize(RoadName.forName(name)).name());
+        }
+        var frequencies = new HashMap<Integer, Integer>();
+        for (var name : standardized)
+        {
+            for (var hash : hashes(name))
+            {
+                frequencies.merge(hash, 1, Integer::sum);
+            }
+        }
+
+        // weight each word by the log of the inverse of its frequency,
+        var capacity = Integer.highestOneBit(Math.max(16, frequencies.size() * 2 - 1)) * 2;
+        keys = new int[capacity];
+        weights = new float[capacity];
+        var documents = standardized.size();
+        frequencies.forEach((hash, frequency) ->
+        {
+            var at = hash & (capacity - 1);
+            while (keys[at] != 0)
+            {
+                at = (at + 1) & (capacity - 1);
+            }
+            keys[at] = hash;
+            weights[at] = weight(documents, frequency);
+        });
+        unknownWeight = weight(documents, 0);
+
+        // and compute the signature of each of the graph's names.
+        for (var name : names)
+        {
+            signatures.put(name, signature(name));
+        }
+        for (var name : standardized)
+        {
+            signatures.putIfAbsent(name, signature(name));
+        }
+    }
+
+    @Override
+    public double closeness(RoadName candidate, RoadName desired)
+    {
+        return closeness(candidate, desired, Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    public double closeness(RoadName candidate, RoadName desired, double bound)
+    {
+        // If the candidate precisely matches (ignoring case) the name we're looking for
+        if (candidate.equals(desired))
+        {
+            return 100.0;
+        }
+
+        // If directions were specified and they don't match
+        var candidateDirection = candidate.extractDirection();
+        var desiredDirection = desired.extractDirection();
+        if (candidateDirection != null && desiredDirection != null && !candidateDirection.equals(desiredDirection))
+        {
+            // then the road names don't match
+            return 0.0;
+        }
+
+        // Find the weight of the words that the names share,
+        var a = signature(candidate);
+        var b = signature(desired);
+        if (a.total + b.total == 0)
+        {
+            return 0.0;
+        }
+        var shared = 0.0;
+        var i = 0;
+        var j = 0;
+        while (i < a.hashes.length && j < b.hashes.length)
+        {
+            if (a.hashes[i] == b.hashes[j])
+            {
+                shared += a.weights[i];
+                i++;
+                j++;
+            }
+            else if (a.hashes[i] < b.hashes[j])
+            {
+                i++;
+            }
+            else
+            {
+                j++;
+            }
+        }
+
+        // and score it against the weight of all the words,
+        var score = Math.min(100.0, 200.0 * shared / (a.total + b.total));
+
+        // breaking ties between candidates that could match by how many characters differ.
+        if (closeness != null && score > closeness.value())
+        {
+            // The tie-breaker only lowers the score, so if the words score no higher than the bound, neither can
+            // the name,
+            if (score <= bound)
+            {
+                return score;
+            }
+
+            // and if they score less than the tie-breaker above it, the name only beats the bound while the edit
+            // distance is below (score - bound) / TIE_BREAKER of the length, so the distance is computed no further.
+            var candidateName = candidate.name();
+            var desiredName = desired.name();
+            var length = Math.max(1, Math.max(candidateName.length(), desiredName.length()));
+            var maximum = length;
+            if (bound > closeness.value() && score - TIE_BREAKER < bound)
+            {
+                maximum = Math.min(length, (int) Math.ceil((score - bound) / TIE_BREAKER * length) - 1);
+            }
+            var distance = BoundedRoadNameMatcher.distance(candidateName, desiredName, maximum);
+            if (distance > maximum)
+            {
+                return bound;
+            }
+            score = Math.max(closeness.value(), score - TIE_BREAKER * Math.min(distance, length) / length);
+            if (score == closeness.value())
+            {
+                score = Math.nextUp(score);
+            }
+        }
+        return score;
+    }
+
+    @Override
+    public Percent matches(RoadName candidate, RoadName desired)
+    {
+        var closeness = closeness(candidate, desired);
+        return closeness == 100.0 ? Percent._100 : closeness == 0.0 ? Percent._0 : percent(closeness);
+    }
+
+    /**
+     * Returns the distinct, sorted hashes of the words in the given name, ignoring case
+     */
+    private static int[] hashes(String name)
+    {
+        var hashes = new int[name.length()];
+        var count = 0;
+        var hash = 0x811C9DC5;
+        var inWord = false;
+        for (var at = 0; at <= name.length(); at++)
+        {
+            var character = at < name.length() ? name.charAt(at) : ' ';
+            if (Character.isLetterOrDigit(character))
+            {
+                // FNV-1a over the lowercase characters of the word
+                hash = (hash ^ Character.toLowerCase(character)) * 0x01000193;
+                inWord = true;
+            }
+            else if (inWord)
+            {
+                hashes[count++] = hash == 0 ? 1 : hash;
+                hash = 0x811C9DC5;
+                inWord = false;
+            }
+        }
+        return Arrays.stream(hashes, 0, count).sorted().distinct().toArray();
+    }
+
+    private static float weight(int documents, int frequency)
+    {
+        return (float) (Math.log((documents + 1.0) / (frequency + 1.0)) + 1.0);
+    }
+
+    /**
+     * Returns the signature of the given name, which is kept if it is one of the graph's names and otherwise computed
+     */
+    private Signature signature(RoadName name)
+    {
+        var signature = signatures.get(name.name());
+        return signature != null ? signature : signature(name.name());
+    }
+
+    /**
+     * Computes the signature of the given name
+     */
+    private Signature signature(String name)
+    {
+        var hashes = hashes(name);
+        var weights = new float[hashes.length];
+        for (var index = 0; index < hashes.length; index++)
+        {
+            weights[index] = weight(hashes[index]);
+        }
+        return new Signature(hashes, weights);
+    }
+
+    private RoadName standardize(RoadName name)
+    {
+        return standardizer != null ? standardizer.standardize(name).asRoadName() : name;
+    }
+
+    /**
+     * Returns the weight of the word with the given hash
+     */
+    private float weight(int hash)
+    {
+        var mask = keys.length - 1;
+        var at = hash & mask;
+        while (keys[at] != 0)
+        {
+            if (keys[at] == hash)
+            {
+                return weights[at];
+            }
+            at = (at + 1) & mask;
+        }
+        return unknownWeight;
+    }
+}
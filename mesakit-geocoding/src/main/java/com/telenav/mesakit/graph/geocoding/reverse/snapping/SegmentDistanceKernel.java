@@ -0,0 +1,207 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.snapping;
+
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.EdgeShapeIndex;
+import com.telenav.mesakit.map.geography.shape.polyline.Polyline;
+
+import java.util.Arrays;
+
+/**
+ * Finds the segment of a shape that is nearest to a point, with shape points held in primitive arrays of latitudes and
+ * longitudes in degrees. Distances are measured on a flat projection of the shape around the point, in which a degree
+ * of latitude is {@link #METERS_PER_DEGREE} meters and a degree of longitude is that times the cosine of the point's
+ * latitude. Over the length of an edge this differs from great circle distance by far less than GPS error.
+ * <p>
+ * The distance to every segment is computed in one pass of straight-line arithmetic over the arrays, with no branches
+ * and no objects, so that the JIT compiler can turn it into vector instructions. The nearest segment is then found in a
+ * second pass. After a call to one of the distance methods, {@link #segment()}, {@link #fraction()},
+ * {@link #offsetInMeters()} and {@link #lengthInMeters()} describe the nearest point on the shape.
+ * <p>
+ * A kernel keeps buffers that grow to fit the longest shape it has seen, so it should be reused, but it must only be
+ * used by one thread at a time.
+ *
+ * @author jonathanl (shibo)
+ */
+public class SegmentDistanceKernel
+{
+    /** Meters per degree of latitude (and of longitude at the equator) */
+    public static final double METERS_PER_DEGREE = 111_319.49;
+
+    /** The squared distance in meters to each segment */
+    private double[] squared = new double[64];
+
+    /** The fraction of the way along each segment of the point nearest to the given point */
+    private double[] fractions = new double[64];
+
+    /** The length of each segment in meters */
+    private double[] lengths = new double[64];
+
+    /** Shape points copied from a polyline */
+    private double[] latitudes = new double[64];
+
+    private double[] longitudes = new double[64];
+
+    /** The number of segments in the last shape */
+    private int segments;
+
+    private int segment;
+
+    private double distance;
+
+    /**
+     * Returns the distance in meters from the given point to the shape of the given edge in the given index
+     */
+    public double distance(EdgeShapeIndex shapes, Edge edge, double latitude, double longitude)
+    {
+        return distance(shapes.latitudes(), shapes.longitudes(), shapes.first(edge), shapes.end(edge), latitude,
+                longitude);
+    }
+
+    /**
+     * Returns the distance in meters from the given point to the given shape
+     */
+    public double distance(Polyline shape, double latitude, double longitude)
+    {
+        var size = shape.size();
+        if (latitudes.length < size)
+        {
+            latitudes = new double[size * 2];
+            longitudes = new double[size * 2];
+        }
+        for (var at = 0; at < size; at++)
+        {
+            var location = shape.get(at);
+            latitudes[at] = location.latitudeInDegrees();
+            longitudes[at] = location.longitudeInDegrees();
+        }
+        return distance(latitudes, longitudes, 0, size, latitude, longitude);
+    }
+
+    /**
+     * Returns the distance in meters from the given point to the shape held in the given arrays
+     *
+     * @param latitudes Shape point latitudes in degrees
+     * @param longitudes Shape point longitudes in degrees
+     * @param first The index of the first point of the shape
+     * @param end The index after the last point of the shape
+     * @param latitude The latitude of the point in degrees
+     * @param longitude The longitude of the point in degrees
+     */
+    public double distance(double[] latitudes, double[] longitudes, int first, int end, double latitude,
+                           double longitude)
+    {
+        var scale = Math.cos(Math.toRadians(latitude)) * METERS_PER_DEGREE;
+
+        // A shape with a single point has a single segment of no length,
+        segments = Math.max(1, end - first - 1);
+        if (squared.length < segments)
+        {
+            squared = new double[segments * 2];
+            fractions = new double[segments * 2];
+            lengths = new double[segments * 2];
+        }
+        var last = end - 1;
+
+        // and for each segment,
+        for (var at = 0; at < segments; at++)
+        {
+            var from = first + at;
+            var to = Math.min(from + 1, last);
+
+            // find the segment's start and extent relative to the point,
+            var ax = (longitudes[from] - longitude) * scale;
+            var ay = (latitudes[from] - latitude) * METERS_PER_DEGREE;
+            var dx = (longitudes[to] - longitudes[from]) * scale;
+            var dy = (latitudes[to] - latitudes[from]) * METERS_PER_DEGREE;
+
+            // the fraction of the way along it that is nearest to the point,
+            var lengthSquared = dx * dx + dy * dy;
+            var fraction = lengthSquared > 0 ? Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared)) : 0;
+
+            // and the squared distance to that point.
+            var px = ax + fraction * dx;
+            var py = ay + fraction * dy;
+            squared[at] = px * px + py * py;
+            fractions[at] = fraction;
+            lengths[at] = Math.sqrt(lengthSquared);
+        }
+
+        // The nearest segment is the first with the smallest distance
+        var nearest = 0;
+        var nearestSquared = squared[0];
+        for (var at = 1; at < segments; at++)
+        {
+            if (squared[at] < nearestSquared)
+            {
+                nearestSquared = squared[at];
+                nearest = at;
+            }
+        }
+        segment = nearest;
+        distance = Math.sqrt(nearestSquared);
+        return distance;
+    }
+
+    /**
+     * Returns the distance in meters from the point to the shape
+     */
+    public double distanceInMeters()
+    {
+        return distance;
+    }
+
+    /**
+     * Returns the fraction of the way along the nearest segment of the nearest point on the shape
+     */
+    public double fraction()
+    {
+        return fractions[segment];
+    }
+
+    /**
+     * Returns the length of the shape in meters
+     */
+    public double lengthInMeters()
+    {
+        return Arrays.stream(lengths, 0, segments).sum();
+    }
+
+    /**
+     * Returns the distance in meters along the shape from its first point to the nearest point
+     */
+    public double offsetInMeters()
+    {
+        var offset = 0.0;
+        for (var at = 0; at < segment; at++)
+        {
+            offset += lengths[at];
+        }
+        return offset + fractions[segment] * lengths[segment];
+    }
+
+    /**
+     * Returns the index of the nearest segment, counting from the first segment of the shape
+     */
+    public int segment()
+    {
+        return segment;
+    }
+}
@@ -0,0 +1,393 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.reverse.world;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.value.count.Bytes;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.EdgeGridIndex;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.graph.io.load.SmartGraphLoader;
+import com.telenav.mesakit.graph.world.grid.WorldCell;
+import com.telenav.mesakit.graph.world.grid.WorldGrid;
+import com.telenav.mesakit.graph.world.repository.WorldGraphRepositoryFolder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Locates edges in a world graph repository without loading the whole world. A request is located by finding the
+ * world cells that its search area touches, loading the graph of each cell that isn't loaded yet, and locating the
+ * request in each cell with a {@link ReverseGeocoder}. When the search area crosses a cell boundary, the edges found in
+ * each cell are ranked as a single geocoder ranks them: the edge with the closest road name wins, and among edges
+ * whose names are equally close, the edge whose snap is nearest to the requested location wins, whichever cell it is
+ * in.
+ * <p>
+ * Cell graphs are loaded asynchronously on the configured {@link Executor}, and concurrent requests that need a cell
+ * which is still loading wait for the same load. Loaded cells are kept in a least-recently-used list, and the least
+ * recently used cells are dropped once the estimated heap used by all loaded cells exceeds
+ * {@link Configuration#memoryBudget()}. The heap used by a cell is estimated from the size of its graph archive (see
+ * {@link Configuration#heapBytesPerArchiveByte(double)}). A cell that is dropped while a request is still using it
+ * stays in memory until the request is done. Nothing else refers to a dropped cell: a {@link ReverseGeocoder} only
+ * refers to itself from the per-thread state of threads that are locating requests with it.
+ * <p>
+ * If a {@link RoadNameIndex} or {@link EdgeGridIndex} has been saved next to a cell's graph archive, it is loaded with
+ * the graph and used by the cell's geocoder. All cell geocoders share the geocoder configuration, which must not have a
+ * cache, since a cache would be cleared whenever it is used with a different graph, and would keep the graph of a
+ * dropped cell in memory until then.
+ *
+ * @author jonathanl (shibo)
+ */
+public class WorldGraphReverseGeocoder extends BaseRepeater
+{
+    public static class Configuration
+    {
+        /** The configuration of the geocoder for each cell */
+        private ReverseGeocoder.Configuration geocoder;
+
+        /** The executor that loads cells, or null to use the common fork-join pool */
+        private Executor executor;
+
+        /** The estimated heap used by a loaded cell for each byte of its graph archive */
+        private double heapBytesPerArchiveByte = 4.0;
+
+        /** The estimated heap that loaded cells can use before the least recently used are dropped */
+        private Bytes memoryBudget = Bytes.gigabytes(2);
+
+        public Executor executor()
+        {
+            return executor;
+        }
+
+        /**
+         * @param executor The executor to load cell graphs on. If this is null, cells are loaded on the common
+         * fork-join pool.
+         */
+        public void executor(Executor executor)
+        {
+            this.executor = executor;
+        }
+
+        public ReverseGeocoder.Configuration geocoder()
+        {
+            return geocoder;
+        }
+
+        public void geocoder(ReverseGeocoder.Configuration geocoder)
+        {
+            this.geocoder = geocoder;
+        }
+
+        public double heapBytesPerArchiveByte()
+        {
+            return heapBytesPerArchiveByte;
+        }
+
+        /**
+         * @param heapBytesPerArchiveByte The number of bytes of heap that a loaded cell is estimated to use for each
+         * byte of its graph archive
+         */
+        public void heapBytesPerArchiveByte(double heapBytesPerArchiveByte)
+        {
+            this.heapBytesPerArchiveByte = heapBytesPerArchiveByte;
+        }
+
+        public Bytes memoryBudget()
+        {
+            return memoryBudget;
+        }
+
+        /**
+         * @param memoryBudget The estimated heap that loaded cells can use. The most recently used cell is always
+         * kept, even if it alone exceeds the budget.
+         */
+        public void memoryBudget(Bytes memoryBudget)
+        {
+            this.memoryBudget = memoryBudget;
+        }
+    }
+
+    /**
+     * A loaded cell and the geocoder for its graph
+     */
+    private static class LoadedCell
+    {
+        private final ReverseGeocoder geocoder;
+
+        /** The estimated heap used by the cell */
+        private final long bytes;
+
+        LoadedCell(ReverseGeocoder geocoder, long bytes)
+        {
+            this.geocoder = geocoder;
+            this.bytes = bytes;
+        }
+    }
+
+    private final WorldGrid grid;
+
+    private final WorldGraphRepositoryFolder folder;
+
+    private final Configuration configuration;
+
+    /** Cells that are being loaded */
+    private final ConcurrentHashMap<WorldCell, CompletableFuture<LoadedCell>> loading = new ConcurrentHashMap<>();
+
+    /** Loaded cells, from least to most recently used, guarded by synchronizing on the map */
+    private final LinkedHashMap<WorldCell, LoadedCell> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The estimated heap used by all loaded cells, guarded by synchronizing on the loaded map */
+    private long loadedBytes;
+
+    /**
+     * @param grid The world grid of the repository
+     * @param folder The repository folder holding the cell graphs
+     * @param configuration The configuration
+     */
+    public WorldGraphReverseGeocoder(WorldGrid grid, WorldGraphRepositoryFolder folder, Configuration configuration)
+    {
+        if (configuration.geocoder().cache() != null)
+        {
+            throw new IllegalArgumentException(
+                    "The geocoder configuration of a world graph geocoder can't have a cache");
+        }
+        this.grid = grid;
+        this.folder = folder;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the estimated heap used by the loaded cells
+     */
+    public Bytes loadedBytes()
+    {
+        synchronized (loaded)
+        {
+            return Bytes.bytes(loadedBytes);
+        }
+    }
+
+    /**
+     * Returns the number of cells that are loaded
+     */
+    public int loadedCells()
+    {
+        synchronized (loaded)
+        {
+            return loaded.size();
+        }
+    }
+
+    /**
+     * Locates the nearest appropriate edge for the given request in any of the cells that its search area touches. The
+     * edge with the closest road name wins, and the nearest of equally close edges.
+     *
+     * @return The response, or null if no edge was found
+     */
+    public ReverseGeocoder.Response locate(ReverseGeocoder.Request request)
+    {
+        // Start loading each cell that the search area touches,
+        var cells = new ArrayList<CompletableFuture<LoadedCell>>();
+        for (var cell : grid.cells(request.location().within(configuration.geocoder().within())))
+        {
+            cells.add(cell(cell));
+        }
+
+        // then as each cell is ready,
+        ReverseGeocoder.Response best = null;
+        var bestCloseness = -1.0;
+        var bestDistance = Double.MAX_VALUE;
+        for (var future : cells)
+        {
+            var cell = join(future);
+            if (cell != null)
+            {
+                // locate the request in it, and if the edge found has a closer road name than any found in other
+                // cells, or an equally close name and a nearer snap,
+                var response = cell.geocoder.locate(request);
+                if (response != null)
+                {
+                    var closeness = response.percentage().value();
+                    var distance = response.snap().distanceToSource().asMeters();
+                    if (closeness > bestCloseness || (closeness == bestCloseness && distance < bestDistance))
+                    {
+                        // it's the one to beat.
+                        bestCloseness = closeness;
+                        bestDistance = distance;
+                        best = response;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the given cell, loading it if it isn't loaded yet. A cell without a graph completes with null.
+     */
+    private CompletableFuture<LoadedCell> cell(WorldCell cell)
+    {
+        // If the cell is loaded, it's ready,
+        var cached = touch(cell);
+        if (cached != null)
+        {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        // and if it's being loaded, wait for that load,
+        var created = new CompletableFuture<LoadedCell>();
+        var future = loading.putIfAbsent(cell, created);
+        if (future != null)
+        {
+            return future;
+        }
+
+        // otherwise, unless it finished loading since we looked,
+        cached = touch(cell);
+        if (cached != null)
+        {
+            loading.remove(cell);
+            created.complete(cached);
+            return created;
+        }
+
+        // load it.
+        executor().execute(() ->
+        {
+            try
+            {
+                var loadedCell = load(cell);
+                if (loadedCell != null)
+                {
+                    remember(cell, loadedCell);
+                }
+                created.complete(loadedCell);
+            }
+            catch (Exception e)
+            {
+                created.completeExceptionally(e);
+            }
+            finally
+            {
+                loading.remove(cell);
+            }
+        });
+        return created;
+    }
+
+    private Executor executor()
+    {
+        var executor = configuration.executor();
+        return executor != null ? executor : ForkJoinPool.commonPool();
+    }
+
+    private LoadedCell join(CompletableFuture<LoadedCell> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            problem(e.getCause(), "Unable to load world cell");
+            return null;
+        }
+    }
+
+    /**
+     * Loads the graph of the given cell and any indexes saved next to it
+     *
+     * @return The loaded cell, or null if the cell has no graph
+     */
+    private LoadedCell load(WorldCell cell)
+    {
+        var file = cell.cellGraphFile(folder);
+        if (!file.exists())
+        {
+            return null;
+        }
+
+        var graph = new SmartGraphLoader(file).load(this);
+        if (graph == null)
+        {
+            problem("Unable to load graph for world cell $", cell.gridCell().name());
+            return null;
+        }
+
+        RoadNameIndex roadNameIndex = null;
+        var roadNameIndexFile = RoadNameIndex.sidecarFile(this, file);
+        if (roadNameIndexFile.exists())
+        {
+            roadNameIndex = RoadNameIndex.load(this, graph, roadNameIndexFile);
+        }
+
+        EdgeGridIndex edgeGridIndex = null;
+        var edgeGridFile = EdgeGridIndex.sidecarFile(this, file);
+        if (edgeGridFile.exists())
+        {
+            edgeGridIndex = EdgeGridIndex.load(this, graph, edgeGridFile);
+        }
+
+        var geocoder = new ReverseGeocoder(graph, configuration.geocoder(), roadNameIndex, edgeGridIndex);
+        var bytes = (long) (file.sizeInBytes().asBytes() * configuration.heapBytesPerArchiveByte());
+        return new LoadedCell(geocoder, bytes);
+    }
+
+    /**
+     * Adds the given loaded cell as the most recently used, dropping the least recently used cells while the loaded
+     * cells are over budget
+     */
+    private void remember(WorldCell cell, LoadedCell loadedCell)
+    {
+        var budget = configuration.memoryBudget().asBytes();
+        synchronized (loaded)
+        {
+            var replaced = loaded.put(cell, loadedCell);
+            if (replaced != null)
+            {
+                loadedBytes -= replaced.bytes;
+            }
+            loadedBytes += loadedCell.bytes;
+
+            var eldest = loaded.entrySet().iterator();
+            while (loadedBytes > budget && loaded.size() > 1)
+            {
+                var dropped = eldest.next();
+                loadedBytes -= dropped.getValue().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the given cell if it's loaded, marking it as the most recently used
+     */
+    private LoadedCell touch(WorldCell cell)
+    {
+        synchronized (loaded)
+        {
+            return loaded.get(cell);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.speed;
+
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.map.measurements.motion.Speed;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the speeds of probe points matched to the edges of a graph (for example by a
+ * {@link com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder} or a
+ * {@link com.telenav.mesakit.graph.geocoding.trace.TraceMatcher}) into per-edge statistics: the number of speeds, their
+ * sum, and a histogram of speeds in {@link #BUCKET_LIMITS} from which quantiles are estimated.
+ * <p>
+ * Statistics are held in primitive atomic arrays indexed by edge slot, so adding a speed takes no locks and allocates
+ * nothing. To keep threads that add speeds for the same busy edges from contending for the same memory, the arrays are
+ * split into a small number of stripes (no more than {@link #MAXIMUM_STRIPES}), and each thread adds to the stripe
+ * chosen by a hash of its thread identifier. A snapshot sums the stripes. Forward and reverse edges have separate
+ * slots, so there are two slots for each edge index. Each stripe of each generation (see below) takes 56 bytes per slot
+ * (a long sum and twelve int bucket counts), and there are two generations and an 8-byte way identifier per slot, so
+ * with four stripes the aggregator holds 456 bytes per slot, or 912 bytes per edge index. A snapshot allocates another
+ * 56 bytes per slot for the statistics it returns.
+ * <p>
+ * {@link #snapshot()} returns the statistics accumulated since the last snapshot, summed over all stripes. Speeds
+ * are added to one of two generations of arrays. A snapshot switches writers to the other generation, waits for any
+ * writer still in the middle of adding to the old generation, and then reads and clears it. Every speed added is
+ * therefore in exactly one snapshot, and a snapshot never holds part of a speed. Writers never wait: a writer that
+ * sees a switch while adding simply adds to the new generation instead. Snapshots should be taken by one thread at a
+ * time.
+ *
+ * @author jonathanl (shibo)
+ */
+public class EdgeSpeedAggregator
+{
+    /** The upper limits of the histogram buckets in kilometers per hour. The last bucket holds all faster speeds. */
+    static final double[] BUCKET_LIMITS = { 5, 10, 20, 30, 40, 50, 60, 70, 80, 100, 120, Double.MAX_VALUE };
+
+    static final int BUCKETS = BUCKET_LIMITS.length;
+
+    /** Speed sums are kept in hundredths of a kilometer per hour */
+    static final double SUM_SCALE = 100.0;
+
+    /** The largest number of stripes, which bounds the memory used to one full set of arrays per stripe */
+    public static final int MAXIMUM_STRIPES = 4;
+
+    /**
+     * One set of striped arrays that speeds are added to
+     */
+    private static class Generation
+    {
+        /** The sum of the speeds of each edge slot in each stripe */
+        private final AtomicLongArray[] sums;
+
+        /** The histogram bucket counts of each edge slot in each stripe */
+        private final AtomicIntegerArray[] buckets;
+
+        /** Writers that have started and finished adding to this generation */
+        private final LongAdder entered = new LongAdder();
+
+        private final LongAdder exited = new LongAdder();
+
+        Generation(int stripes, int slots)
+        {
+            sums = new AtomicLongArray[stripes];
+            buckets = new AtomicIntegerArray[stripes];
+            for (var stripe = 0; stripe < stripes; stripe++)
+            {
+                sums[stripe] = new AtomicLongArray(slots);
+                buckets[stripe] = new AtomicIntegerArray(slots * BUCKETS);
+            }
+        }
+
+        /**
+         * Returns true if no writer is adding to this generation
+         */
+        boolean isQuiet()
+        {
+            // Exits are read before entries, so equal counts mean every writer that had entered had also left
+            var exits = exited.sum();
+            return entered.sum() == exits;
+        }
+    }
+
+    private final Graph graph;
+
+    private final int slots;
+
+    /** The PBF way identifier of the edge in each slot */
+    private final long[] ways;
+
+    /** The number of stripes less one, for choosing a stripe by masking */
+    private final int stripeMask;
+
+    /** The generation that speeds are being added to */
+    private volatile Generation current;
+
+    /** The generation that the next snapshot switches to */
+    private Generation spare;
+
+    /**
+     * Creates an aggregator with as many stripes as there are processors, up to {@link #MAXIMUM_STRIPES}
+     */
+    public EdgeSpeedAggregator(Graph graph)
+    {
+        this(graph, Count.count(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param graph The graph whose edges speeds are added for
+     * @param stripes The number of stripes, which is limited to {@link #MAXIMUM_STRIPES} and rounded up to a power of
+     * two
+     */
+    public EdgeSpeedAggregator(Graph graph, Count stripes)
+    {
+        this.graph = graph;
+
+        var slots = 0;
+        for (var edge : graph.edges())
+        {
+            slots = Math.max(slots, RoadNameIndex.slot(edge) + 1);
+        }
+        this.slots = slots;
+        ways = new long[slots];
+        for (var edge : graph.edges())
+        {
+            ways[RoadNameIndex.slot(edge)] = edge.wayIdentifier().asLong();
+        }
+
+        var stripeCount = Integer.highestOneBit(Math.max(1, Math.min(MAXIMUM_STRIPES, stripes.asInt()) * 2 - 1));
+        stripeMask = stripeCount - 1;
+        current = new Generation(stripeCount, slots);
+        spare = new Generation(stripeCount, slots);
+    }
+
+    /**
+     * Adds the given speed to the statistics of the given edge
+     */
+    public void add(Edge edge, Speed speed)
+    {
+        add(edge, speed.asKilometersPerHour());
+    }
+
+    /**
+     * Adds the given speed in kilometers per hour to the statistics of the given edge
+     */
+    public void add(Edge edge, double kilometersPerHour)
+    {
+        var slot = RoadNameIndex.slot(edge);
+        var stripe = stripe();
+        var bucket = bucket(kilometersPerHour);
+        var sum = Math.round(kilometersPerHour * SUM_SCALE);
+        while (true)
+        {
+            // Enter the current generation,
+            var generation = current;
+            generation.entered.increment();
+
+            // and unless a snapshot has switched generations since we looked,
+            if (generation == current)
+            {
+                // add the speed to it.
+                generation.sums[stripe].addAndGet(slot, sum);
+                generation.buckets[stripe].incrementAndGet(slot * BUCKETS + bucket);
+                generation.exited.increment();
+                return;
+            }
+            generation.exited.increment();
+        }
+    }
+
+    /**
+     * Returns the graph that speeds are added for
+     */
+    public Graph graph()
+    {
+        return graph;
+    }
+
+    /**
+     * Returns the statistics accumulated since the last snapshot, and starts accumulating anew
+     */
+    public EdgeSpeedSnapshot snapshot()
+    {
+        // Switch writers to the spare generation,
+        var previous = current;
+        current = spare;
+
+        // wait for writers that were adding to the previous generation to finish,
+        while (!previous.isQuiet())
+        {
+            Thread.onSpinWait();
+        }
+
+        // then sum and clear its stripes,
+        var sums = new long[slots];
+        var buckets = new int[slots * BUCKETS];
+        for (var stripe = 0; stripe <= stripeMask; stripe++)
+        {
+            var stripeSums = previous.sums[stripe];
+            var stripeBuckets = previous.buckets[stripe];
+            for (var slot = 0; slot < slots; slot++)
+            {
+                sums[slot] += stripeSums.getAndSet(slot, 0);
+            }
+            for (var index = 0; index < buckets.length; index++)
+            {
+                buckets[index] += stripeBuckets.getAndSet(index, 0);
+            }
+        }
+
+        // and keep it as the spare for the next snapshot.
+        spare = previous;
+        return new EdgeSpeedSnapshot(ways, sums, buckets);
+    }
+
+    /**
+     * Returns the histogram bucket for the given speed
+     */
+    private static int bucket(double kilometersPerHour)
+    {
+        var bucket = 0;
+        while (kilometersPerHour >= BUCKET_LIMITS[bucket] && bucket < BUCKETS - 1)
+        {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the stripe for the current thread. Thread identifiers are often sequential, so they are mixed with a
+     * Fibonacci hash to spread threads over the stripes.
+     */
+    private int stripe()
+    {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & stripeMask;
+    }
+}
@@ -0,0 +1,172 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.speed;
+
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.geocoding.reverse.indexing.RoadNameIndex;
+import com.telenav.mesakit.map.measurements.motion.Speed;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import static com.telenav.mesakit.graph.geocoding.speed.EdgeSpeedAggregator.BUCKETS;
+import static com.telenav.mesakit.graph.geocoding.speed.EdgeSpeedAggregator.BUCKET_LIMITS;
+import static com.telenav.mesakit.graph.geocoding.speed.EdgeSpeedAggregator.SUM_SCALE;
+
+/**
+ * The speed statistics of the edges of a graph over one period, taken by {@link EdgeSpeedAggregator#snapshot()}.
+ * Quantiles are estimated from a histogram, by interpolating within the bucket that holds the quantile. The last
+ * bucket has no upper limit, so quantiles that fall in it are estimated as its lower limit.
+ * <p>
+ * {@link #saveWaySpeeds(File, Count, Percent)} writes an estimated speed, such as a free flow speed, for each PBF way
+ * whose edges have enough speeds. Ways are used rather than edges because they identify roads before a graph has been
+ * built, when the graph converter reads its -free-flow-side-file. Each line of the file holds a way identifier and a
+ * whole speed in kilometers per hour, separated by a comma, and lines are in way identifier order.
+ *
+ * @author jonathanl (shibo)
+ */
+public class EdgeSpeedSnapshot
+{
+    /** The PBF way identifier of the edge in each slot */
+    private final long[] ways;
+
+    private final long[] sums;
+
+    private final int[] buckets;
+
+    EdgeSpeedSnapshot(long[] ways, long[] sums, int[] buckets)
+    {
+        this.ways = ways;
+        this.sums = sums;
+        this.buckets = buckets;
+    }
+
+    /**
+     * Returns the number of speeds added for the given edge
+     */
+    public Count count(Edge edge)
+    {
+        return Count.count(count(buckets, RoadNameIndex.slot(edge)));
+    }
+
+    /**
+     * Returns the mean speed of the given edge, or null if no speeds were added for it
+     */
+    public Speed mean(Edge edge)
+    {
+        var slot = RoadNameIndex.slot(edge);
+        var count = count(buckets, slot);
+        return count == 0 ? null : Speed.kilometersPerHour(sums[slot] / SUM_SCALE / count);
+    }
+
+    /**
+     * Returns the estimated speed of the given edge at the given quantile, or null if no speeds were added for it
+     */
+    public Speed quantile(Edge edge, Percent quantile)
+    {
+        var slot = RoadNameIndex.slot(edge);
+        return count(buckets, slot) == 0
+                ? null
+                : Speed.kilometersPerHour(quantile(buckets, slot, quantile.value() / 100.0));
+    }
+
+    /**
+     * Writes the speed at the given quantile (often the 85th percentile) of each PBF way whose edges, in both
+     * directions, have at least the given number of speeds between them
+     *
+     * @return The number of ways written
+     */
+    public Count saveWaySpeeds(File file, Count minimumSpeeds, Percent quantile)
+    {
+        // Combine the histograms of the edges of each way,
+        var histograms = new HashMap<Long, int[]>();
+        for (var slot = 0; slot < ways.length; slot++)
+        {
+            if (count(buckets, slot) > 0)
+            {
+                var histogram = histograms.computeIfAbsent(ways[slot], ignored -> new int[BUCKETS]);
+                for (var bucket = 0; bucket < BUCKETS; bucket++)
+                {
+                    histogram[bucket] += buckets[slot * BUCKETS + bucket];
+                }
+            }
+        }
+
+        // then write the ways with enough speeds in identifier order.
+        var written = 0;
+        try (var writer = file.printWriter())
+        {
+            for (var way : new TreeSet<>(histograms.keySet()))
+            {
+                var histogram = histograms.get(way);
+                if (count(histogram, 0) >= Math.max(1, minimumSpeeds.asLong()))
+                {
+                    var speed = quantile(histogram, 0, quantile.value() / 100.0);
+                    writer.println(way + "," + Math.round(speed));
+                    written++;
+                }
+            }
+        }
+        return Count.count(written);
+    }
+
+    /**
+     * Returns the number of speeds in the histogram at the given slot of the given bucket counts
+     */
+    private static long count(int[] buckets, int slot)
+    {
+        var count = 0L;
+        if ((slot + 1) * BUCKETS <= buckets.length)
+        {
+            for (var bucket = 0; bucket < BUCKETS; bucket++)
+            {
+                count += buckets[slot * BUCKETS + bucket];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the estimated speed in kilometers per hour at the given quantile (between 0 and 1) of the histogram at
+     * the given slot of the given bucket counts
+     */
+    private static double quantile(int[] buckets, int slot, double quantile)
+    {
+        var rank = quantile * count(buckets, slot);
+        var below = 0L;
+        for (var bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            var inBucket = buckets[slot * BUCKETS + bucket];
+            var lower = bucket == 0 ? 0 : BUCKET_LIMITS[bucket - 1];
+            if (below + inBucket >= rank && inBucket > 0)
+            {
+                if (bucket == BUCKETS - 1)
+                {
+                    return lower;
+                }
+                return lower + (BUCKET_LIMITS[bucket] - lower) * (rank - below) / inBucket;
+            }
+            below += inBucket;
+        }
+        return BUCKET_LIMITS[BUCKETS - 2];
+    }
+}
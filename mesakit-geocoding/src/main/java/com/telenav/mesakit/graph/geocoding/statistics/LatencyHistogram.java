@@ -0,0 +1,179 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.statistics;
+
+import com.telenav.kivakit.core.time.Duration;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, thread-safe histogram of latencies in nanoseconds. Latencies below 64ns are counted exactly, and larger
+ * latencies are counted in buckets 1/32 of a power of two wide, so any percentile is accurate to within about 3%.
+ * Recording a latency is a few bit operations and an atomic increment, with no allocation and no locking, so a single
+ * histogram can be shared by all the threads of a batch job or service.
+ *
+ * @author jonathanl (shibo)
+ */
+public class LatencyHistogram
+{
+    /** Each power of two is divided into this many buckets (as a power of two) */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below this are counted exactly */
+    private static final int EXACT = SUB_BUCKETS * 2;
+
+    private static final int BUCKETS = EXACT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Adds the counts in the given histogram to this one
+     */
+    public void add(LatencyHistogram that)
+    {
+        for (var bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            var value = that.counts.get(bucket);
+            if (value != 0)
+            {
+                counts.addAndGet(bucket, value);
+            }
+        }
+        count.add(that.count.sum());
+        total.add(that.total.sum());
+    }
+
+    /**
+     * Returns the number of latencies recorded
+     */
+    public long count()
+    {
+        return count.sum();
+    }
+
+    /**
+     * Returns the mean latency, or zero if nothing has been recorded
+     */
+    public Duration mean()
+    {
+        var count = count();
+        return nanoseconds(count == 0 ? 0 : (double) total.sum() / count);
+    }
+
+    /**
+     * Returns the latency that the given percentage of recorded latencies are no greater than, or zero if nothing has
+     * been recorded
+     *
+     * @param percentile The percentile from 0 to 100
+     */
+    public Duration percentile(double percentile)
+    {
+        var count = count();
+        if (count == 0)
+        {
+            return nanoseconds(0);
+        }
+        var rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+        var seen = 0L;
+        for (var bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+            {
+                return nanoseconds(highestValue(bucket));
+            }
+        }
+        return nanoseconds(highestValue(BUCKETS - 1));
+    }
+
+    /**
+     * Records a latency in nanoseconds, such as the difference between two calls to {@link System#nanoTime()}
+     */
+    public void record(long nanoseconds)
+    {
+        var value = Math.max(0, nanoseconds);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        total.add(value);
+    }
+
+    /**
+     * Clears all recorded latencies
+     */
+    public void reset()
+    {
+        for (var bucket = 0; bucket < BUCKETS; bucket++)
+        {
+            counts.set(bucket, 0);
+        }
+        count.reset();
+        total.reset();
+    }
+
+    /**
+     * Returns a one-line summary of this histogram
+     */
+    @Override
+    public String toString()
+    {
+        return "count = " + count()
+                + ", mean = " + mean()
+                + ", p50 = " + percentile(50)
+                + ", p90 = " + percentile(90)
+                + ", p99 = " + percentile(99)
+                + ", p99.9 = " + percentile(99.9);
+    }
+
+    private static int bucket(long value)
+    {
+        if (value < EXACT)
+        {
+            return (int) value;
+        }
+
+        // The position of the highest bit selects the power of two, and the bits after it select the sub-bucket
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (exponent - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValue(int bucket)
+    {
+        if (bucket < EXACT)
+        {
+            return bucket;
+        }
+        var exponent = (bucket - EXACT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        var subBucket = (bucket - EXACT) % SUB_BUCKETS;
+        var width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    private static Duration nanoseconds(double nanoseconds)
+    {
+        return Duration.milliseconds(nanoseconds / 1_000_000.0);
+    }
+}
@@ -0,0 +1,632 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.graph.geocoding.trace;
+
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.mesakit.graph.Edge;
+import com.telenav.mesakit.graph.Graph;
+import com.telenav.mesakit.graph.Vertex;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.reverse.snapping.SegmentDistanceKernel;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnap;
+import com.telenav.mesakit.map.geography.shape.polyline.PolylineSnapper;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Matches a stream of GPS fixes to the edges of a graph with a hidden Markov model, so that the edges matched to
+ * consecutive fixes form a plausible route instead of each fix being located on its own.
+ * <p>
+ * The hidden states for each fix are the edges near it, each with the location of the fix snapped to the edge:
+ *
+ * <ul>
+ *     <li>The emission probability of a state falls off with the distance from the fix to its snapped location, as a
+ *     Gaussian with a standard deviation of {@link Configuration#measurementError()}</li>
+ *     <li>The transition probability from a state for one fix to a state for the next falls off exponentially (with a
+ *     scale of {@link Configuration#transitionScale()}) with the difference between the distance along the graph
+ *     from one snapped location to the other and the great circle distance between the fixes. Distances along the
+ *     graph come from a shortest path search that gives up once a route can't be within
+ *     {@link Configuration#maximumDetour()} of the great circle distance.</li>
+ * </ul>
+ * <p>
+ * Fixes are added one at a time with {@link #add(ReverseGeocoder.Request)}. The most likely sequence of states is
+ * found with the Viterbi algorithm, but only the last {@link Configuration#lag()} fixes are held. When another fix
+ * arrives, the oldest fix is matched to the state on the most likely path to the newest fix, and later fixes are
+ * constrained to paths through that state. Memory use is bounded by the lag no matter how long the trace is. The
+ * remaining fixes are matched by {@link #finish()} at the end of a trace.
+ * <p>
+ * A fix with no edges within {@link Configuration#within()} is not matched. If no state for a fix can be reached from
+ * any state for the fix before it, the trace is broken there: the fixes held so far are matched and a new model
+ * starts with the fix.
+ * <p>
+ * The edges near a fix are found with a spatial query a little larger than needed, and the result is reused for
+ * later fixes as long as they stay within {@link Configuration#reuseDistance()} of the location queried.
+ * <p>
+ * A trace matcher holds the state of a single trace, so it is not thread-safe. Separate traces can be matched in
+ * parallel with separate matchers for the same graph.
+ *
+ * @author jonathanl (shibo)
+ */
+public class TraceMatcher
+{
+    public static class Configuration
+    {
+        /** How far from a fix to look for edges */
+        private Distance within = Distance.meters(30);
+
+        /** How far a fix can be from the location of the last spatial query for the query to be reused */
+        private Distance reuseDistance = Distance.meters(50);
+
+        /** The standard deviation of GPS measurement error */
+        private Distance measurementError = Distance.meters(5);
+
+        /** The scale of the difference between route and great circle distances */
+        private Distance transitionScale = Distance.meters(10);
+
+        /** The largest difference between route and great circle distances searched for */
+        private Distance maximumDetour = Distance.meters(500);
+
+        /** The maximum number of edges considered for each fix */
+        private Count maximumCandidates = Count.count(8);
+
+        /** The number of fixes held before the oldest is matched */
+        private Count lag = Count.count(8);
+
+        public Count lag()
+        {
+            return lag;
+        }
+
+        /**
+         * @param lag The number of fixes to hold before matching the oldest one. A longer lag lets later fixes correct
+         * the match of an earlier one for longer, at the cost of memory and of the delay before fixes are matched.
+         */
+        public void lag(Count lag)
+        {
+            this.lag = lag;
+        }
+
+        public Count maximumCandidates()
+        {
+            return maximumCandidates;
+        }
+
+        public void maximumCandidates(Count maximumCandidates)
+        {
+            this.maximumCandidates = maximumCandidates;
+        }
+
+        public Distance maximumDetour()
+        {
+            return maximumDetour;
+        }
+
+        public void maximumDetour(Distance maximumDetour)
+        {
+            this.maximumDetour = maximumDetour;
+        }
+
+        public Distance measurementError()
+        {
+            return measurementError;
+        }
+
+        public void measurementError(Distance measurementError)
+        {
+            this.measurementError = measurementError;
+        }
+
+        public Distance reuseDistance()
+        {
+            return reuseDistance;
+        }
+
+        public void reuseDistance(Distance reuseDistance)
+        {
+            this.reuseDistance = reuseDistance;
+        }
+
+        public Distance transitionScale()
+        {
+            return transitionScale;
+        }
+
+        public void transitionScale(Distance transitionScale)
+        {
+            this.transitionScale = transitionScale;
+        }
+
+        public Distance within()
+        {
+            return within;
+        }
+
+        public void within(Distance within)
+        {
+            this.within = within;
+        }
+    }
+
+    /**
+     * A fix and the edge it was matched to
+     */
+    public static class Match
+    {
+        private final ReverseGeocoder.Request fix;
+
+        private final Edge edge;
+
+        private final PolylineSnap snap;
+
+        Match(ReverseGeocoder.Request fix, Edge edge, PolylineSnap snap)
+        {
+            this.fix = fix;
+            this.edge = edge;
+            this.snap = snap;
+        }
+
+        public Edge edge()
+        {
+            return edge;
+        }
+
+        public ReverseGeocoder.Request fix()
+        {
+            return fix;
+        }
+
+        public PolylineSnap snap()
+        {
+            return snap;
+        }
+    }
+
+    /**
+     * A hidden state: an edge near a fix and the fix snapped to it
+     */
+    private static class Candidate
+    {
+        private final Edge edge;
+
+        private final PolylineSnap snap;
+
+        /** The distance in meters along the edge to the snapped location */
+        private final double offset;
+
+        /** The log of the emission probability (less a constant) */
+        private final double emission;
+
+        Candidate(Edge edge, PolylineSnap snap, double offset, double emission)
+        {
+            this.edge = edge;
+            this.snap = snap;
+            this.offset = offset;
+            this.emission = emission;
+        }
+    }
+
+    /**
+     * The states for one fix, with their Viterbi scores
+     */
+    private static class Column
+    {
+        private final ReverseGeocoder.Request fix;
+
+        private final Candidate[] candidates;
+
+        /** Log transition probabilities from each state of the previous column to each state of this one */
+        private double[][] transitions;
+
+        /** The log probability of the most likely path to each state */
+        private final double[] scores;
+
+        /** The state in the previous column on the most likely path to each state, or -1 */
+        private final int[] previous;
+
+        Column(ReverseGeocoder.Request fix, Candidate[] candidates)
+        {
+            this.fix = fix;
+            this.candidates = candidates;
+            scores = new double[candidates.length];
+            previous = new int[candidates.length];
+        }
+
+        int best()
+        {
+            var best = 0;
+            for (var at = 1; at < scores.length; at++)
+            {
+                if (scores[at] > scores[best])
+                {
+                    best = at;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Makes this the first column of a model
+         */
+        void start()
+        {
+            transitions = null;
+            for (var at = 0; at < candidates.length; at++)
+            {
+                scores[at] = candidates[at].emission;
+                previous[at] = -1;
+            }
+        }
+    }
+
+    /**
+     * A vertex reached by the route search, and the distance to it
+     */
+    private static class Visit
+    {
+        private final Vertex vertex;
+
+        private final double distance;
+
+        Visit(Vertex vertex, double distance)
+        {
+            this.vertex = vertex;
+            this.distance = distance;
+        }
+    }
+
+    private final Graph graph;
+
+    private final Configuration configuration;
+
+    private final PolylineSnapper snapper = new PolylineSnapper();
+
+    private final SegmentDistanceKernel kernel = new SegmentDistanceKernel();
+
+    /** The columns for the fixes that haven't been matched yet, oldest first */
+    private final List<Column> columns = new ArrayList<>();
+
+    /** The location of the last spatial query, or null if there hasn't been one */
+    private Location queried;
+
+    /** The edges found by the last spatial query */
+    private final List<Edge> nearby = new ArrayList<>();
+
+    public TraceMatcher(Graph graph, Configuration configuration)
+    {
+        this.graph = graph;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Adds the next fix in the trace
+     *
+     * @return Matches for any fixes that are now settled, in the order of the fixes
+     */
+    public List<Match> add(ReverseGeocoder.Request fix)
+    {
+        var matches = new ArrayList<Match>();
+
+        // If there are no edges near the fix, we can't match it
+        var candidates = candidates(fix.location());
+        if (candidates.length == 0)
+        {
+            return matches;
+        }
+
+        // otherwise, extend the model with a column for the fix,
+        var column = new Column(fix, candidates);
+        if (columns.isEmpty())
+        {
+            column.start();
+        }
+        else
+        {
+            var last = columns.get(columns.size() - 1);
+            column.transitions = transitions(last, column);
+
+            // and if the fix can't be reached from the one before it,
+            if (!forward(last, column))
+            {
+                // match everything we have and start over from the fix.
+                flush(matches);
+                column.start();
+            }
+        }
+        columns.add(column);
+
+        // Then match the oldest fixes until we're holding no more than the lag.
+        while (columns.size() > Math.max(1, configuration.lag().asInt()))
+        {
+            matchOldest(matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Ends the trace
+     *
+     * @return Matches for all the fixes that haven't been matched yet, in the order of the fixes
+     */
+    public List<Match> finish()
+    {
+        var matches = new ArrayList<Match>();
+        flush(matches);
+        queried = null;
+        nearby.clear();
+        return matches;
+    }
+
+    /**
+     * Returns the states for a fix at the given location: the nearest edges within the configured distance, with the
+     * location snapped to each
+     */
+    private Candidate[] candidates(Location location)
+    {
+        var within = configuration.within();
+
+        // If the location is too far from the last spatial query for its results to hold every edge near it,
+        if (queried == null || location.distanceTo(queried).isGreaterThan(configuration.reuseDistance()))
+        {
+            // query a larger area than we need, so later fixes can reuse the result.
+            queried = location;
+            nearby.clear();
+            var area = location.within(Distance.meters(within.asMeters() + configuration.reuseDistance().asMeters()));
+            for (var edge : graph.edgesIntersecting(area))
+            {
+                nearby.add(edge);
+            }
+        }
+
+        // Snap the location to each edge near it,
+        var area = location.within(within);
+        var sigma = configuration.measurementError().asMeters();
+        var candidates = new ArrayList<Candidate>();
+        for (var edge : nearby)
+        {
+            if (edge.bounds().intersects(area))
+            {
+                var snap = snapper.snap(edge, location);
+                var distance = snap.distanceToSource().asMeters();
+                if (distance <= within.asMeters())
+                {
+                    var error = distance / sigma;
+                    candidates.add(new Candidate(edge, snap, offsetInMeters(edge, location), -0.5 * error * error));
+                }
+            }
+        }
+
+        // and keep the nearest edges.
+        candidates.sort(Comparator.comparingDouble(candidate -> -candidate.emission));
+        var maximum = Math.max(1, configuration.maximumCandidates().asInt());
+        return candidates.subList(0, Math.min(maximum, candidates.size())).toArray(new Candidate[0]);
+    }
+
+    /**
+     * Matches all the fixes held, along the most likely path to the newest fix, and empties the model
+     */
+    private void flush(List<Match> matches)
+    {
+        if (!columns.isEmpty())
+        {
+            var states = new int[columns.size()];
+            var state = columns.get(columns.size() - 1).best();
+            for (var at = columns.size() - 1; at >= 0; at--)
+            {
+                states[at] = state;
+                state = columns.get(at).previous[state];
+            }
+            for (var at = 0; at < columns.size(); at++)
+            {
+                matches.add(match(columns.get(at), states[at]));
+            }
+            columns.clear();
+        }
+    }
+
+    /**
+     * Computes the Viterbi scores of the given column from the scores of the column before it
+     *
+     * @return True if any state of the column can be reached
+     */
+    private boolean forward(Column previous, Column column)
+    {
+        var reachable = false;
+        var highest = Double.NEGATIVE_INFINITY;
+        for (var to = 0; to < column.candidates.length; to++)
+        {
+            var best = Double.NEGATIVE_INFINITY;
+            var from = -1;
+            for (var at = 0; at < previous.candidates.length; at++)
+            {
+                var score = previous.scores[at] + column.transitions[at][to];
+                if (score > best)
+                {
+                    best = score;
+                    from = at;
+                }
+            }
+            column.scores[to] = best + column.candidates[to].emission;
+            column.previous[to] = from;
+            if (from >= 0)
+            {
+                reachable = true;
+                highest = Math.max(highest, column.scores[to]);
+            }
+        }
+
+        // Scores only matter relative to each other, so keep them near zero as the trace gets longer
+        if (reachable)
+        {
+            for (var to = 0; to < column.scores.length; to++)
+            {
+                column.scores[to] -= highest;
+            }
+        }
+        return reachable;
+    }
+
+    private Match match(Column column, int state)
+    {
+        var candidate = column.candidates[state];
+        return new Match(column.fix, candidate.edge, candidate.snap);
+    }
+
+    /**
+     * Matches the oldest fix to its state on the most likely path to the newest fix, then removes it from the model,
+     * allowing only paths through that state from then on
+     */
+    private void matchOldest(List<Match> matches)
+    {
+        // Trace the most likely path back to the oldest column,
+        var state = columns.get(columns.size() - 1).best();
+        for (var at = columns.size() - 1; at > 0; at--)
+        {
+            state = columns.get(at).previous[state];
+        }
+        matches.add(match(columns.get(0), state));
+        columns.remove(0);
+
+        // rule out states of the next column that aren't reached from the matched state,
+        var first = columns.get(0);
+        for (var at = 0; at < first.candidates.length; at++)
+        {
+            if (first.previous[at] != state)
+            {
+                first.scores[at] = Double.NEGATIVE_INFINITY;
+            }
+            first.previous[at] = -1;
+        }
+        first.transitions = null;
+
+        // and recompute the scores of the columns after it.
+        for (var at = 1; at < columns.size(); at++)
+        {
+            forward(columns.get(at - 1), columns.get(at));
+        }
+    }
+
+    /**
+     * Returns the distance in meters along the given edge from its start to the point nearest the given location,
+     * measured on a local flat projection of the edge's shape and scaled to the edge's length
+     */
+    private double offsetInMeters(Edge edge, Location location)
+    {
+        kernel.distance(edge.roadShape(), location.latitudeInDegrees(), location.longitudeInDegrees());
+        var length = kernel.lengthInMeters();
+        return length > 0 ? kernel.offsetInMeters() * edge.length().asMeters() / length : 0;
+    }
+
+    /**
+     * Returns the distances in meters along the graph from the given state to each of the given states, or
+     * {@link Double#POSITIVE_INFINITY} where the distance is more than the given limit
+     */
+    private double[] routeDistances(Candidate from, Candidate[] to, double limit)
+    {
+        var distances = new double[to.length];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+
+        // States on the same edge are the distance between their offsets apart (GPS noise can make a vehicle seem
+        // to move backwards a little), and the others are reached through the start vertex of their edge.
+        var targets = new HashMap<Vertex, List<Integer>>();
+        for (var at = 0; at < to.length; at++)
+        {
+            if (to[at].edge.equals(from.edge))
+            {
+                distances[at] = Math.abs(to[at].offset - from.offset);
+            }
+            else
+            {
+                targets.computeIfAbsent(to[at].edge.from(), ignored -> new ArrayList<>()).add(at);
+            }
+        }
+
+        // Search outward from the end of the edge we're on until every target is reached or is too far away
+        var remaining = targets.size();
+        var settled = new HashMap<Vertex, Double>();
+        var queue = new PriorityQueue<Visit>(Comparator.comparingDouble(visit -> visit.distance));
+        queue.add(new Visit(from.edge.to(), from.edge.length().asMeters() - from.offset));
+        while (!queue.isEmpty() && remaining > 0)
+        {
+            var visit = queue.poll();
+            if (visit.distance > limit)
+            {
+                break;
+            }
+            if (settled.putIfAbsent(visit.vertex, visit.distance) != null)
+            {
+                continue;
+            }
+            var reached = targets.get(visit.vertex);
+            if (reached != null)
+            {
+                for (var at : reached)
+                {
+                    distances[at] = Math.min(distances[at], visit.distance + to[at].offset);
+                }
+                remaining--;
+            }
+            for (var edge : visit.vertex.outEdges())
+            {
+                var next = edge.to();
+                if (!settled.containsKey(next))
+                {
+                    queue.add(new Visit(next, visit.distance + edge.length().asMeters()));
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Returns the log transition probabilities from each state of the previous column to each state of the given one
+     */
+    private double[][] transitions(Column previous, Column column)
+    {
+        var greatCircle = previous.fix.location().distanceTo(column.fix.location()).asMeters();
+        var detour = configuration.maximumDetour().asMeters();
+        var beta = configuration.transitionScale().asMeters();
+
+        var transitions = new double[previous.candidates.length][];
+        for (var from = 0; from < previous.candidates.length; from++)
+        {
+            // If the state can't be on the most likely path, there's no need to search routes from it
+            transitions[from] = new double[column.candidates.length];
+            if (previous.scores[from] == Double.NEGATIVE_INFINITY)
+            {
+                Arrays.fill(transitions[from], Double.NEGATIVE_INFINITY);
+                continue;
+            }
+
+            var routes = routeDistances(previous.candidates[from], column.candidates, greatCircle + detour);
+            for (var to = 0; to < routes.length; to++)
+            {
+                var difference = Math.abs(routes[to] - greatCircle);
+                transitions[from][to] = difference <= detour ? -difference / beta : Double.NEGATIVE_INFINITY;
+            }
+        }
+        return transitions;
+    }
+}
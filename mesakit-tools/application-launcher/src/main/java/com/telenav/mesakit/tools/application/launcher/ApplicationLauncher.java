@@ -33,6 +33,7 @@ import com.telenav.mesakit.tools.applications.pbf.graph.world.extractor.PbfWorld
 import com.telenav.mesakit.tools.applications.pbf.metadata.PbfMetadataApplication;
 import com.telenav.mesakit.tools.applications.pbf.region.extractor.PbfRegionExtractorApplication;
 import com.telenav.mesakit.tools.applications.region.information.RegionInformationApplication;
+import com.telenav.mesakit.tools.applications.reverse.geocoder.ReverseGeocoderApplication;
 
 import java.util.Arrays;
 
@@ -71,6 +72,10 @@ public class ApplicationLauncher
         System.out.println("    graph-slicer - slices a graph to a bounding rectangle");
         System.out.println("    graph-verifier - verifies the integrity of a graph");
         System.out.println();
+        System.out.println("    // Geocoding Tools");
+        System.out.println();
+        System.out.println("    reverse-geocoder - locates the edges nearest to a file of points");
+        System.out.println();
         System.out.println("    // PBF Tools");
         System.out.println();
         System.out.println("    pbf-analyzer - analyzes pbf files");
@@ -108,6 +113,10 @@ public class ApplicationLauncher
                 case "graph-slicer" -> GraphSlicerApplication.main(arguments);
                 case "graph-verifier" -> GraphVerifierApplication.main(arguments);
 
+                // Geocoding Tools
+
+                case "reverse-geocoder" -> ReverseGeocoderApplication.main(arguments);
+
                 // PBF Tools
 
                 case "pbf-analyzer" -> PbfAnalyzerApplication.main(arguments);
@@ -5,57 +5,108 @@ import com.telenav.kivakit.component.BaseComponent;
 import com.telenav.kivakit.core.collections.list.StringList;
 import com.telenav.kivakit.core.string.AsciiArt;
 import com.telenav.kivakit.core.value.count.Count;
-import com.telenav.kivakit.core.value.count.Estimate;
 import com.telenav.kivakit.filesystem.File;
-import com.telenav.kivakit.primitive.collections.map.split.SplitLongToLongMap;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfNode;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfRelation;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
 import com.telenav.mesakit.map.geography.Location;
 import com.telenav.mesakit.map.geography.shape.polyline.PolylineBuilder;
 import com.telenav.mesakit.map.measurements.geographic.Distance;
+import com.telenav.mesakit.tools.library.pbf.NodeLocationStore;
 
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Accumulates statistics for the nodes, ways and relations of a PBF file and reports them. Entities may be added from
+ * any number of reader threads at once. Each thread adds to its own {@link Statistics}, and the statistics of all
+ * threads are merged when the report is made, so the report is the same no matter how many threads added entities.
+ * Highway lengths are summed in whole millimeters, so they don't depend on the order in which ways are added either.
+ * <p>
+ * Computing lengths requires the location of each node of a way to have been added before the way, as it is in a PBF
+ * file that has its nodes first. Node locations are kept in a memory-mapped {@link NodeLocationStore} of the type
+ * given by the -node-location-store switch, so lengths can be computed for planet files without a huge heap.
+ *
  * @author jonathanl (shibo)
  */
 @SuppressWarnings("UseOfSystemOutOrSystemErr")
 public class Analyzer extends BaseComponent
 {
-    private long ways;
+    /**
+     * Statistics added by one thread, which can be merged with those of other threads
+     */
+    static class Statistics
+    {
+        private long ways;
+
+        private long nodes;
+
+        private long relations;
 
-    private long nodes;
+        private long places;
 
-    private long relations;
+        private long placesWithPopulation;
 
-    private long places;
+        private int turnRestrictions;
 
-    private long placesWithPopulation;
+        private int badTurnRestrictions;
 
-    private int turnRestrictions;
+        private int noLeft;
 
-    private int badTurnRestrictions;
+        private int noRight;
 
-    private int noLeft;
+        private int noStraightOn;
 
-    private int noRight;
+        private int noUTurn;
 
-    private int noStraightOn;
+        private int onlyLeft;
 
-    private int noUTurn;
+        private int onlyRight;
 
-    private int onlyLeft;
+        private int onlyStraightOn;
 
-    private int onlyRight;
+        private final Map<String, Long> millimetersForHighwayType = new HashMap<>();
+
+        /**
+         * Adds the given statistics to these
+         */
+        void merge(Statistics that)
+        {
+            ways += that.ways;
+            nodes += that.nodes;
+            relations += that.relations;
+            places += that.places;
+            placesWithPopulation += that.placesWithPopulation;
+            turnRestrictions += that.turnRestrictions;
+            badTurnRestrictions += that.badTurnRestrictions;
+            noLeft += that.noLeft;
+            noRight += that.noRight;
+            noStraightOn += that.noStraightOn;
+            noUTurn += that.noUTurn;
+            onlyLeft += that.onlyLeft;
+            onlyRight += that.onlyRight;
+            onlyStraightOn += that.onlyStraightOn;
+            that.millimetersForHighwayType.forEach((type, millimeters) ->
+                    millimetersForHighwayType.merge(type, millimeters, Long::sum));
+        }
+    }
 
-    private int onlyStraightOn;
+    /** The statistics of every thread that has added entities */
+    private final List<Statistics> statistics = new CopyOnWriteArrayList<>();
 
-    private final Map<String, Distance> lengthForHighwayType = new HashMap<>();
+    /** The statistics of the current thread */
+    private final ThreadLocal<Statistics> threadStatistics = ThreadLocal.withInitial(() ->
+    {
+        var statistics = new Statistics();
+        this.statistics.add(statistics);
+        return statistics;
+    });
 
-    private final SplitLongToLongMap locationForNode;
+    /** The location of each node, if lengths are being computed */
+    private final NodeLocationStore locationForNode;
 
     private final File input;
 
@@ -75,16 +126,31 @@ public class Analyzer extends BaseComponent
         feedback.add("way filter = $", commandLine.get(application.WAY_FILTER));
         feedback.add("show warnings = $", showWarnings);
         feedback.add("compute lengths = $", computeLengths);
+        feedback.add("parallel = $", commandLine.get(application.PARALLEL));
+        feedback.add("threads = $", commandLine.get(application.THREADS));
+        feedback.add("node location store = $", commandLine.get(application.NODE_LOCATION_STORE));
         information(feedback.titledBox("Analyzing " + input.fileName()));
 
-        locationForNode = new SplitLongToLongMap("locationForNode");
-        locationForNode.initialSize(Estimate._65536);
-        locationForNode.initialize();
+        locationForNode = computeLengths
+                ? NodeLocationStore.create(commandLine.get(application.NODE_LOCATION_STORE))
+                : null;
+    }
+
+    /**
+     * Releases the node location store, if any
+     */
+    public void close()
+    {
+        if (locationForNode != null)
+        {
+            locationForNode.close();
+        }
     }
 
     public void addWay(PbfWay way)
     {
-        ways++;
+        var statistics = threadStatistics.get();
+        statistics.ways++;
         if (computeLengths)
         {
             for (var tag : way)
@@ -95,16 +161,16 @@ public class Analyzer extends BaseComponent
                     var builder = new PolylineBuilder();
                     for (var node : way.nodes())
                     {
-                        builder.add(Location.dm7(locationForNode.get(node.getNodeId())));
+                        var location = locationForNode.get(node.getNodeId());
+                        if (location != NodeLocationStore.MISSING)
+                        {
+                            builder.add(Location.dm7(location));
+                        }
                     }
                     if (builder.size() > 1)
                     {
-                        var length = lengthForHighwayType.get(type);
-                        if (length == null)
-                        {
-                            length = Distance.ZERO;
-                        }
-                        lengthForHighwayType.put(type, length.add(builder.build().length()));
+                        var millimeters = Math.round(builder.build().length().asMeters() * 1_000);
+                        statistics.millimetersForHighwayType.merge(type, millimeters, Long::sum);
                     }
                 }
             }
@@ -113,7 +179,8 @@ public class Analyzer extends BaseComponent
 
     void addNode(PbfNode node)
     {
-        nodes++;
+        var statistics = threadStatistics.get();
+        statistics.nodes++;
         if (computeLengths)
         {
             var location = Location.degrees(node.latitude(), node.longitude());
@@ -124,15 +191,16 @@ public class Analyzer extends BaseComponent
         {
             if (tags.containsKey("population"))
             {
-                placesWithPopulation++;
+                statistics.placesWithPopulation++;
             }
-            places++;
+            statistics.places++;
         }
     }
 
     void addRelation(PbfRelation relation)
     {
-        relations++;
+        var statistics = threadStatistics.get();
+        statistics.relations++;
         for (var tag : relation)
         {
             if (tag.getKey() != null && "restriction".equalsIgnoreCase(tag.getKey()))
@@ -142,23 +210,23 @@ public class Analyzer extends BaseComponent
                 {
                     if (value.startsWith("no_left_turn"))
                     {
-                        noLeft++;
-                        turnRestrictions++;
+                        statistics.noLeft++;
+                        statistics.turnRestrictions++;
                     }
                     else if (value.startsWith("no_right_turn"))
                     {
-                        noRight++;
-                        turnRestrictions++;
+                        statistics.noRight++;
+                        statistics.turnRestrictions++;
                     }
                     else if (value.startsWith("no_straight_on"))
                     {
-                        noStraightOn++;
-                        turnRestrictions++;
+                        statistics.noStraightOn++;
+                        statistics.turnRestrictions++;
                     }
                     else if (value.startsWith("no_u_turn"))
                     {
-                        noUTurn++;
-                        turnRestrictions++;
+                        statistics.noUTurn++;
+                        statistics.turnRestrictions++;
                     }
                     else
                     {
@@ -166,25 +234,25 @@ public class Analyzer extends BaseComponent
                         {
                             System.err.println(tag.getKey() + " = " + value);
                         }
-                        badTurnRestrictions++;
+                        statistics.badTurnRestrictions++;
                     }
                 }
                 else if (value.startsWith("only_"))
                 {
                     if (value.startsWith("only_left_turn"))
                     {
-                        onlyLeft++;
-                        turnRestrictions++;
+                        statistics.onlyLeft++;
+                        statistics.turnRestrictions++;
                     }
                     else if (value.startsWith("only_right_turn"))
                     {
-                        onlyRight++;
-                        turnRestrictions++;
+                        statistics.onlyRight++;
+                        statistics.turnRestrictions++;
                     }
                     else if (value.startsWith("only_straight_on"))
                     {
-                        onlyStraightOn++;
-                        turnRestrictions++;
+                        statistics.onlyStraightOn++;
+                        statistics.turnRestrictions++;
                     }
                     else
                     {
@@ -192,7 +260,7 @@ public class Analyzer extends BaseComponent
                         {
                             System.out.println(tag.getKey() + " = " + value);
                         }
-                        badTurnRestrictions++;
+                        statistics.badTurnRestrictions++;
                     }
                 }
                 else
@@ -201,7 +269,7 @@ public class Analyzer extends BaseComponent
                     {
                         System.out.println(tag.getKey() + " = " + value);
                     }
-                    badTurnRestrictions++;
+                    statistics.badTurnRestrictions++;
                 }
             }
         }
@@ -209,40 +277,47 @@ public class Analyzer extends BaseComponent
 
     void report()
     {
+        // Merge the statistics of all threads
+        var merged = new Statistics();
+        for (var statistics : statistics)
+        {
+            merged.merge(statistics);
+        }
+
         var report = new StringList();
 
-        report.add("nodes = " + Count.count(nodes));
-        report.add("ways = " + Count.count(ways));
-        report.add("relations = " + Count.count(relations));
+        report.add("nodes = " + Count.count(merged.nodes));
+        report.add("ways = " + Count.count(merged.ways));
+        report.add("relations = " + Count.count(merged.relations));
 
         report.add(AsciiArt.line());
 
         report.add("file size = " + input.sizeInBytes());
-        report.add("nodes / byte = " + (double) nodes / input.sizeInBytes().asBytes());
-        report.add("ways / byte = " + (double) ways / input.sizeInBytes().asBytes());
-        report.add("relations / byte = " + (double) relations / input.sizeInBytes().asBytes());
+        report.add("nodes / byte = " + (double) merged.nodes / input.sizeInBytes().asBytes());
+        report.add("ways / byte = " + (double) merged.ways / input.sizeInBytes().asBytes());
+        report.add("relations / byte = " + (double) merged.relations / input.sizeInBytes().asBytes());
 
         report.add(AsciiArt.line());
-        report.add("places = " + Count.count(places));
-        report.add("places with population = " + Count.count(placesWithPopulation));
+        report.add("places = " + Count.count(merged.places));
+        report.add("places with population = " + Count.count(merged.placesWithPopulation));
 
         report.add(AsciiArt.line());
-        report.add("bad turn restrictions = " + badTurnRestrictions);
-        report.add("turn restrictions (excluding bad) = " + turnRestrictions);
+        report.add("bad turn restrictions = " + merged.badTurnRestrictions);
+        report.add("turn restrictions (excluding bad) = " + merged.turnRestrictions);
 
         report.add(AsciiArt.line());
-        report.add("no left turn restrictions = " + noLeft);
-        report.add("no right turn restrictions = " + noRight);
-        report.add("no straight on turn restrictions = " + noStraightOn);
-        report.add("no u-turn restrictions = " + noUTurn);
+        report.add("no left turn restrictions = " + merged.noLeft);
+        report.add("no right turn restrictions = " + merged.noRight);
+        report.add("no straight on turn restrictions = " + merged.noStraightOn);
+        report.add("no u-turn restrictions = " + merged.noUTurn);
 
         report.add(AsciiArt.line());
-        report.add("only left turn restrictions = " + onlyLeft);
-        report.add("only right turn restrictions = " + onlyRight);
-        report.add("only straight on turn restrictions = " + onlyStraightOn);
+        report.add("only left turn restrictions = " + merged.onlyLeft);
+        report.add("only right turn restrictions = " + merged.onlyRight);
+        report.add("only straight on turn restrictions = " + merged.onlyStraightOn);
 
-        if (turnRestrictions != (noLeft + noRight + noStraightOn + noUTurn + onlyLeft
-                + onlyRight + onlyStraightOn))
+        if (merged.turnRestrictions != (merged.noLeft + merged.noRight + merged.noStraightOn + merged.noUTurn
+                + merged.onlyLeft + merged.onlyRight + merged.onlyStraightOn))
         {
             System.err.println("INTERNAL ERROR: turn restrictions don't add up");
         }
@@ -250,11 +325,12 @@ public class Analyzer extends BaseComponent
         if (computeLengths)
         {
             System.out.println(AsciiArt.line());
-            var keys = new StringList(lengthForHighwayType.keySet());
+            var keys = new StringList(merged.millimetersForHighwayType.keySet());
             keys.sort(Comparator.naturalOrder());
             for (var type : keys)
             {
-                System.out.println("highway['" + type + "'] = " + lengthForHighwayType.get(type));
+                var length = Distance.millimeters(merged.millimetersForHighwayType.get(type));
+                System.out.println("highway['" + type + "'] = " + length);
             }
         }
 
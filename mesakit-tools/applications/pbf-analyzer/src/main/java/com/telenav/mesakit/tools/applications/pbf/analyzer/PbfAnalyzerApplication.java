@@ -23,6 +23,7 @@ import com.telenav.kivakit.commandline.ArgumentParser;
 import com.telenav.kivakit.commandline.SwitchParser;
 import com.telenav.kivakit.core.collections.list.ObjectList;
 import com.telenav.kivakit.core.collections.set.ObjectSet;
+import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.data.compression.codecs.huffman.character.HuffmanCharacterCodec;
 import com.telenav.kivakit.data.compression.codecs.huffman.string.HuffmanStringCodec;
 import com.telenav.kivakit.filesystem.File;
@@ -32,9 +33,13 @@ import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
 import com.telenav.mesakit.map.data.formats.pbf.processing.PbfDataProcessor;
 import com.telenav.mesakit.map.data.formats.pbf.processing.filters.RelationFilter;
 import com.telenav.mesakit.map.data.formats.pbf.processing.filters.WayFilter;
+import com.telenav.mesakit.map.data.formats.pbf.processing.readers.ParallelPbfReader;
 import com.telenav.mesakit.map.data.formats.pbf.processing.readers.SerialPbfReader;
+import com.telenav.mesakit.tools.library.pbf.NodeLocationStore;
 
 import static com.telenav.kivakit.commandline.SwitchParsers.booleanSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.enumSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.threadCountSwitchParser;
 import static com.telenav.kivakit.core.collections.list.ObjectList.list;
 import static com.telenav.kivakit.core.collections.set.ObjectSet.set;
 import static com.telenav.kivakit.filesystem.Files.fileArgumentParser;
@@ -44,7 +49,14 @@ import static com.telenav.mesakit.map.data.formats.pbf.processing.filters.Relati
 import static com.telenav.mesakit.map.data.formats.pbf.processing.filters.WayFilter.wayFilterSwitchParser;
 
 /**
- * Analyzes the given PBF file argument. Huffman codec output files are generated by this application.
+ * Analyzes the given PBF file argument. Huffman codec output files are generated by this application. With -parallel,
+ * the file is read by -threads threads, and the report is the same as when it is read serially. Way and relation
+ * filters aren't known to be thread-safe, so each is called by one thread at a time.
+ * <p>
+ * Computing lengths needs the location of every node of a way before the way is analyzed. A serial reader reads all
+ * nodes before any ways, but the threads of a parallel reader can read a way before another thread has read its
+ * nodes. With -parallel and -compute-lengths, the file is therefore read twice: once for its nodes, and once more for
+ * its ways and relations.
  *
  * @author jonathanl (shibo)
  * @see HuffmanStringCodec
@@ -84,6 +96,23 @@ public class PbfAnalyzerApplication extends Application
                     .defaultValue(false)
                     .build();
 
+    final SwitchParser<NodeLocationStore.Type> NODE_LOCATION_STORE =
+            enumSwitchParser(this, "node-location-store",
+                    "DENSE for files with most node identifiers up to the largest, SPARSE for extracts",
+                    NodeLocationStore.Type.class)
+                    .optional()
+                    .defaultValue(NodeLocationStore.Type.DENSE)
+                    .build();
+
+    final SwitchParser<Boolean> PARALLEL =
+            booleanSwitchParser(this, "parallel", "True to use the parallel PBF reader")
+                    .optional()
+                    .defaultValue(false)
+                    .build();
+
+    /** Number of threads to use when reading in parallel */
+    final SwitchParser<Count> THREADS = threadCountSwitchParser(this, Count.count(24));
+
     @Override
     protected ObjectList<ArgumentParser<?>> argumentParsers()
     {
@@ -97,22 +126,101 @@ public class PbfAnalyzerApplication extends Application
         var wayFilter = get(WAY_FILTER);
         var relationFilter = get(RELATION_FILTER);
 
+        if (get(PARALLEL) && get(COMPUTE_LENGTHS) && get(NODE_LOCATION_STORE) == NodeLocationStore.Type.SPARSE)
+        {
+            exit("A sparse node location store requires nodes in order, so it can't be used with -parallel");
+        }
+
         Analyzer analyzer = new Analyzer(commandLine());
+        try
+        {
+            if (get(PARALLEL) && get(COMPUTE_LENGTHS))
+            {
+                // Read every node first, so their locations are stored before any way needs them,
+                read(input, analyzer, wayFilter, relationFilter, true, false);
+
+                // then read the ways and relations.
+                read(input, analyzer, wayFilter, relationFilter, false, true);
+            }
+            else
+            {
+                read(input, analyzer, wayFilter, relationFilter, true, true);
+            }
 
-        var reader = listenTo(new SerialPbfReader(input));
+            analyzer.report();
+        }
+        finally
+        {
+            analyzer.close();
+        }
+    }
+
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
+    {
+        return set(
+                WAY_FILTER,
+                RELATION_FILTER,
+                SHOW_WARNINGS,
+                COMPUTE_LENGTHS,
+                NODE_LOCATION_STORE,
+                PARALLEL,
+                THREADS,
+                QUIET);
+    }
+
+    /**
+     * Returns true if the given filter accepts the given relation, calling the filter on one thread at a time
+     */
+    private static boolean accepts(RelationFilter filter, PbfRelation relation)
+    {
+        synchronized (filter)
+        {
+            return filter.accepts(relation);
+        }
+    }
+
+    /**
+     * Returns true if the given filter accepts the given way, calling the filter on one thread at a time
+     */
+    private static boolean accepts(WayFilter filter, PbfWay way)
+    {
+        synchronized (filter)
+        {
+            return filter.accepts(way);
+        }
+    }
+
+    /**
+     * Reads the given input, adding the entities of the given kinds that pass the given filters to the analyzer
+     */
+    private void read(File input,
+                      Analyzer analyzer,
+                      WayFilter wayFilter,
+                      RelationFilter relationFilter,
+                      boolean nodes,
+                      boolean waysAndRelations)
+    {
+        var reader = get(PARALLEL)
+                ? listenTo(new ParallelPbfReader(input, get(THREADS)))
+                : listenTo(new SerialPbfReader(input));
         reader.process(new PbfDataProcessor()
         {
             @Override
             public Action onNode(PbfNode node)
             {
-                analyzer.addNode(node);
-                return ACCEPTED;
+                if (nodes)
+                {
+                    analyzer.addNode(node);
+                    return ACCEPTED;
+                }
+                return FILTERED_OUT;
             }
 
             @Override
             public Action onRelation(PbfRelation relation)
             {
-                if (relationFilter.accepts(relation))
+                if (waysAndRelations && accepts(relationFilter, relation))
                 {
                     analyzer.addRelation(relation);
                     return ACCEPTED;
@@ -123,7 +231,7 @@ public class PbfAnalyzerApplication extends Application
             @Override
             public Action onWay(PbfWay way)
             {
-                if (wayFilter.accepts(way))
+                if (waysAndRelations && accepts(wayFilter, way))
                 {
                     analyzer.addWay(way);
                     return ACCEPTED;
@@ -131,18 +239,5 @@ public class PbfAnalyzerApplication extends Application
                 return FILTERED_OUT;
             }
         });
-
-        analyzer.report();
-    }
-
-    @Override
-    protected ObjectSet<SwitchParser<?>> switchParsers()
-    {
-        return set(
-                WAY_FILTER,
-                RELATION_FILTER,
-                SHOW_WARNINGS,
-                COMPUTE_LENGTHS,
-                QUIET);
     }
 }
@@ -0,0 +1,371 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.comparator;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Writes the entities that changed between two PBF files in one of two formats:
+ *
+ * <ul>
+ *     <li>{@link Format#LIST} - One tab-separated line per change: the change (added, removed or modified), the entity
+ *     type (node, way or relation) and the identifier. Modified entities have two more columns: the keys of the tags
+ *     that were added, removed or changed, separated by commas (or "-" if none were), and whether the geometry
+ *     changed (true or false).</li>
+ *     <li>{@link Format#OSM_CHANGE} - An osmChange document of the changes written, with the full content of created
+ *     and modified entities. It only turns the before file into the after file if every added, removed and modified
+ *     node, way and relation is written to it, as the PBF comparator does for this format. Creations and
+ *     modifications are written as they arrive, but deletions are held until {@link #finish()} and then written last,
+ *     relations first, then ways, then nodes, so that an entity is never deleted before the entities that refer to it
+ *     (or before a modification that stops referring to it). Only the type, identifier and version of each deletion
+ *     are held, in about 12 bytes each.</li>
+ * </ul>
+ * <p>
+ * Coordinates are written in degrees with seven decimal places, the precision of OSM data.
+ *
+ * @author jonathanl (shibo)
+ */
+class ChangeWriter
+{
+    /**
+     * Output formats
+     */
+    enum Format
+    {
+        LIST,
+        OSM_CHANGE
+    }
+
+    /**
+     * The identifiers and versions of deleted entities of one type
+     */
+    private static class Deletions
+    {
+        private final String type;
+
+        private long[] identifiers = new long[64];
+
+        private int[] versions = new int[64];
+
+        private int size;
+
+        Deletions(String type)
+        {
+            this.type = type;
+        }
+
+        void add(long identifier, int version)
+        {
+            if (size == identifiers.length)
+            {
+                identifiers = Arrays.copyOf(identifiers, size * 2);
+                versions = Arrays.copyOf(versions, size * 2);
+            }
+            identifiers[size] = identifier;
+            versions[size] = version;
+            size++;
+        }
+    }
+
+    private final PrintWriter out;
+
+    private final Format format;
+
+    /** The osmChange action (create, modify or delete) whose element is open, if any */
+    private String action;
+
+    private final Deletions nodeDeletions = new Deletions("node");
+
+    private final Deletions wayDeletions = new Deletions("way");
+
+    private final Deletions relationDeletions = new Deletions("relation");
+
+    ChangeWriter(PrintWriter out, Format format)
+    {
+        this.out = out;
+        this.format = format;
+        if (format == Format.OSM_CHANGE)
+        {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<osmChange version=\"0.6\" generator=\"MesaKit PBF Comparator\">");
+        }
+    }
+
+    /**
+     * Writes an entity that is only in the after file
+     */
+    void added(Entity after)
+    {
+        if (format == Format.LIST)
+        {
+            out.println("added\t" + type(after) + "\t" + after.getId());
+        }
+        else
+        {
+            action("create");
+            writeEntity(after);
+        }
+    }
+
+    /**
+     * Finishes the output, without closing it
+     */
+    void finish()
+    {
+        if (format == Format.OSM_CHANGE)
+        {
+            writeDeletions(relationDeletions);
+            writeDeletions(wayDeletions);
+            writeDeletions(nodeDeletions);
+            action(null);
+            out.println("</osmChange>");
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes an entity whose content differs between the files
+     */
+    void modified(Entity before, Entity after)
+    {
+        if (format == Format.LIST)
+        {
+            var keys = changedTagKeys(before, after);
+            out.println("modified\t" + type(after) + "\t" + after.getId() + "\t"
+                    + (keys.isEmpty() ? "-" : String.join(",", keys)) + "\t" + !sameGeometry(before, after));
+        }
+        else
+        {
+            action("modify");
+            writeEntity(after);
+        }
+    }
+
+    /**
+     * Writes an entity that is only in the before file, or with {@link Format#OSM_CHANGE}, holds it to be written by
+     * {@link #finish()}
+     */
+    void removed(Entity before)
+    {
+        if (format == Format.LIST)
+        {
+            out.println("removed\t" + type(before) + "\t" + before.getId());
+        }
+        else
+        {
+            var deletions = switch (before.getType())
+            {
+                case Node -> nodeDeletions;
+                case Way -> wayDeletions;
+                default -> relationDeletions;
+            };
+            deletions.add(before.getId(), before.getVersion());
+        }
+    }
+
+    /**
+     * Opens the element for the given osmChange action, closing the open one if it is different
+     */
+    private void action(String action)
+    {
+        if (!Objects.equals(action, this.action))
+        {
+            if (this.action != null)
+            {
+                out.println("  </" + this.action + ">");
+            }
+            if (action != null)
+            {
+                out.println("  <" + action + ">");
+            }
+            this.action = action;
+        }
+    }
+
+    /**
+     * Returns the sorted keys of tags that are in only one of the given entities or that have different values
+     */
+    private static TreeSet<String> changedTagKeys(Entity before, Entity after)
+    {
+        var beforeTags = new HashMap<String, String>();
+        for (var tag : before.getTags())
+        {
+            beforeTags.put(tag.getKey(), tag.getValue());
+        }
+        var keys = new TreeSet<String>();
+        for (var tag : after.getTags())
+        {
+            var value = beforeTags.remove(tag.getKey());
+            if (!tag.getValue().equals(value))
+            {
+                keys.add(tag.getKey());
+            }
+        }
+        keys.addAll(beforeTags.keySet());
+        return keys;
+    }
+
+    /**
+     * Returns the given coordinate with seven decimal places, rather than in the exponent notation that
+     * {@link Double#toString(double)} uses near zero
+     */
+    private static String degrees(double degrees)
+    {
+        return String.format(Locale.ROOT, "%.7f", degrees);
+    }
+
+    private static String escape(String text)
+    {
+        var escaped = new StringBuilder(text.length());
+        for (var at = 0; at < text.length(); at++)
+        {
+            var character = text.charAt(at);
+            switch (character)
+            {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                case '\'' -> escaped.append("&apos;");
+                default -> escaped.append(character);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Returns true if the given entities have exactly the same geometry
+     */
+    private static boolean sameGeometry(Entity before, Entity after)
+    {
+        if (before instanceof Node && after instanceof Node)
+        {
+            return ((Node) before).getLatitude() == ((Node) after).getLatitude()
+                    && ((Node) before).getLongitude() == ((Node) after).getLongitude();
+        }
+        if (before instanceof Way && after instanceof Way)
+        {
+            var beforeNodes = ((Way) before).getWayNodes();
+            var afterNodes = ((Way) after).getWayNodes();
+            if (beforeNodes.size() != afterNodes.size())
+            {
+                return false;
+            }
+            for (var index = 0; index < beforeNodes.size(); index++)
+            {
+                if (beforeNodes.get(index).getNodeId() != afterNodes.get(index).getNodeId())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (before instanceof Relation && after instanceof Relation)
+        {
+            var beforeMembers = ((Relation) before).getMembers();
+            var afterMembers = ((Relation) after).getMembers();
+            if (beforeMembers.size() != afterMembers.size())
+            {
+                return false;
+            }
+            for (var index = 0; index < beforeMembers.size(); index++)
+            {
+                var beforeMember = beforeMembers.get(index);
+                var afterMember = afterMembers.get(index);
+                if (beforeMember.getMemberId() != afterMember.getMemberId()
+                        || beforeMember.getMemberType() != afterMember.getMemberType()
+                        || !Objects.equals(beforeMember.getMemberRole(), afterMember.getMemberRole()))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static String type(Entity entity)
+    {
+        return entity.getType().name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Writes the given deletions in a delete element
+     */
+    private void writeDeletions(Deletions deletions)
+    {
+        if (deletions.size > 0)
+        {
+            action("delete");
+            for (var index = 0; index < deletions.size; index++)
+            {
+                out.println("    <" + deletions.type + " id=\"" + deletions.identifiers[index] + "\" version=\""
+                        + deletions.versions[index] + "\"/>");
+            }
+        }
+    }
+
+    /**
+     * Writes the given entity as an OSM XML element
+     */
+    private void writeEntity(Entity entity)
+    {
+        var element = new StringBuilder("    <" + type(entity) + " id=\"" + entity.getId() + "\" version=\""
+                + entity.getVersion() + "\"");
+        if (entity instanceof Node)
+        {
+            var node = (Node) entity;
+            element.append(" lat=\"").append(degrees(node.getLatitude()))
+                    .append("\" lon=\"").append(degrees(node.getLongitude()))
+                    .append("\"");
+        }
+        out.println(element.append(">"));
+
+        if (entity instanceof Way)
+        {
+            for (var node : ((Way) entity).getWayNodes())
+            {
+                out.println("      <nd ref=\"" + node.getNodeId() + "\"/>");
+            }
+        }
+        if (entity instanceof Relation)
+        {
+            for (var member : ((Relation) entity).getMembers())
+            {
+                out.println("      <member type=\"" + member.getMemberType().name().toLowerCase(Locale.ROOT)
+                        + "\" ref=\"" + member.getMemberId() + "\" role=\"" + escape(member.getMemberRole()) + "\"/>");
+            }
+        }
+        for (var tag : entity.getTags())
+        {
+            out.println("      <tag k=\"" + escape(tag.getKey()) + "\" v=\"" + escape(tag.getValue()) + "\"/>");
+        }
+        out.println("    </" + type(entity) + ">");
+    }
+}
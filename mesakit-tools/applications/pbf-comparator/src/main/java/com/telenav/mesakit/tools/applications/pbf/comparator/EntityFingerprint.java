@@ -0,0 +1,118 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.comparator;
+
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+
+/**
+ * Computes 64-bit fingerprints of the content of OSM entities: their tags and their geometry, which is the location of
+ * a node, the node identifiers of a way or the members of a relation. Tags are combined without regard to order, and
+ * geometry in order. Metadata like versions, timestamps and users is left out, so two entities with the same content
+ * have the same fingerprint, and entities with different fingerprints certainly differ.
+ *
+ * @author jonathanl (shibo)
+ */
+class EntityFingerprint
+{
+    /**
+     * Returns the fingerprint of the tags and geometry of the given entity
+     */
+    static long fingerprint(Entity entity)
+    {
+        return mix(tags(entity) * 31 + geometry(entity));
+    }
+
+    /**
+     * Returns the fingerprint of the geometry of the given entity
+     */
+    static long geometry(Entity entity)
+    {
+        var hash = 0x9E3779B97F4A7C15L;
+        if (entity instanceof Node)
+        {
+            var node = (Node) entity;
+            hash = combine(hash, Double.doubleToLongBits(node.getLatitude()));
+            hash = combine(hash, Double.doubleToLongBits(node.getLongitude()));
+        }
+        else if (entity instanceof Way)
+        {
+            for (var node : ((Way) entity).getWayNodes())
+            {
+                hash = combine(hash, node.getNodeId());
+            }
+        }
+        else if (entity instanceof Relation)
+        {
+            for (var member : ((Relation) entity).getMembers())
+            {
+                hash = combine(hash, member.getMemberType().ordinal());
+                hash = combine(hash, member.getMemberId());
+                hash = combine(hash, hash(member.getMemberRole()));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the fingerprint of the tags of the given entity, which doesn't depend on their order
+     */
+    static long tags(Entity entity)
+    {
+        var hash = 0L;
+        for (var tag : entity.getTags())
+        {
+            hash += mix(hash(tag.getKey()) ^ Long.rotateLeft(hash(tag.getValue()), 32));
+        }
+        return hash;
+    }
+
+    private static long combine(long hash, long value)
+    {
+        return mix(hash ^ value) + 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the given text
+     */
+    private static long hash(String text)
+    {
+        var hash = 0xCBF29CE484222325L;
+        if (text != null)
+        {
+            for (var at = 0; at < text.length(); at++)
+            {
+                hash = (hash ^ text.charAt(at)) * 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Scrambles the bits of the given value (the SplitMix64 finalizer)
+     */
+    private static long mix(long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -31,28 +31,297 @@ import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
 import com.telenav.mesakit.map.data.formats.pbf.osm.Osm;
 import com.telenav.mesakit.map.data.formats.pbf.processing.PbfDataProcessor;
 import com.telenav.mesakit.map.data.formats.pbf.processing.readers.SerialPbfReader;
+import org.openstreetmap.osmosis.core.domain.v0_6.Entity;
 
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static com.telenav.kivakit.commandline.SwitchParsers.booleanSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.enumSwitchParser;
 import static com.telenav.kivakit.core.collections.set.ObjectSet.set;
 import static com.telenav.kivakit.filesystem.Files.fileSwitchParser;
 import static com.telenav.mesakit.map.data.formats.pbf.processing.PbfDataProcessor.Action.ACCEPTED;
 
 /**
- * Compares two PBF files
+ * Compares two PBF files, showing the identifiers of nodes, ways and relations that were added and removed.
+ * <p>
+ * By default, the identifiers in each file are read into sets, one file after the other, and the sets are compared.
+ * With -streaming, the files are read at the same time on two threads, and their identifiers are merged in order as
+ * they arrive, so memory use doesn't grow with the size of the files. This requires both files to be sorted by entity
+ * type (nodes, then ways, then relations) and then by identifier, as most PBF files are. Streaming comparison exits
+ * with an error if it finds that a file isn't sorted.
+ * <p>
+ * With -content, the comparison streams and also finds entities whose content changed. Each reader thread computes an
+ * {@link EntityFingerprint} of the tags and geometry of every entity it reads, and only entities present in both files
+ * with different fingerprints are compared in detail. Changes are written to -changes (or the console) by a
+ * {@link ChangeWriter}, as a tab-separated change list or, with -change-format=OSM_CHANGE, as an osmChange document.
+ * Ways are compared whether or not they are navigable, so a way whose tags change its navigability is modified rather
+ * than added or removed. A change list holds the types of entity selected by -compareNodes, -compareWays and
+ * -compareRelations, and the additions and removals selected by -showAdded and -showRemoved. An osmChange document
+ * only turns the before file into the after file if it holds every change, so it always compares every type of entity
+ * and includes every addition and removal, whatever those switches say. The comparison reaches nodes, ways and
+ * relations in that order, so creations and modifications are written in that order, and the change writer holds
+ * deletions back to write them last, in the reverse order.
  *
  * @author jonathanl (shibo)
  */
 @SuppressWarnings({ "UseOfSystemOutOrSystemErr", "DuplicatedCode" })
 public class PbfComparatorApplication extends Application
 {
+    /** Entity types in the order they appear in a sorted PBF file */
+    private static final int NODE = 0;
+
+    private static final int WAY = 1;
+
+    private static final int RELATION = 2;
+
+    /** The type of a stream that has no more entities, which orders after all others */
+    private static final int END = 3;
+
+    private static final String[] TYPE_NAMES = { "nodes", "ways", "relations" };
+
+    /** The number of identifiers passed from a reader thread to the comparison at once */
+    private static final int BATCH_SIZE = 4_096;
+
+    /** The number of batches a reader thread can get ahead of the comparison */
+    private static final int QUEUED_BATCHES = 16;
+
     public static void main(String[] arguments)
     {
         new PbfComparatorApplication().run(arguments);
     }
 
+    /**
+     * Entity types and identifiers passed from a reader thread to the comparison, with fingerprints and entities when
+     * comparing content. An empty batch ends the stream.
+     */
+    private static class Batch
+    {
+        private final byte[] types = new byte[BATCH_SIZE];
+
+        private final long[] identifiers = new long[BATCH_SIZE];
+
+        private final long[] fingerprints;
+
+        private final Entity[] entities;
+
+        private int size;
+
+        /** Any problem that ended the stream early */
+        private Throwable failure;
+
+        Batch(boolean content)
+        {
+            fingerprints = content ? new long[BATCH_SIZE] : null;
+            entities = content ? new Entity[BATCH_SIZE] : null;
+        }
+
+        boolean isFull()
+        {
+            return size == BATCH_SIZE;
+        }
+    }
+
+    /**
+     * The compared entities of a PBF file, read on a thread of their own and consumed in file order
+     */
+    private class EntityStream
+    {
+        private final File file;
+
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+
+        /** True if fingerprints and entities are passed along with identifiers */
+        private final boolean content = get(CONTENT);
+
+        /** True for each type of entity that is compared */
+        private final boolean nodes = compares(COMPARE_NODES);
+
+        private final boolean ways = compares(COMPARE_WAYS);
+
+        private final boolean relations = compares(COMPARE_RELATIONS);
+
+        /** The batch being filled by the reader thread */
+        private Batch filling = new Batch(content);
+
+        /** The batch being consumed and the index of the next entity in it */
+        private Batch consuming;
+
+        private int next;
+
+        /** The type, identifier, fingerprint and entity of the current entity */
+        private int type = -1;
+
+        private long identifier;
+
+        private long fingerprint;
+
+        private Entity entity;
+
+        EntityStream(File file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * Moves to the next entity in the file, or to the end of the stream
+         */
+        void advance()
+        {
+            if (consuming == null || next == consuming.size)
+            {
+                consuming = take();
+                next = 0;
+                if (consuming.size == 0)
+                {
+                    if (consuming.failure != null)
+                    {
+                        exit("Unable to read $: $", file, consuming.failure.getMessage());
+                    }
+                    type = END;
+                    return;
+                }
+            }
+
+            var previousType = type;
+            var previousIdentifier = identifier;
+            type = consuming.types[next];
+            identifier = consuming.identifiers[next];
+            if (content)
+            {
+                fingerprint = consuming.fingerprints[next];
+                entity = consuming.entities[next];
+                consuming.entities[next] = null;
+            }
+            next++;
+
+            if (type < previousType || (type == previousType && identifier <= previousIdentifier))
+            {
+                exit("$ is not sorted by entity type and identifier. Compare it without -streaming.", file);
+            }
+        }
+
+        /**
+         * Orders streams by the type and then the identifier of their current entity
+         */
+        int compareTo(EntityStream that)
+        {
+            var comparison = Integer.compare(type, that.type);
+            return comparison != 0 ? comparison : Long.compare(identifier, that.identifier);
+        }
+
+        /**
+         * Starts reading the file on a thread of its own
+         */
+        void start()
+        {
+            var thread = new Thread(this::read, "pbf-comparator-" + file.fileName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void add(int type, long identifier, Entity entity)
+        {
+            filling.types[filling.size] = (byte) type;
+            filling.identifiers[filling.size] = identifier;
+            if (content)
+            {
+                filling.fingerprints[filling.size] = EntityFingerprint.fingerprint(entity);
+                filling.entities[filling.size] = entity;
+            }
+            filling.size++;
+            if (filling.isFull())
+            {
+                put(filling);
+                filling = new Batch(content);
+            }
+        }
+
+        private void put(Batch batch)
+        {
+            try
+            {
+                queue.put(batch);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading " + file, e);
+            }
+        }
+
+        private void read()
+        {
+            var progress = BroadcastingProgressReporter.progressReporter(PbfComparatorApplication.this);
+            var end = new Batch(false);
+            try
+            {
+                new SerialPbfReader(file).process(new PbfDataProcessor()
+                {
+                    @Override
+                    public Action onNode(PbfNode node)
+                    {
+                        if (nodes)
+                        {
+                            add(NODE, node.identifierAsLong(), node.get());
+                        }
+                        progress.next();
+                        return ACCEPTED;
+                    }
+
+                    @Override
+                    public Action onRelation(PbfRelation relation)
+                    {
+                        if (relations)
+                        {
+                            add(RELATION, relation.identifierAsLong(), relation.get());
+                        }
+                        progress.next();
+                        return ACCEPTED;
+                    }
+
+                    @Override
+                    public Action onWay(PbfWay way)
+                    {
+                        // (Comparing content, every way is compared, so that a change in navigability is a
+                        // modification)
+                        if (ways && (content || Osm.isNavigable(way)))
+                        {
+                            add(WAY, way.identifierAsLong(), way.get());
+                        }
+                        progress.next();
+                        return ACCEPTED;
+                    }
+                });
+                if (filling.size > 0)
+                {
+                    put(filling);
+                }
+            }
+            catch (Throwable e)
+            {
+                end.failure = e;
+            }
+            put(end);
+        }
+
+        private Batch take()
+        {
+            try
+            {
+                return queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while comparing " + file, e);
+            }
+        }
+    }
+
     private final SwitchParser<File> BEFORE =
             fileSwitchParser(this, "before", "The before PBF file to process")
                     .required()
@@ -93,6 +362,30 @@ public class PbfComparatorApplication extends Application
                     .defaultValue(true)
                     .build();
 
+    private final SwitchParser<Boolean> CONTENT =
+            booleanSwitchParser(this, "content", "True to also find entities whose tags or geometry changed")
+                    .optional()
+                    .defaultValue(false)
+                    .build();
+
+    private final SwitchParser<File> CHANGES =
+            fileSwitchParser(this, "changes", "The file to write changes to when comparing content")
+                    .optional()
+                    .build();
+
+    private final SwitchParser<ChangeWriter.Format> CHANGE_FORMAT =
+            enumSwitchParser(this, "change-format", "The format of changes when comparing content",
+                    ChangeWriter.Format.class)
+                    .optional()
+                    .defaultValue(ChangeWriter.Format.LIST)
+                    .build();
+
+    private final SwitchParser<Boolean> STREAMING =
+            booleanSwitchParser(this, "streaming", "True to compare sorted files as they are read, in constant memory")
+                    .optional()
+                    .defaultValue(false)
+                    .build();
+
     public void compare(File before, File after)
     {
         var start = Time.now();
@@ -195,19 +488,13 @@ public class PbfComparatorApplication extends Application
             @Override
             protected void onAdded(Long id)
             {
-                if (get(SHOW_ADDED))
-                {
-                    System.out.println("+" + id);
-                }
+                added(id);
             }
 
             @Override
             protected void onRemoved(Long id)
             {
-                if (get(SHOW_REMOVED))
-                {
-                    System.out.println("-" + id);
-                }
+                removed(id);
             }
 
             @Override
@@ -233,6 +520,80 @@ public class PbfComparatorApplication extends Application
         information("Comparison took $", start.elapsedSince());
     }
 
+    /**
+     * Compares the given files by reading them at the same time and merging their sorted identifiers, writing changes
+     * to the given writer if content is being compared
+     */
+    private void compareStreaming(File before, File after, ChangeWriter changes)
+    {
+        var start = Time.now();
+
+        var beforeStream = new EntityStream(before);
+        var afterStream = new EntityStream(after);
+        beforeStream.start();
+        afterStream.start();
+        beforeStream.advance();
+        afterStream.advance();
+
+        var type = -1;
+        while (beforeStream.type != END || afterStream.type != END)
+        {
+            // Announce each type of entity as the comparison reaches it,
+            var comparison = beforeStream.compareTo(afterStream);
+            var lowest = comparison <= 0 ? beforeStream.type : afterStream.type;
+            if (lowest != type)
+            {
+                type = lowest;
+                information("Comparing $", TYPE_NAMES[type]);
+            }
+
+            // and if both files have the entity,
+            if (comparison == 0)
+            {
+                // it is unchanged unless its content differs,
+                if (changes != null && beforeStream.fingerprint != afterStream.fingerprint)
+                {
+                    changes.modified(beforeStream.entity, afterStream.entity);
+                }
+                beforeStream.advance();
+                afterStream.advance();
+            }
+            else if (comparison < 0)
+            {
+                // otherwise, if only the before file has it, it was removed,
+                if (changes != null)
+                {
+                    if (get(SHOW_REMOVED) || isOsmChange())
+                    {
+                        changes.removed(beforeStream.entity);
+                    }
+                }
+                else
+                {
+                    removed(beforeStream.identifier);
+                }
+                beforeStream.advance();
+            }
+            else
+            {
+                // and if only the after file has it, it was added.
+                if (changes != null)
+                {
+                    if (get(SHOW_ADDED) || isOsmChange())
+                    {
+                        changes.added(afterStream.entity);
+                    }
+                }
+                else
+                {
+                    added(afterStream.identifier);
+                }
+                afterStream.advance();
+            }
+        }
+        information("Comparison took $", start.elapsedSince());
+    }
+
     @Override
     protected void onRun()
     {
@@ -246,12 +607,65 @@ public class PbfComparatorApplication extends Application
         {
             exit("After file does not exist: " + after);
         }
-        compare(before, after);
+        if (get(CONTENT))
+        {
+            var file = get(CHANGES);
+            var out = file != null ? file.printWriter() : new PrintWriter(System.out);
+            var changes = new ChangeWriter(out, get(CHANGE_FORMAT));
+            compareStreaming(before, after, changes);
+            changes.finish();
+            if (file != null)
+            {
+                out.close();
+            }
+        }
+        else if (get(STREAMING))
+        {
+            compareStreaming(before, after, null);
+        }
+        else
+        {
+            compare(before, after);
+        }
     }
 
     @Override
     protected ObjectSet<SwitchParser<?>> switchParsers()
     {
-        return set(BEFORE, AFTER, SHOW_REMOVED, SHOW_ADDED, COMPARE_NODES, COMPARE_RELATIONS, COMPARE_WAYS, QUIET);
+        return set(BEFORE, AFTER, SHOW_REMOVED, SHOW_ADDED, COMPARE_NODES, COMPARE_RELATIONS, COMPARE_WAYS, STREAMING,
+                CONTENT, CHANGES, CHANGE_FORMAT, QUIET);
+    }
+
+    private void added(long identifier)
+    {
+        if (get(SHOW_ADDED))
+        {
+            System.out.println("+" + identifier);
+        }
+    }
+
+    /**
+     * Returns true if the type of entity selected by the given switch is compared, which every type is when writing an
+     * osmChange document
+     */
+    private boolean compares(SwitchParser<Boolean> type)
+    {
+        return get(type) || isOsmChange();
+    }
+
+    /**
+     * Returns true if content changes are written as an osmChange document
+     */
+    private boolean isOsmChange()
+    {
+        return get(CONTENT) && get(CHANGE_FORMAT) == ChangeWriter.Format.OSM_CHANGE;
+    }
+
+    private void removed(long identifier)
+    {
+        if (get(SHOW_REMOVED))
+        {
+            System.out.println("-" + identifier);
+        }
     }
 }
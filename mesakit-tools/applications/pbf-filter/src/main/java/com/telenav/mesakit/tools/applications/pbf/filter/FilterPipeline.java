@@ -0,0 +1,183 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.filter;
+
+import com.telenav.kivakit.core.value.count.Count;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs a stream of work in three stages. The thread that reads the input adds a piece of work for each block of input
+ * with {@link #add(Supplier)}, which should do nothing but read. Each piece of work (decoding and filtering a block) is
+ * done on one of a pool of threads, and a single writer thread takes the results in the order the work was added and
+ * passes them to the writer, so the output is in the same order as the input. The number of results waiting to be
+ * written is bounded, so a slow writer holds back the reader rather than filling the heap.
+ * <p>
+ * The work is done on many threads at once, so anything it shares must be thread-safe. The writer is only called on
+ * the writer thread, so it needn't be.
+ * <p>
+ * A pipeline should be closed with {@link #close()} in a finally block, so that if reading fails before
+ * {@link #finish()} is called, the writer thread and the worker threads are stopped rather than left waiting. The
+ * threads are daemon threads, so they can't keep the process alive in any case.
+ *
+ * @author jonathanl (shibo)
+ */
+class FilterPipeline<R>
+{
+    private final Consumer<R> writer;
+
+    private final ExecutorService workers;
+
+    /** The work being done, in the order it was added, ending with {@link #end} */
+    private final BlockingQueue<CompletableFuture<R>> pending;
+
+    /** Marks the end of the stream */
+    private final CompletableFuture<R> end = new CompletableFuture<>();
+
+    private final Thread writerThread;
+
+    /** Any problem doing the work or writing */
+    private volatile Throwable failure;
+
+    /**
+     * @param threads The number of threads to do work on
+     * @param writer Writes the result of each piece of work, in order
+     */
+    FilterPipeline(Count threads, Consumer<R> writer)
+    {
+        this.writer = writer;
+        workers = Executors.newFixedThreadPool(threads.asInt(), runnable ->
+        {
+            var thread = new Thread(runnable, "pbf-filter-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pending = new ArrayBlockingQueue<>(threads.asInt() * 4);
+        writerThread = new Thread(this::write, "pbf-filter-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Adds the given work to the pipeline, waiting if too many results are waiting to be written
+     */
+    void add(Supplier<R> work)
+    {
+        put(CompletableFuture.supplyAsync(work, workers));
+    }
+
+    /**
+     * Stops the writer thread and the worker threads if they are still running, discarding any results that haven't
+     * been written. This does nothing after {@link #finish()} has returned.
+     */
+    void close()
+    {
+        if (writerThread.isAlive())
+        {
+            writerThread.interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Waits for the writer to write the results of all the work added
+     */
+    void finish()
+    {
+        put(end);
+        try
+        {
+            writerThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        if (failure != null)
+        {
+            throw new IllegalStateException("Unable to filter blocks", failure);
+        }
+    }
+
+    private void put(CompletableFuture<R> future)
+    {
+        try
+        {
+            pending.put(future);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while filtering", e);
+        }
+    }
+
+    /**
+     * Writes results in order until the stream ends, on the writer thread
+     */
+    private void write()
+    {
+        try
+        {
+            while (true)
+            {
+                var future = pending.take();
+                if (future == end)
+                {
+                    break;
+                }
+                writer.accept(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | RuntimeException e)
+        {
+            failure = e;
+
+            // Keep draining so the reader isn't blocked on a full queue
+            drain();
+        }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            while (pending.take() != end)
+            {
+                // Discard the result
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
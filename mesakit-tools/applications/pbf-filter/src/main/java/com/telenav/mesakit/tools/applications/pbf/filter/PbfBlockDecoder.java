@@ -0,0 +1,612 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.filter;
+
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfNode;
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfRelation;
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
+import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
+import org.openstreetmap.osmosis.core.domain.v0_6.CommonEntityData;
+import org.openstreetmap.osmosis.core.domain.v0_6.EntityType;
+import org.openstreetmap.osmosis.core.domain.v0_6.Node;
+import org.openstreetmap.osmosis.core.domain.v0_6.OsmUser;
+import org.openstreetmap.osmosis.core.domain.v0_6.Relation;
+import org.openstreetmap.osmosis.core.domain.v0_6.RelationMember;
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+import org.openstreetmap.osmosis.core.domain.v0_6.Way;
+import org.openstreetmap.osmosis.core.domain.v0_6.WayNode;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a {@link PbfBlockReader.RawBlock} into the bounds of the file (for the header block) or the nodes, ways and
+ * relations of a data block. Blocks are independent of each other, so any number of blocks can be decoded at once on
+ * different threads.
+ * <p>
+ * A data block can be decoded for only some of its contents: decoding only ways and relations skips node groups
+ * without decoding them, but still records whether the block holds nodes, so that a later pass can read only the
+ * blocks that do. Blocks compressed with zlib or not compressed are supported, which covers the files written by
+ * Osmosis, osmium and the planet dumps.
+ *
+ * @author jonathanl (shibo)
+ */
+class PbfBlockDecoder
+{
+    /**
+     * The contents of a block to decode
+     */
+    enum Contents
+    {
+        ALL,
+        NODES,
+        WAYS_AND_RELATIONS
+    }
+
+    /**
+     * The decoded contents of a block
+     */
+    static class DecodedBlock
+    {
+        /** The bounds of the file, if this is a header block that has them */
+        Bound bound;
+
+        /** True if the block holds nodes, even if they weren't decoded */
+        boolean hasNodes;
+
+        final List<PbfNode> nodes = new ArrayList<>();
+
+        final List<PbfWay> ways = new ArrayList<>();
+
+        final List<PbfRelation> relations = new ArrayList<>();
+    }
+
+    /** The number of nanodegrees in a degree */
+    private static final double NANODEGREES = 1E-9;
+
+    /**
+     * The strings and coordinate scales of a primitive block, which its entities refer to
+     */
+    private static class BlockContext
+    {
+        private String[] strings = new String[0];
+
+        private long granularity = 100;
+
+        private long latitudeOffset;
+
+        private long longitudeOffset;
+
+        private long dateGranularity = 1000;
+
+        private String string(long index)
+        {
+            if (index < 0 || index >= strings.length)
+            {
+                throw new IllegalStateException("String index " + index + " is outside the block's string table");
+            }
+            return strings[(int) index];
+        }
+
+        private double latitude(long latitude)
+        {
+            return NANODEGREES * (latitudeOffset + granularity * latitude);
+        }
+
+        private double longitude(long longitude)
+        {
+            return NANODEGREES * (longitudeOffset + granularity * longitude);
+        }
+    }
+
+    /**
+     * The metadata of an entity, as read from an Info message
+     */
+    private static class Info
+    {
+        private int version;
+
+        private long timestamp;
+
+        private long changeset;
+
+        private int uid = -1;
+
+        private long userIndex = -1;
+    }
+
+    /**
+     * Decodes the given contents of the given block
+     */
+    static DecodedBlock decode(PbfBlockReader.RawBlock block, Contents contents)
+    {
+        var decoded = new DecodedBlock();
+        var data = uncompress(block);
+        if (block.isHeader())
+        {
+            decoded.bound = bound(data);
+        }
+        else if ("OSMData".equals(block.type))
+        {
+            decodePrimitiveBlock(data, contents, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the bounds in the given header block, or null if it has none
+     */
+    private static Bound bound(byte[] header)
+    {
+        Bound bound = null;
+        String source = null;
+        var fields = new Protobuf(header, 0, header.length);
+        while (fields.hasMore())
+        {
+            var tag = fields.tag();
+            switch (tag)
+            {
+                case 1 << 3 | Protobuf.LENGTH_DELIMITED ->
+                {
+                    var box = fields.message();
+                    long left = 0, right = 0, top = 0, bottom = 0;
+                    while (box.hasMore())
+                    {
+                        var boxTag = box.tag();
+                        switch (boxTag)
+                        {
+                            case 1 << 3 -> left = box.signed();
+                            case 2 << 3 -> right = box.signed();
+                            case 3 << 3 -> top = box.signed();
+                            case 4 << 3 -> bottom = box.signed();
+                            default -> box.skip(boxTag);
+                        }
+                    }
+                    bound = new Bound(right * NANODEGREES, left * NANODEGREES, top * NANODEGREES,
+                            bottom * NANODEGREES, "");
+                }
+                case 17 << 3 | Protobuf.LENGTH_DELIMITED -> source = fields.string();
+                default -> fields.skip(tag);
+            }
+        }
+        if (bound != null && source != null)
+        {
+            bound = new Bound(bound.getRight(), bound.getLeft(), bound.getTop(), bound.getBottom(), source);
+        }
+        return bound;
+    }
+
+    private static CommonEntityData entityData(BlockContext context, long identifier, Info info, List<Tag> tags)
+    {
+        if (info == null)
+        {
+            return new CommonEntityData(identifier, 0, new Date(0), OsmUser.NONE, 0, tags);
+        }
+        var user = info.uid >= 0 && info.userIndex >= 0
+                ? new OsmUser(info.uid, context.string(info.userIndex))
+                : OsmUser.NONE;
+        return new CommonEntityData(identifier, info.version, new Date(info.timestamp * context.dateGranularity), user,
+                info.changeset, tags);
+    }
+
+    private static void decodeDenseNodes(BlockContext context, Protobuf dense, DecodedBlock decoded)
+    {
+        var identifiers = new Protobuf.Longs();
+        var latitudes = new Protobuf.Longs();
+        var longitudes = new Protobuf.Longs();
+        var keysAndValues = new Protobuf.Longs();
+        var versions = new Protobuf.Longs();
+        var timestamps = new Protobuf.Longs();
+        var changesets = new Protobuf.Longs();
+        var uids = new Protobuf.Longs();
+        var userIndexes = new Protobuf.Longs();
+        while (dense.hasMore())
+        {
+            var tag = dense.tag();
+            switch (tag >>> 3)
+            {
+                case 1 -> dense.repeated(tag, true, identifiers);
+                case 5 ->
+                {
+                    var info = dense.message();
+                    while (info.hasMore())
+                    {
+                        var infoTag = info.tag();
+                        switch (infoTag >>> 3)
+                        {
+                            case 1 -> info.repeated(infoTag, false, versions);
+                            case 2 -> info.repeated(infoTag, true, timestamps);
+                            case 3 -> info.repeated(infoTag, true, changesets);
+                            case 4 -> info.repeated(infoTag, true, uids);
+                            case 5 -> info.repeated(infoTag, true, userIndexes);
+                            default -> info.skip(infoTag);
+                        }
+                    }
+                }
+                case 8 -> dense.repeated(tag, true, latitudes);
+                case 9 -> dense.repeated(tag, true, longitudes);
+                case 10 -> dense.repeated(tag, false, keysAndValues);
+                default -> dense.skip(tag);
+            }
+        }
+
+        var count = identifiers.size();
+        if (latitudes.size() != count || longitudes.size() != count)
+        {
+            throw new IllegalStateException("Dense nodes have " + count + " identifiers but " + latitudes.size()
+                    + " latitudes and " + longitudes.size() + " longitudes");
+        }
+        var hasInfo = versions.size() == count && timestamps.size() == count && changesets.size() == count
+                && uids.size() == count && userIndexes.size() == count;
+
+        // Identifiers, coordinates and most metadata are delta coded, and tags are a run of key and value string
+        // indexes for each node, ended by a zero.
+        long identifier = 0, latitude = 0, longitude = 0, timestamp = 0, changeset = 0, uid = 0, userIndex = 0;
+        var tagAt = 0;
+        for (var index = 0; index < count; index++)
+        {
+            identifier += identifiers.get(index);
+            latitude += latitudes.get(index);
+            longitude += longitudes.get(index);
+
+            var tags = new ArrayList<Tag>();
+            while (tagAt < keysAndValues.size())
+            {
+                var key = keysAndValues.get(tagAt++);
+                if (key == 0)
+                {
+                    break;
+                }
+                if (tagAt >= keysAndValues.size())
+                {
+                    throw new IllegalStateException("Dense node " + identifier + " has a tag key without a value");
+                }
+                tags.add(new Tag(context.string(key), context.string(keysAndValues.get(tagAt++))));
+            }
+
+            Info info = null;
+            if (hasInfo)
+            {
+                timestamp += timestamps.get(index);
+                changeset += changesets.get(index);
+                uid += uids.get(index);
+                userIndex += userIndexes.get(index);
+                info = new Info();
+                info.version = (int) versions.get(index);
+                info.timestamp = timestamp;
+                info.changeset = changeset;
+                info.uid = (int) uid;
+                info.userIndex = userIndex;
+            }
+            decoded.nodes.add(new PbfNode(new Node(entityData(context, identifier, info, tags),
+                    context.latitude(latitude), context.longitude(longitude))));
+        }
+    }
+
+    private static void decodeNode(BlockContext context, Protobuf node, DecodedBlock decoded)
+    {
+        long identifier = 0, latitude = 0, longitude = 0;
+        var keys = new Protobuf.Longs();
+        var values = new Protobuf.Longs();
+        Info info = null;
+        while (node.hasMore())
+        {
+            var tag = node.tag();
+            switch (tag >>> 3)
+            {
+                case 1 -> identifier = node.signed();
+                case 2 -> node.repeated(tag, false, keys);
+                case 3 -> node.repeated(tag, false, values);
+                case 4 -> info = info(node.message());
+                case 8 -> latitude = node.signed();
+                case 9 -> longitude = node.signed();
+                default -> node.skip(tag);
+            }
+        }
+        decoded.nodes.add(new PbfNode(new Node(entityData(context, identifier, info, tags(context, keys, values)),
+                context.latitude(latitude), context.longitude(longitude))));
+    }
+
+    private static void decodePrimitiveBlock(byte[] data, Contents contents, DecodedBlock decoded)
+    {
+        // The string table and scales are written after the groups that use them, so read them first,
+        var context = new BlockContext();
+        var strings = new ArrayList<String>();
+        var block = new Protobuf(data, 0, data.length);
+        while (block.hasMore())
+        {
+            var tag = block.tag();
+            switch (tag)
+            {
+                case 1 << 3 | Protobuf.LENGTH_DELIMITED ->
+                {
+                    var table = block.message();
+                    while (table.hasMore())
+                    {
+                        var tableTag = table.tag();
+                        if (tableTag == (1 << 3 | Protobuf.LENGTH_DELIMITED))
+                        {
+                            strings.add(table.string());
+                        }
+                        else
+                        {
+                            table.skip(tableTag);
+                        }
+                    }
+                }
+                case 17 << 3 -> context.granularity = block.varint();
+                case 18 << 3 -> context.dateGranularity = block.varint();
+                case 19 << 3 -> context.latitudeOffset = block.varint();
+                case 20 << 3 -> context.longitudeOffset = block.varint();
+                default -> block.skip(tag);
+            }
+        }
+        context.strings = strings.toArray(new String[0]);
+
+        // then decode the groups.
+        block = new Protobuf(data, 0, data.length);
+        while (block.hasMore())
+        {
+            var tag = block.tag();
+            if (tag != (2 << 3 | Protobuf.LENGTH_DELIMITED))
+            {
+                block.skip(tag);
+                continue;
+            }
+            var group = block.message();
+            while (group.hasMore())
+            {
+                var groupTag = group.tag();
+                switch (groupTag)
+                {
+                    case 1 << 3 | Protobuf.LENGTH_DELIMITED, 2 << 3 | Protobuf.LENGTH_DELIMITED ->
+                    {
+                        decoded.hasNodes = true;
+                        if (contents == Contents.WAYS_AND_RELATIONS)
+                        {
+                            group.skip(groupTag);
+                        }
+                        else if (groupTag >>> 3 == 1)
+                        {
+                            decodeNode(context, group.message(), decoded);
+                        }
+                        else
+                        {
+                            decodeDenseNodes(context, group.message(), decoded);
+                        }
+                    }
+                    case 3 << 3 | Protobuf.LENGTH_DELIMITED ->
+                    {
+                        if (contents == Contents.NODES)
+                        {
+                            group.skip(groupTag);
+                        }
+                        else
+                        {
+                            decodeWay(context, group.message(), decoded);
+                        }
+                    }
+                    case 4 << 3 | Protobuf.LENGTH_DELIMITED ->
+                    {
+                        if (contents == Contents.NODES)
+                        {
+                            group.skip(groupTag);
+                        }
+                        else
+                        {
+                            decodeRelation(context, group.message(), decoded);
+                        }
+                    }
+                    default -> group.skip(groupTag);
+                }
+            }
+        }
+    }
+
+    private static void decodeRelation(BlockContext context, Protobuf relation, DecodedBlock decoded)
+    {
+        var identifier = 0L;
+        var keys = new Protobuf.Longs();
+        var values = new Protobuf.Longs();
+        var roles = new Protobuf.Longs();
+        var memberIdentifiers = new Protobuf.Longs();
+        var types = new Protobuf.Longs();
+        Info info = null;
+        while (relation.hasMore())
+        {
+            var tag = relation.tag();
+            switch (tag >>> 3)
+            {
+                case 1 -> identifier = relation.varint();
+                case 2 -> relation.repeated(tag, false, keys);
+                case 3 -> relation.repeated(tag, false, values);
+                case 4 -> info = info(relation.message());
+                case 8 -> relation.repeated(tag, false, roles);
+                case 9 -> relation.repeated(tag, true, memberIdentifiers);
+                case 10 -> relation.repeated(tag, false, types);
+                default -> relation.skip(tag);
+            }
+        }
+
+        var count = memberIdentifiers.size();
+        if (roles.size() != count || types.size() != count)
+        {
+            throw new IllegalStateException("Relation " + identifier + " has " + count + " members but "
+                    + roles.size() + " roles and " + types.size() + " types");
+        }
+        var members = new ArrayList<RelationMember>(count);
+        var member = 0L;
+        for (var index = 0; index < count; index++)
+        {
+            member += memberIdentifiers.get(index);
+            members.add(new RelationMember(member, type(types.get(index)), context.string(roles.get(index))));
+        }
+        decoded.relations.add(new PbfRelation(new Relation(entityData(context, identifier, info,
+                tags(context, keys, values)), members)));
+    }
+
+    private static void decodeWay(BlockContext context, Protobuf way, DecodedBlock decoded)
+    {
+        var identifier = 0L;
+        var keys = new Protobuf.Longs();
+        var values = new Protobuf.Longs();
+        var references = new Protobuf.Longs();
+        Info info = null;
+        while (way.hasMore())
+        {
+            var tag = way.tag();
+            switch (tag >>> 3)
+            {
+                case 1 -> identifier = way.varint();
+                case 2 -> way.repeated(tag, false, keys);
+                case 3 -> way.repeated(tag, false, values);
+                case 4 -> info = info(way.message());
+                case 8 -> way.repeated(tag, true, references);
+                default -> way.skip(tag);
+            }
+        }
+
+        // Node references are delta coded
+        var nodes = new ArrayList<WayNode>(references.size());
+        var node = 0L;
+        for (var index = 0; index < references.size(); index++)
+        {
+            node += references.get(index);
+            nodes.add(new WayNode(node));
+        }
+        decoded.ways.add(new PbfWay(new Way(entityData(context, identifier, info, tags(context, keys, values)),
+                nodes)));
+    }
+
+    private static Info info(Protobuf message)
+    {
+        var info = new Info();
+        while (message.hasMore())
+        {
+            var tag = message.tag();
+            switch (tag >>> 3)
+            {
+                case 1 -> info.version = (int) message.varint();
+                case 2 -> info.timestamp = message.varint();
+                case 3 -> info.changeset = message.varint();
+                case 4 -> info.uid = (int) message.varint();
+                case 5 -> info.userIndex = message.varint();
+                default -> message.skip(tag);
+            }
+        }
+        return info;
+    }
+
+    private static List<Tag> tags(BlockContext context, Protobuf.Longs keys, Protobuf.Longs values)
+    {
+        if (keys.size() != values.size())
+        {
+            throw new IllegalStateException("Entity has " + keys.size() + " tag keys but " + values.size() + " values");
+        }
+        var tags = new ArrayList<Tag>(keys.size());
+        for (var index = 0; index < keys.size(); index++)
+        {
+            tags.add(new Tag(context.string(keys.get(index)), context.string(values.get(index))));
+        }
+        return tags;
+    }
+
+    private static EntityType type(long type)
+    {
+        return switch ((int) type)
+        {
+            case 0 -> EntityType.Node;
+            case 1 -> EntityType.Way;
+            case 2 -> EntityType.Relation;
+            default -> throw new IllegalStateException("Unknown relation member type " + type);
+        };
+    }
+
+    /**
+     * Returns the uncompressed data of the given block
+     */
+    private static byte[] uncompress(PbfBlockReader.RawBlock block)
+    {
+        byte[] raw = null;
+        byte[] compressed = null;
+        var rawSize = -1;
+        var blob = new Protobuf(block.bytes, block.dataOffset, block.bytes.length - block.dataOffset);
+        while (blob.hasMore())
+        {
+            var tag = blob.tag();
+            switch (tag)
+            {
+                case 1 << 3 | Protobuf.LENGTH_DELIMITED -> raw = blob.bytes();
+                case 2 << 3 -> rawSize = (int) blob.varint();
+                case 3 << 3 | Protobuf.LENGTH_DELIMITED -> compressed = blob.bytes();
+                default ->
+                {
+                    if ((tag >>> 3) > 3 && (tag & 7) == Protobuf.LENGTH_DELIMITED)
+                    {
+                        throw new IllegalStateException("Block at " + block.offset
+                                + " uses a compression other than zlib, which isn't supported");
+                    }
+                    blob.skip(tag);
+                }
+            }
+        }
+        if (raw != null)
+        {
+            return raw;
+        }
+        if (compressed == null || rawSize < 0)
+        {
+            throw new IllegalStateException("Block at " + block.offset + " has no data");
+        }
+
+        var inflater = new Inflater();
+        try
+        {
+            inflater.setInput(compressed);
+            var data = new byte[rawSize];
+            var size = 0;
+            while (size < rawSize && !inflater.finished())
+            {
+                var inflated = inflater.inflate(data, size, rawSize - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != rawSize)
+            {
+                throw new IllegalStateException("Block at " + block.offset + " inflated to " + size
+                        + " bytes instead of " + rawSize);
+            }
+            return data;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IllegalStateException("Block at " + block.offset + " is corrupt", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
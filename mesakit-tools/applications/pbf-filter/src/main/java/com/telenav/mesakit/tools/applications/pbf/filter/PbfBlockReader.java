@@ -0,0 +1,164 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.filter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the file blocks of a PBF file without decoding them. A PBF file is a sequence of blocks, each of which is the
+ * length of a block header as a four-byte big-endian integer, the block header (which gives the block's type and the
+ * size of its data), and the block's data. Blocks can be read in order with {@link #next()}, or by their offset in the
+ * file with {@link #read(long)}, so that a later pass can read only some of the blocks.
+ * <p>
+ * Reading a block only reads its bytes. Decoding them, which takes most of the time, is left to
+ * {@link PbfBlockDecoder}, so blocks can be decoded on other threads.
+ *
+ * @author jonathanl (shibo)
+ */
+class PbfBlockReader implements Closeable
+{
+    /** The largest block header allowed by the PBF format */
+    private static final int MAXIMUM_HEADER_SIZE = 64 * 1024;
+
+    /** The largest block data allowed by the PBF format */
+    private static final int MAXIMUM_DATA_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * A block of a PBF file, as it is in the file
+     */
+    static class RawBlock
+    {
+        /** The type of block, either OSMHeader or OSMData */
+        final String type;
+
+        /** The offset of the block in the file */
+        final long offset;
+
+        /** The whole block, including the length of the header and the header */
+        final byte[] bytes;
+
+        /** The offset of the block's data in the bytes */
+        final int dataOffset;
+
+        RawBlock(String type, long offset, byte[] bytes, int dataOffset)
+        {
+            this.type = type;
+            this.offset = offset;
+            this.bytes = bytes;
+            this.dataOffset = dataOffset;
+        }
+
+        boolean isHeader()
+        {
+            return "OSMHeader".equals(type);
+        }
+    }
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /** The offset of the next block read by next() */
+    private long position;
+
+    PbfBlockReader(Path path) throws IOException
+    {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * Returns the next block in the file, or null at the end of the file
+     */
+    RawBlock next() throws IOException
+    {
+        if (position >= channel.size())
+        {
+            return null;
+        }
+        var block = read(position);
+        position += block.bytes.length;
+        return block;
+    }
+
+    /**
+     * Returns the block at the given offset in the file
+     */
+    RawBlock read(long offset) throws IOException
+    {
+        // Read the length of the block header,
+        var length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        var headerSize = length.getInt(0);
+        if (headerSize < 0 || headerSize > MAXIMUM_HEADER_SIZE)
+        {
+            throw new IOException("Block at " + offset + " in " + path + " has a header of " + headerSize + " bytes");
+        }
+
+        // then the header, to find the type and the size of the data,
+        var header = ByteBuffer.allocate(headerSize);
+        readFully(header, offset + 4);
+        String type = null;
+        var dataSize = -1;
+        var fields = new Protobuf(header.array(), 0, headerSize);
+        while (fields.hasMore())
+        {
+            var tag = fields.tag();
+            switch (tag)
+            {
+                case 1 << 3 | Protobuf.LENGTH_DELIMITED -> type = fields.string();
+                case 3 << 3 | Protobuf.VARINT -> dataSize = (int) fields.varint();
+                default -> fields.skip(tag);
+            }
+        }
+        if (type == null || dataSize < 0 || dataSize > MAXIMUM_DATA_SIZE)
+        {
+            throw new IOException("Block at " + offset + " in " + path + " has an invalid header");
+        }
+
+        // and finally the whole block.
+        var dataOffset = 4 + headerSize;
+        var block = ByteBuffer.allocate(dataOffset + dataSize);
+        readFully(block, offset);
+        return new RawBlock(type, offset, block.array(), dataOffset);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of " + path + " in block at " + offset);
+            }
+        }
+    }
+}
@@ -22,10 +22,12 @@ import com.telenav.kivakit.application.Application;
 import com.telenav.kivakit.commandline.SwitchParser;
 import com.telenav.kivakit.core.collections.set.ObjectSet;
 import com.telenav.kivakit.core.time.Time;
+import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.core.value.count.Estimate;
 import com.telenav.kivakit.core.value.count.MutableCount;
 import com.telenav.kivakit.filesystem.File;
 import com.telenav.kivakit.primitive.collections.set.LongSet;
+import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfEntity;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfNode;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfRelation;
 import com.telenav.mesakit.map.data.formats.pbf.model.entities.PbfWay;
@@ -36,9 +38,22 @@ import com.telenav.mesakit.map.data.formats.pbf.processing.filters.WayFilter;
 import com.telenav.mesakit.map.data.formats.pbf.processing.readers.SerialPbfReader;
 import com.telenav.mesakit.map.data.formats.pbf.processing.writers.PbfWriter;
 import org.openstreetmap.osmosis.core.domain.v0_6.Bound;
-
+import org.openstreetmap.osmosis.core.domain.v0_6.Tag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import static com.telenav.kivakit.commandline.SwitchParsers.booleanSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.threadCountSwitchParser;
 import static com.telenav.kivakit.core.collections.set.ObjectSet.set;
 import static com.telenav.kivakit.filesystem.Files.fileSwitchParser;
 import static com.telenav.mesakit.map.data.formats.pbf.model.tags.PbfTagPatternFilter.tagFilterSwitchParser;
@@ -46,10 +61,21 @@ import static com.telenav.mesakit.map.data.formats.pbf.processing.PbfDataProcess
 import static com.telenav.mesakit.map.data.formats.pbf.processing.PbfDataProcessor.Action.FILTERED_OUT;
 import static com.telenav.mesakit.map.data.formats.pbf.processing.filters.RelationFilter.relationFilterSwitchParser;
 import static com.telenav.mesakit.map.data.formats.pbf.processing.filters.WayFilter.wayFilterSwitchParser;
+import static com.telenav.mesakit.tools.applications.pbf.filter.PbfBlockDecoder.Contents.ALL;
+import static com.telenav.mesakit.tools.applications.pbf.filter.PbfBlockDecoder.Contents.NODES;
+import static com.telenav.mesakit.tools.applications.pbf.filter.PbfBlockDecoder.Contents.WAYS_AND_RELATIONS;
 
 /**
  * PbfFilters the given PBF input file to the output file with the given tag filter. A way filter and/or relation filter
  * can optionally be applied as well.
+ * <p>
+ * With -pipelined, the input is read as raw file blocks, which are decoded and filtered on -threads threads by a
+ * {@link FilterPipeline}, and a single writer thread writes the filtered blocks in input order. If a way filter is
+ * given, the first pass decodes only the ways and relations of each block: accepted ways and relations are written to
+ * a spool file beside the output, the nodes that accepted ways reference are collected, and the offsets of the blocks
+ * that hold nodes are recorded. The second pass reads and decodes only those node blocks, writes the referenced nodes
+ * to the output, and the spooled blocks are then copied after them without being decoded again. The output has all
+ * nodes before all ways and relations, as PBF files normally do, even if the input interleaves them.
  *
  * @author jonathanl (shibo)
  */
@@ -74,6 +100,22 @@ public class PbfFilterApplication extends Application
 
         private final MutableCount waysRejected = new MutableCount();
 
+        void accept(PbfEntity<?> entity)
+        {
+            if (entity instanceof PbfNode)
+            {
+                acceptNode();
+            }
+            else if (entity instanceof PbfWay)
+            {
+                acceptWay();
+            }
+            else if (entity instanceof PbfRelation)
+            {
+                acceptRelation();
+            }
+        }
+
         void acceptNode()
         {
             nodesAccepted.increment();
@@ -100,6 +142,22 @@ public class PbfFilterApplication extends Application
                     waysAccepted.asCount().plus(waysRejected.asCount()), waysAccepted, waysRejected);
         }
 
+        void reject(PbfEntity<?> entity)
+        {
+            if (entity instanceof PbfNode)
+            {
+                rejectNode();
+            }
+            else if (entity instanceof PbfWay)
+            {
+                rejectWay();
+            }
+            else if (entity instanceof PbfRelation)
+            {
+                rejectRelation();
+            }
+        }
+
         void rejectNode()
         {
             nodesRejected.increment();
@@ -116,6 +174,30 @@ public class PbfFilterApplication extends Application
         }
     }
 
+    /**
+     * The entities of a block, filtered
+     */
+    private static class FilteredBlock
+    {
+        /** The offset of the block in the input */
+        private final long offset;
+
+        /** The bounds of the input, if this is the header block */
+        private Bound bound;
+
+        /** True if the block holds nodes, even if they weren't decoded */
+        private boolean hasNodes;
+
+        private final List<PbfEntity<?>> accepted = new ArrayList<>();
+
+        private final List<PbfEntity<?>> rejected = new ArrayList<>();
+
+        FilteredBlock(long offset)
+        {
+            this.offset = offset;
+        }
+    }
+
     private final SwitchParser<File> INPUT =
             fileSwitchParser(this, "input", "The PBF file to preprocess")
                     .required()
@@ -141,6 +223,15 @@ public class PbfFilterApplication extends Application
                     .optional()
                     .build();
 
+    private final SwitchParser<Boolean> PIPELINED =
+            booleanSwitchParser(this, "pipelined", "True to decode and filter blocks in parallel")
+                    .optional()
+                    .defaultValue(false)
+                    .build();
+
+    /** Number of threads to filter blocks on when pipelined */
+    private final SwitchParser<Count> THREADS = threadCountSwitchParser(this, Count.count(8));
+
     @Override
     protected void onRun()
     {
@@ -148,10 +239,19 @@ public class PbfFilterApplication extends Application
         var output = get(OUTPUT);
         var osmTagFilter = get(TAG_FILTER);
         var wayFilter = get(WAY_FILTER);
-        var referencedNodes = referencedNodes(wayFilter, input);
-
         var relationFilter = get(RELATION_FILTER);
 
+        if (get(PIPELINED))
+        {
+            var start = Time.now();
+            var statistics = new Statistics();
+            filterPipelined(input, output, osmTagFilter, wayFilter, relationFilter, statistics);
+            report(input, output, osmTagFilter, start, statistics);
+            return;
+        }
+
+        var referencedNodes = referencedNodes(wayFilter, input);
+
         var start = Time.now();
         var statistics = new Statistics();
 
@@ -218,6 +318,333 @@ public class PbfFilterApplication extends Application
 
         writer.close();
 
+        report(input, output, osmTagFilter, start, statistics);
+    }
+
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
+    {
+        return set(INPUT, OUTPUT, TAG_FILTER, RELATION_FILTER, WAY_FILTER, PIPELINED, THREADS, QUIET);
+    }
+
+    /**
+     * Returns the given way without the tags that the tag filter rejects, or the way itself if it rejects none
+     */
+    private static PbfWay filterTags(PbfWay way, PbfTagPatternFilter tagFilter)
+    {
+        if (tagFilter == null)
+        {
+            return way;
+        }
+
+        var tags = way.tagList().asList();
+        List<Tag> kept = null;
+
+        // The tag filter keeps statistics on the tags it rejects, so it is used by one thread at a time
+        synchronized (tagFilter)
+        {
+            for (var index = 0; index < tags.size(); index++)
+            {
+                var tag = tags.get(index);
+                if (!tagFilter.accepts(tag))
+                {
+                    if (kept == null)
+                    {
+                        kept = new ArrayList<>(tags.subList(0, index));
+                    }
+                }
+                else if (kept != null)
+                {
+                    kept.add(tag);
+                }
+            }
+        }
+        return kept == null ? way : way.withTags(kept);
+    }
+
+    /**
+     * Appends the blocks of the given PBF file to the given output, leaving out its header block if the output already
+     * has one. The blocks are copied as they are, without being decoded.
+     */
+    private static void appendBlocks(Path from, Path to) throws IOException
+    {
+        if (!Files.exists(from))
+        {
+            return;
+        }
+        try (var reader = new PbfBlockReader(from);
+             var channel = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            var hasHeader = channel.size() > 0;
+            for (var block = reader.next(); block != null; block = reader.next())
+            {
+                if (block.isHeader() && hasHeader)
+                {
+                    continue;
+                }
+                var buffer = ByteBuffer.wrap(block.bytes);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the given contents of the given block and filters its entities. This is called on many threads at once.
+     *
+     * @param referencedNodes The nodes to keep, or null to keep all nodes
+     */
+    private static FilteredBlock filterBlock(PbfBlockReader.RawBlock block,
+                                             PbfBlockDecoder.Contents contents,
+                                             LongSet referencedNodes,
+                                             PbfTagPatternFilter tagFilter,
+                                             WayFilter wayFilter,
+                                             RelationFilter relationFilter)
+    {
+        var decoded = PbfBlockDecoder.decode(block, contents);
+        var filtered = new FilteredBlock(block.offset);
+        filtered.bound = decoded.bound;
+        filtered.hasNodes = decoded.hasNodes;
+
+        for (var node : decoded.nodes)
+        {
+            if (referencedNodes == null || referencedNodes.contains(node.identifierAsLong()))
+            {
+                filtered.accepted.add(node);
+            }
+            else
+            {
+                filtered.rejected.add(node);
+            }
+        }
+
+        // Way and relation filters aren't known to be thread-safe, so each is used by one thread at a time. Decoding
+        // takes most of the time, so holding the lock for the ways or relations of a whole block costs little.
+        var acceptedWays = new ArrayList<PbfWay>();
+        if (wayFilter != null && !decoded.ways.isEmpty())
+        {
+            synchronized (wayFilter)
+            {
+                for (var way : decoded.ways)
+                {
+                    if (wayFilter.accepts(way))
+                    {
+                        acceptedWays.add(way);
+                    }
+                    else
+                    {
+                        filtered.rejected.add(way);
+                    }
+                }
+            }
+        }
+        else
+        {
+            filtered.rejected.addAll(decoded.ways);
+        }
+        for (var way : acceptedWays)
+        {
+            filtered.accepted.add(filterTags(way, tagFilter));
+        }
+
+        if (relationFilter != null && !decoded.relations.isEmpty())
+        {
+            synchronized (relationFilter)
+            {
+                for (var relation : decoded.relations)
+                {
+                    if (relationFilter.accepts(relation))
+                    {
+                        filtered.accepted.add(relation);
+                    }
+                    else
+                    {
+                        filtered.rejected.add(relation);
+                    }
+                }
+            }
+        }
+        else
+        {
+            filtered.rejected.addAll(decoded.relations);
+        }
+        return filtered;
+    }
+
+    /**
+     * Filters blocks of the given reader with a {@link FilterPipeline}, reading only the blocks at the given offsets,
+     * or every block if offsets is null
+     */
+    private static void filterBlocks(PbfBlockReader reader,
+                                     List<Long> offsets,
+                                     Count threads,
+                                     Function<PbfBlockReader.RawBlock, FilteredBlock> filter,
+                                     Consumer<FilteredBlock> writer) throws IOException
+    {
+        var pipeline = new FilterPipeline<>(threads, writer);
+        try
+        {
+            if (offsets == null)
+            {
+                for (var block = reader.next(); block != null; block = reader.next())
+                {
+                    var next = block;
+                    pipeline.add(() -> filter.apply(next));
+                }
+            }
+            else
+            {
+                for (var offset : offsets)
+                {
+                    var block = reader.read(offset);
+                    pipeline.add(() -> filter.apply(block));
+                }
+            }
+            pipeline.finish();
+        }
+        finally
+        {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Writes the accepted entities of the given block and counts the accepted and rejected entities, on the writer
+     * thread
+     */
+    private static void write(PbfWriter writer, FilteredBlock filtered, Statistics statistics)
+    {
+        for (var entity : filtered.accepted)
+        {
+            if (entity instanceof PbfNode)
+            {
+                writer.write((PbfNode) entity);
+            }
+            else if (entity instanceof PbfWay)
+            {
+                writer.write((PbfWay) entity);
+            }
+            else if (entity instanceof PbfRelation)
+            {
+                writer.write((PbfRelation) entity);
+            }
+            statistics.accept(entity);
+        }
+        filtered.rejected.forEach(statistics::reject);
+    }
+
+    /**
+     * Filters the input file to the output file, decoding and filtering blocks in parallel. Without a way filter,
+     * every node is kept, so a single pass does everything. With a way filter, the first pass filters ways and
+     * relations to a spool file, and the second pass reads only the blocks that hold nodes.
+     */
+    private void filterPipelined(File input,
+                                 File output,
+                                 PbfTagPatternFilter tagFilter,
+                                 WayFilter wayFilter,
+                                 RelationFilter relationFilter,
+                                 Statistics statistics)
+    {
+        var threads = get(THREADS);
+        var outputPath = output.path().asJavaPath();
+        var spoolPath = Path.of(outputPath + ".spool");
+        try (var reader = new PbfBlockReader(input.path().asJavaPath()))
+        {
+            if (wayFilter == null)
+            {
+                var writer = new PbfWriter(output, false);
+                try
+                {
+                    filterBlocks(reader, null, threads,
+                            block -> filterBlock(block, ALL, null, tagFilter, null, relationFilter), filtered ->
+                            {
+                                if (filtered.bound != null)
+                                {
+                                    writer.write(filtered.bound);
+                                }
+                                write(writer, filtered, statistics);
+                            });
+                }
+                finally
+                {
+                    writer.close();
+                }
+                return;
+            }
+
+            // Filter ways and relations to the spool file, collecting the nodes that accepted ways reference and the
+            // offsets of the blocks that hold nodes,
+            var referencedNodes = new LongSet("referencedNodes");
+            referencedNodes.initialSize(Estimate._1024);
+            referencedNodes.initialize();
+            var nodeBlocks = new ArrayList<Long>();
+            var bound = new AtomicReference<Bound>();
+            var spool = new PbfWriter(File.file(this, spoolPath.toFile()), false);
+            try
+            {
+                filterBlocks(reader, null, threads,
+                        block -> filterBlock(block, WAYS_AND_RELATIONS, null, tagFilter, wayFilter, relationFilter),
+                        filtered ->
+                        {
+                            if (filtered.bound != null)
+                            {
+                                bound.set(filtered.bound);
+                            }
+                            if (filtered.hasNodes)
+                            {
+                                nodeBlocks.add(filtered.offset);
+                            }
+                            for (var entity : filtered.accepted)
+                            {
+                                if (entity instanceof PbfWay)
+                                {
+                                    for (var node : ((PbfWay) entity).nodes())
+                                    {
+                                        referencedNodes.add(node.getNodeId());
+                                    }
+                                }
+                            }
+                            write(spool, filtered, statistics);
+                        });
+            }
+            finally
+            {
+                spool.close();
+            }
+
+            // then read only the node blocks, writing the referenced nodes to the output,
+            var writer = new PbfWriter(output, false);
+            try
+            {
+                if (bound.get() != null)
+                {
+                    writer.write(bound.get());
+                }
+                filterBlocks(reader, nodeBlocks, threads,
+                        block -> filterBlock(block, NODES, referencedNodes, tagFilter, null, null),
+                        filtered -> write(writer, filtered, statistics));
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            // and copy the spooled ways and relations after the nodes.
+            appendBlocks(spoolPath, outputPath);
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to filter $ to $", input, output);
+        }
+        finally
+        {
+            spoolPath.toFile().delete();
+        }
+    }
+    private void report(File input, File output, PbfTagPatternFilter osmTagFilter, Time start, Statistics statistics)
+    {
         information("Filtered ($) ($) to $ ($) in $ ", input, input.sizeInBytes(), output, output.sizeInBytes(), start.elapsedSince());
 
         statistics.log();
@@ -231,12 +658,6 @@ public class PbfFilterApplication extends Application
         }
     }
 
-    @Override
-    protected ObjectSet<SwitchParser<?>> switchParsers()
-    {
-        return set(INPUT, OUTPUT, TAG_FILTER, RELATION_FILTER, WAY_FILTER, QUIET);
-    }
-
     private static LongSet referencedNodes(WayFilter filter, File graphFile)
     {
         if (filter == null)
@@ -0,0 +1,224 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.pbf.filter;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the fields of a protocol buffer message from a range of a byte array, which is all that is needed to decode
+ * the few message types of the PBF format. Each field starts with a tag, which is the field number shifted left three
+ * bits and the wire type. Nested messages are read with {@link #message()}, which returns a reader of the same array.
+ *
+ * @author jonathanl (shibo)
+ */
+class Protobuf
+{
+    static final int VARINT = 0;
+
+    static final int FIXED64 = 1;
+
+    static final int LENGTH_DELIMITED = 2;
+
+    static final int FIXED32 = 5;
+
+    /**
+     * A growable list of longs, for repeated fields
+     */
+    static class Longs
+    {
+        private long[] values = new long[16];
+
+        private int size;
+
+        void add(long value)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index)
+        {
+            return values[index];
+        }
+
+        int size()
+        {
+            return size;
+        }
+    }
+
+    private final byte[] bytes;
+
+    private int at;
+
+    private final int end;
+
+    Protobuf(byte[] bytes, int offset, int length)
+    {
+        this.bytes = bytes;
+        this.at = offset;
+        this.end = offset + length;
+        if (offset < 0 || end > bytes.length)
+        {
+            throw new IllegalStateException("Message extends past the end of its block");
+        }
+    }
+
+    /**
+     * Returns the bytes of a length-delimited field
+     */
+    byte[] bytes()
+    {
+        var length = length();
+        var value = Arrays.copyOfRange(bytes, at, at + length);
+        at += length;
+        return value;
+    }
+
+    boolean hasMore()
+    {
+        return at < end;
+    }
+
+    /**
+     * Returns a reader of a length-delimited field that holds a message
+     */
+    Protobuf message()
+    {
+        var length = length();
+        var message = new Protobuf(bytes, at, length);
+        at += length;
+        return message;
+    }
+
+    /**
+     * Adds the values of a repeated integer field to the given list, whether they are packed or not
+     *
+     * @param tag The tag of the field
+     * @param zigzag True if the values are signed integers in zigzag encoding (sint32 or sint64)
+     */
+    void repeated(int tag, boolean zigzag, Longs values)
+    {
+        if ((tag & 7) == LENGTH_DELIMITED)
+        {
+            var length = length();
+            var packedEnd = at + length;
+            while (at < packedEnd)
+            {
+                values.add(zigzag ? signed() : varint());
+            }
+            if (at != packedEnd)
+            {
+                throw new IllegalStateException("Packed field overruns its length");
+            }
+        }
+        else
+        {
+            values.add(zigzag ? signed() : varint());
+        }
+    }
+
+    /**
+     * Returns a signed integer in zigzag encoding (sint32 or sint64)
+     */
+    long signed()
+    {
+        var value = varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Skips the value of a field with the given tag
+     */
+    void skip(int tag)
+    {
+        switch (tag & 7)
+        {
+            case VARINT -> varint();
+            case FIXED64 -> at += 8;
+            case LENGTH_DELIMITED ->
+            {
+                var length = length();
+                at += length;
+            }
+            case FIXED32 -> at += 4;
+            default -> throw new IllegalStateException("Unsupported wire type " + (tag & 7));
+        }
+        if (at > end)
+        {
+            throw new IllegalStateException("Field overruns its message");
+        }
+    }
+
+    /**
+     * Returns the UTF-8 text of a length-delimited field
+     */
+    String string()
+    {
+        var length = length();
+        var value = new String(bytes, at, length, UTF_8);
+        at += length;
+        return value;
+    }
+
+    /**
+     * Returns the tag of the next field
+     */
+    int tag()
+    {
+        return (int) varint();
+    }
+
+    /**
+     * Returns an unsigned variable-length integer (int32, int64, uint32, uint64, bool or enum)
+     */
+    long varint()
+    {
+        var value = 0L;
+        for (var shift = 0; shift < 64; shift += 7)
+        {
+            if (at >= end)
+            {
+                throw new IllegalStateException("Integer overruns its message");
+            }
+            var next = bytes[at++];
+            value |= (long) (next & 0x7F) << shift;
+            if (next >= 0)
+            {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Integer is longer than ten bytes");
+    }
+
+    private int length()
+    {
+        var length = varint();
+        if (length < 0 || length > end - at)
+        {
+            throw new IllegalStateException("Field length " + length + " overruns its message");
+        }
+        return (int) length;
+    }
+}
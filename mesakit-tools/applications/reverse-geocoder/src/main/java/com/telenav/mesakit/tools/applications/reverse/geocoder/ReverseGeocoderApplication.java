@@ -0,0 +1,479 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.applications.reverse.geocoder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.telenav.kivakit.application.Application;
+import com.telenav.kivakit.commandline.SwitchParser;
+import com.telenav.kivakit.core.collections.set.ObjectSet;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.mesakit.graph.GraphProject;
+import com.telenav.mesakit.graph.geocoding.reverse.ReverseGeocoder;
+import com.telenav.mesakit.graph.geocoding.statistics.LatencyHistogram;
+import com.telenav.mesakit.graph.io.load.SmartGraphLoader;
+import com.telenav.mesakit.map.geography.Location;
+import com.telenav.mesakit.map.measurements.geographic.Distance;
+import com.telenav.mesakit.map.measurements.geographic.Heading;
+import com.telenav.mesakit.map.road.model.RoadName;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.telenav.kivakit.commandline.SwitchParsers.countSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.enumSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.percentSwitchParser;
+import static com.telenav.kivakit.commandline.SwitchParsers.threadCountSwitchParser;
+import static com.telenav.kivakit.core.collections.set.ObjectSet.set;
+import static com.telenav.kivakit.filesystem.Files.fileSwitchParser;
+import static com.telenav.mesakit.graph.io.load.SmartGraphLoader.graphSwitchParser;
+import static com.telenav.mesakit.map.measurements.geographic.Distance.distanceSwitchParser;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reverse geocodes a stream of points against a graph. Points are read from a file or from standard input, one per
+ * line, in one of two formats:
+ *
+ * <ul>
+ *     <li>CSV - latitude,longitude[,heading[,road name]], with an optional header line</li>
+ *     <li>NDJSON - {"latitude": ..., "longitude": ..., "heading": ..., "roadName": ...}, where heading and roadName
+ *     are optional</li>
+ * </ul>
+ * <p>
+ * Each input line is written to the output (a file or standard output) with the edge it was located on, the snapped
+ * location, the distance to it in meters and the road name closeness. In CSV these are appended as columns (which are
+ * empty if no edge was found), and in NDJSON they are added as properties.
+ * <p>
+ * Lines are read in chunks, and each chunk is geocoded on a pool of worker threads. Output is written in input order,
+ * and reading waits while too many chunks are being geocoded or waiting to be written, so memory use stays bounded no
+ * matter how large the input is. When all points have been geocoded, throughput and latency percentiles are shown.
+ *
+ * @author jonathanl (shibo)
+ */
+public class ReverseGeocoderApplication extends Application
+{
+    public static void main(String[] arguments)
+    {
+        new ReverseGeocoderApplication().run(arguments);
+    }
+
+    public enum Format
+    {
+        CSV,
+        NDJSON
+    }
+
+    private final SwitchParser<Count> CHUNK_SIZE =
+        countSwitchParser(this, "chunk-size", "The number of points each worker thread geocodes at a time")
+            .optional()
+            .defaultValue(Count.count(1_000))
+            .build();
+
+    private final SwitchParser<Format> FORMAT =
+        enumSwitchParser(this, "format", "The format of input and output points", Format.class)
+            .optional()
+            .defaultValue(Format.CSV)
+            .build();
+
+    private final SwitchParser<SmartGraphLoader> GRAPH =
+        graphSwitchParser(this, "graph", "The graph to geocode against")
+            .required()
+            .build();
+
+    private final SwitchParser<Count> IN_FLIGHT =
+        countSwitchParser(this, "in-flight", "The maximum number of chunks being geocoded or waiting to be written")
+            .optional()
+            .defaultValue(Count.count(64))
+            .build();
+
+    private final SwitchParser<File> INPUT =
+        fileSwitchParser(this, "input", "The file of points to geocode (standard input if omitted)")
+            .optional()
+            .build();
+
+    private final SwitchParser<File> OUTPUT =
+        fileSwitchParser(this, "output", "The file to write results to (standard output if omitted)")
+            .optional()
+            .build();
+
+    private final SwitchParser<Percent> ROAD_NAME_CLOSENESS =
+        percentSwitchParser(this, "road-name-closeness", "The closeness that road names must exceed to match")
+            .optional()
+            .defaultValue(Percent.percent(70))
+            .build();
+
+    private final SwitchParser<Count> THREADS =
+        threadCountSwitchParser(this, Count.count(Runtime.getRuntime().availableProcessors()));
+
+    private final SwitchParser<Distance> WITHIN =
+        distanceSwitchParser(this, "within", "The distance to search for edges around each point")
+            .optional()
+            .defaultValue(Distance.meters(100))
+            .build();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private ReverseGeocoder geocoder;
+
+    private Format format;
+
+    protected ReverseGeocoderApplication()
+    {
+    }
+
+    @Override
+    protected void onInitialize()
+    {
+        addProject(GraphProject.class);
+    }
+
+    @Override
+    protected void onRun()
+    {
+        var graph = get(GRAPH).load();
+
+        var configuration = new ReverseGeocoder.Configuration();
+        configuration.within(get(WITHIN));
+        configuration.roadNameCloseness(get(ROAD_NAME_CLOSENESS));
+        geocoder = new ReverseGeocoder(graph, configuration);
+        format = get(FORMAT);
+
+        var chunkSize = Math.max(1, get(CHUNK_SIZE).asInt());
+        var inFlight = Math.max(1, get(IN_FLIGHT).asInt());
+        var executor = Threads.threadPool("ReverseGeocoder", get(THREADS));
+        var points = 0L;
+        var start = System.nanoTime();
+
+        var out = writer();
+        try (var in = reader())
+        {
+            var pending = new ArrayDeque<Future<String>>();
+            var chunk = new ArrayList<String>(chunkSize);
+            var first = true;
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                // If the first line of a CSV file is a header,
+                if (first && format == Format.CSV && isHeader(line))
+                {
+                    // add our columns to it
+                    out.write(line + ",edge,snapped_latitude,snapped_longitude,distance_meters,closeness\n");
+                }
+                else if (!line.isBlank())
+                {
+                    // otherwise, add the line to the current chunk,
+                    chunk.add(line);
+                    points++;
+
+                    // and if the chunk is full, geocode it, writing any finished chunks
+                    if (chunk.size() == chunkSize)
+                    {
+                        submit(executor, pending, chunk, inFlight, out);
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+                first = false;
+            }
+            if (!chunk.isEmpty())
+            {
+                submit(executor, pending, chunk, inFlight, out);
+            }
+
+            // Write the remaining chunks as they finish
+            while (!pending.isEmpty())
+            {
+                out.write(pending.remove().get());
+            }
+        }
+        catch (IOException | ExecutionException e)
+        {
+            problem(e, "Unable to geocode points");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            problem(e, "Interrupted while geocoding points");
+        }
+        finally
+        {
+            executor.shutdown();
+            finish(out);
+        }
+
+        var seconds = (System.nanoTime() - start) / 1E9;
+        information("Geocoded $ points in $ seconds ($ points/second)", points, String.format("%.1f", seconds),
+                String.format("%.0f", seconds > 0 ? points / seconds : 0));
+        information("Latency: $", latencies);
+    }
+
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
+    {
+        return set(
+            GRAPH,
+            INPUT,
+            OUTPUT,
+            FORMAT,
+            WITHIN,
+            ROAD_NAME_CLOSENESS,
+            THREADS,
+            CHUNK_SIZE,
+            IN_FLIGHT,
+            QUIET);
+    }
+
+    /**
+     * Closes the given output if it is a file, and otherwise only flushes it, so that standard output stays open for
+     * the throughput and latency report
+     */
+    private void finish(Writer out)
+    {
+        try
+        {
+            if (get(OUTPUT) != null)
+            {
+                out.close();
+            }
+            else
+            {
+                out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            problem(e, "Unable to write geocoded points");
+        }
+    }
+
+    /**
+     * Geocodes the given lines, returning the output for them
+     */
+    private String geocode(List<String> lines)
+    {
+        var output = new StringBuilder(lines.size() * 96);
+        for (var line : lines)
+        {
+            var json = format == Format.NDJSON ? parseJson(line) : null;
+            var request = format == Format.NDJSON ? requestFromJson(json) : requestFromCsv(line);
+
+            ReverseGeocoder.Response response = null;
+            if (request != null)
+            {
+                var started = System.nanoTime();
+                response = geocoder.locate(request);
+                latencies.record(System.nanoTime() - started);
+            }
+            else
+            {
+                warning("Skipping malformed point: $", line);
+            }
+
+            if (format == Format.NDJSON)
+            {
+                writeJson(output, json, line, response);
+            }
+            else
+            {
+                writeCsv(output, line, response);
+            }
+        }
+        return output.toString();
+    }
+
+    private boolean isHeader(String line)
+    {
+        var comma = line.indexOf(',');
+        return parseDouble(comma < 0 ? line : line.substring(0, comma)) == null;
+    }
+
+    private Double parseDouble(String text)
+    {
+        try
+        {
+            return Double.parseDouble(text.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private JsonObject parseJson(String line)
+    {
+        try
+        {
+            var element = JsonParser.parseString(line);
+            return element.isJsonObject() ? element.getAsJsonObject() : null;
+        }
+        catch (JsonParseException e)
+        {
+            return null;
+        }
+    }
+
+    private BufferedReader reader()
+    {
+        var input = get(INPUT);
+        return new BufferedReader(new InputStreamReader(input != null ? input.openForReading() : System.in, UTF_8));
+    }
+
+    private ReverseGeocoder.Request request(Double latitude, Double longitude, Double heading, String roadName)
+    {
+        if (latitude == null || longitude == null)
+        {
+            return null;
+        }
+        var request = new ReverseGeocoder.Request();
+        request.location(Location.degrees(latitude, longitude));
+        if (heading != null)
+        {
+            request.heading(Heading.degrees(heading));
+        }
+        if (roadName != null && !roadName.isBlank())
+        {
+            request.roadName(RoadName.forName(roadName.trim()));
+        }
+        return request;
+    }
+
+    private ReverseGeocoder.Request requestFromCsv(String line)
+    {
+        // The road name is last, so it can contain commas
+        var fields = line.split(",", 4);
+        if (fields.length < 2)
+        {
+            return null;
+        }
+        var heading = fields.length > 2 && !fields[2].isBlank() ? parseDouble(fields[2]) : null;
+        if (fields.length > 2 && !fields[2].isBlank() && heading == null)
+        {
+            return null;
+        }
+        var roadName = fields.length > 3 ? unquote(fields[3].trim()) : null;
+        return request(parseDouble(fields[0]), parseDouble(fields[1]), heading, roadName);
+    }
+
+    private ReverseGeocoder.Request requestFromJson(JsonObject json)
+    {
+        if (json == null)
+        {
+            return null;
+        }
+        try
+        {
+            var latitude = json.has("latitude") ? json.get("latitude").getAsDouble() : null;
+            var longitude = json.has("longitude") ? json.get("longitude").getAsDouble() : null;
+            var heading = json.has("heading") && !json.get("heading").isJsonNull()
+                    ? json.get("heading").getAsDouble()
+                    : null;
+            var roadName = json.has("roadName") && !json.get("roadName").isJsonNull()
+                    ? json.get("roadName").getAsString()
+                    : null;
+            return request(latitude, longitude, heading, roadName);
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Submits the given chunk to be geocoded, first writing finished chunks until there is room for it
+     */
+    private void submit(ExecutorService executor,
+                        ArrayDeque<Future<String>> pending,
+                        List<String> chunk,
+                        int inFlight,
+                        Writer out) throws IOException, ExecutionException, InterruptedException
+    {
+        while (pending.size() >= inFlight)
+        {
+            out.write(pending.remove().get());
+        }
+        pending.add(executor.submit(() -> geocode(chunk)));
+    }
+
+    private String unquote(String text)
+    {
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\""))
+        {
+            return text.substring(1, text.length() - 1).replace("\"\"", "\"");
+        }
+        return text;
+    }
+
+    private void writeCsv(StringBuilder output, String line, ReverseGeocoder.Response response)
+    {
+        output.append(line);
+        if (response != null)
+        {
+            var snap = response.snap();
+            output.append(',').append(response.edge().identifierAsLong())
+                    .append(',').append(snap.latitudeInDegrees())
+                    .append(',').append(snap.longitudeInDegrees())
+                    .append(',').append(snap.distanceToSource().asMeters())
+                    .append(',').append(response.percentage().value());
+        }
+        else
+        {
+            output.append(",,,,,");
+        }
+        output.append('\n');
+    }
+
+    private void writeJson(StringBuilder output, JsonObject json, String line, ReverseGeocoder.Response response)
+    {
+        if (json == null)
+        {
+            // If the line wasn't a JSON object, pass it through so the output lines up with the input
+            output.append(line).append('\n');
+            return;
+        }
+        if (response != null)
+        {
+            var snap = response.snap();
+            json.addProperty("edge", response.edge().identifierAsLong());
+            json.addProperty("snappedLatitude", snap.latitudeInDegrees());
+            json.addProperty("snappedLongitude", snap.longitudeInDegrees());
+            json.addProperty("distanceMeters", snap.distanceToSource().asMeters());
+            json.addProperty("closeness", response.percentage().value());
+        }
+        output.append(json).append('\n');
+    }
+
+    private Writer writer()
+    {
+        var output = get(OUTPUT);
+        return new BufferedWriter(new OutputStreamWriter(output != null ? output.openForWriting() : System.out, UTF_8));
+    }
+}
@@ -0,0 +1,171 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.library.pbf;
+
+import com.telenav.kivakit.core.value.count.Count;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link NodeLocationStore} that holds a location for every node identifier from zero to the largest identifier
+ * stored, in a memory-mapped file indexed by identifier. The file is mapped in segments of 1 GB as identifiers reach
+ * them, so identifiers up to 2<sup>40</sup> can be stored. Slots that haven't been written hold zero, so locations
+ * are stored with their latitude offset to keep them from ever being zero.
+ * <p>
+ * Negative identifiers, which are common in files edited with JOSM or generated synthetically, and identifiers beyond
+ * the mapped range are kept on the heap in a map instead. This costs far more per node than the file, so it is only
+ * suited to the few such nodes a file normally has.
+ * <p>
+ * Nodes can be added in any order and from any number of threads at once.
+ *
+ * @author jonathanl (shibo)
+ */
+public class DenseNodeLocationStore implements NodeLocationStore
+{
+    /** Added to stored locations, which puts the latitude of any valid location well above zero */
+    private static final long OFFSET = 1_000_000_000L << 32;
+
+    /** The number of locations in a segment, as a power of two */
+    private static final int SEGMENT_SHIFT = 27;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private static final int MAXIMUM_SEGMENTS = 1 << 13;
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /** The mapped segments of the file, or null for segments that haven't been written yet */
+    private final AtomicReferenceArray<LongBuffer> segments = new AtomicReferenceArray<>(MAXIMUM_SEGMENTS);
+
+    /** The locations of nodes whose identifiers are outside the range of the file */
+    private final ConcurrentHashMap<Long, Long> outOfRange = new ConcurrentHashMap<>();
+
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * @param path The file to store locations in, which is deleted when the store is closed
+     */
+    public DenseNodeLocationStore(Path path) throws IOException
+    {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void close()
+    {
+        outOfRange.clear();
+        for (var index = 0; index < MAXIMUM_SEGMENTS; index++)
+        {
+            segments.set(index, null);
+        }
+        try
+        {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    @Override
+    public long get(long identifier)
+    {
+        var index = identifier >>> SEGMENT_SHIFT;
+        if (identifier < 0 || index >= MAXIMUM_SEGMENTS)
+        {
+            var location = outOfRange.get(identifier);
+            return location != null ? location : MISSING;
+        }
+        var segment = segments.get((int) index);
+        if (segment != null)
+        {
+            var stored = segment.get((int) (identifier & (SEGMENT_SIZE - 1)));
+            if (stored != 0)
+            {
+                return stored - OFFSET;
+            }
+        }
+        return MISSING;
+    }
+
+    @Override
+    public void put(long identifier, long dm7)
+    {
+        var index = identifier >>> SEGMENT_SHIFT;
+        if (identifier < 0 || index >= MAXIMUM_SEGMENTS)
+        {
+            outOfRange.put(identifier, dm7);
+        }
+        else
+        {
+            segment((int) index).put((int) (identifier & (SEGMENT_SIZE - 1)), dm7 + OFFSET);
+        }
+        size.increment();
+    }
+
+    @Override
+    public Count size()
+    {
+        return Count.count(size.sum());
+    }
+
+    /**
+     * Returns the given segment, mapping it if it hasn't been mapped yet
+     */
+    private LongBuffer segment(int index)
+    {
+        var segment = segments.get(index);
+        if (segment == null)
+        {
+            synchronized (segments)
+            {
+                segment = segments.get(index);
+                if (segment == null)
+                {
+                    try
+                    {
+                        var bytes = (long) SEGMENT_SIZE * Long.BYTES;
+                        segment = channel.map(FileChannel.MapMode.READ_WRITE, index * bytes, bytes)
+                                .order(ByteOrder.nativeOrder())
+                                .asLongBuffer();
+                        segments.set(index, segment);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new IllegalStateException("Unable to map node locations in " + path, e);
+                    }
+                }
+            }
+        }
+        return segment;
+    }
+}
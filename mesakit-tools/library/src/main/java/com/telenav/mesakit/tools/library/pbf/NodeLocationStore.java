@@ -0,0 +1,118 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.library.pbf;
+
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Stores the location of each node of a PBF file, so that the geometry of ways can be built when they are read after
+ * the nodes. Locations are stored outside the heap, in memory-mapped temporary files, so planet files can be processed
+ * with an ordinary heap. Locations are DM7 longs, as returned by {@code Location.asDm7Long()}.
+ * <p>
+ * There are two kinds of store, chosen by how densely node identifiers cover the range from zero to the largest
+ * identifier (see {@link Type#forDensity(Percent)}):
+ *
+ * <ul>
+ *     <li>{@link Type#DENSE} - A {@link DenseNodeLocationStore} holds 8 bytes for every identifier up to the
+ *     largest one, so a location is found with a single read. Nodes can be added in any order and from any number of
+ *     threads. On file systems that support sparse files, only the parts of the file that hold locations use disk.</li>
+ *     <li>{@link Type#SPARSE} - A {@link SparseNodeLocationStore} holds 16 bytes for each node, sorted by identifier,
+ *     and finds a location by binary search. Nodes must be added by one thread at a time, in increasing identifier
+ *     order, as they are in a PBF file sorted by type and identifier.</li>
+ * </ul>
+ *
+ * <p>
+ * Stores are filled while nodes are read and then queried while ways are read. Locations added by other threads are
+ * only guaranteed to be visible once the thread reading them has synchronized with the threads that added them. A
+ * serial reader adds and reads on one thread. With a parallel reader, ways should be read in a second pass that starts
+ * after the pass that adds the nodes has finished, since its threads can read a way before another thread has added
+ * the way's nodes.
+ *
+ * @author jonathanl (shibo)
+ */
+public interface NodeLocationStore extends AutoCloseable
+{
+    /** Returned by {@link #get(long)} for a node that isn't in the store */
+    long MISSING = Long.MIN_VALUE;
+
+    /**
+     * The kinds of node location store
+     */
+    enum Type
+    {
+        DENSE,
+        SPARSE;
+
+        /**
+         * Returns the kind of store that uses least disk for node identifiers that cover the given fraction of the range
+         * from zero to the largest identifier. A dense store uses 8 bytes per identifier in the range, and a sparse store
+         * 16 bytes per node, so a dense store is smaller when more than half of the identifiers are used.
+         */
+        public static Type forDensity(Percent density)
+        {
+            return density.value() >= 50.0 ? DENSE : SPARSE;
+        }
+    }
+
+    /**
+     * Returns a new store of the given type, backed by a temporary file that is deleted when the store is closed
+     */
+    static NodeLocationStore create(Type type)
+    {
+        try
+        {
+            var path = Files.createTempFile("node-locations-", ".bin");
+            path.toFile().deleteOnExit();
+            return switch (type)
+            {
+                case DENSE -> new DenseNodeLocationStore(path);
+                case SPARSE -> new SparseNodeLocationStore(path);
+            };
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to create node location store", e);
+        }
+    }
+
+    /**
+     * Releases the store and deletes its file
+     */
+    @Override
+    void close();
+
+    /**
+     * Returns the DM7 location of the given node, or {@link #MISSING} if it isn't in the store
+     */
+    long get(long identifier);
+
+    /**
+     * Stores the given DM7 location for the given node
+     */
+    void put(long identifier, long dm7);
+
+    /**
+     * Returns the number of locations stored
+     */
+    Count size();
+}
@@ -0,0 +1,205 @@
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//
+// © 2011-2021 Telenav, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+package com.telenav.mesakit.tools.library.pbf;
+
+import com.telenav.kivakit.core.value.count.Count;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link NodeLocationStore} that holds an identifier and a location for each node, in increasing identifier order,
+ * in a memory-mapped file. The file is mapped in segments of 1 GB as it grows. The identifier of every
+ * {@link #SAMPLE_INTERVAL}th node is also kept on the heap (about 32 MB for a billion nodes), so a lookup is a binary
+ * search of the samples followed by a binary search of a block of the file that usually falls within a page or two.
+ * <p>
+ * Nodes must be added by one thread at a time, in increasing identifier order.
+ *
+ * @author jonathanl (shibo)
+ */
+public class SparseNodeLocationStore implements NodeLocationStore
+{
+    /** The number of nodes between identifiers sampled onto the heap */
+    static final int SAMPLE_INTERVAL = 256;
+
+    /** The number of nodes in a segment, as a power of two. Each node takes two longs. */
+    private static final int SEGMENT_SHIFT = 26;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    /** The mapped segments of the file */
+    private final List<LongBuffer> segments = new ArrayList<>();
+
+    /** The identifier of every SAMPLE_INTERVAL-th node */
+    private long[] samples = new long[1_024];
+
+    /** The number of nodes stored */
+    private long size;
+
+    /** The identifier of the last node stored */
+    private long last = Long.MIN_VALUE;
+
+    /**
+     * @param path The file to store locations in, which is deleted when the store is closed
+     */
+    public SparseNodeLocationStore(Path path) throws IOException
+    {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void close()
+    {
+        segments.clear();
+        try
+        {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    @Override
+    public long get(long identifier)
+    {
+        if (size == 0 || identifier < samples[0] || identifier > last)
+        {
+            return MISSING;
+        }
+
+        // Find the last sampled identifier at or before the one we want,
+        var sampleCount = (int) ((size - 1) / SAMPLE_INTERVAL) + 1;
+        var sample = Arrays.binarySearch(samples, 0, sampleCount, identifier);
+        if (sample >= 0)
+        {
+            return location((long) sample * SAMPLE_INTERVAL);
+        }
+        var block = -sample - 2;
+
+        // then search the block of nodes that starts with it.
+        var low = (long) block * SAMPLE_INTERVAL;
+        var high = Math.min(size, low + SAMPLE_INTERVAL) - 1;
+        while (low <= high)
+        {
+            var middle = (low + high) >>> 1;
+            var at = identifier(middle);
+            if (at < identifier)
+            {
+                low = middle + 1;
+            }
+            else if (at > identifier)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return location(middle);
+            }
+        }
+        return MISSING;
+    }
+
+    @Override
+    public void put(long identifier, long dm7)
+    {
+        if (identifier <= last)
+        {
+            throw new IllegalStateException("Node " + identifier + " was added after node " + last
+                    + ", but a sparse node location store requires nodes in increasing identifier order");
+        }
+
+        // Sample every SAMPLE_INTERVAL-th identifier,
+        if (size % SAMPLE_INTERVAL == 0)
+        {
+            var sample = (int) (size / SAMPLE_INTERVAL);
+            if (sample == samples.length)
+            {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sample] = identifier;
+        }
+
+        // and append the node to the file.
+        var segment = segment((int) (size >>> SEGMENT_SHIFT));
+        var at = (int) (size & (SEGMENT_SIZE - 1)) * 2;
+        segment.put(at, identifier);
+        segment.put(at + 1, dm7);
+        last = identifier;
+        size++;
+    }
+
+    @Override
+    public Count size()
+    {
+        return Count.count(size);
+    }
+
+    /**
+     * Returns the identifier of the node at the given index
+     */
+    private long identifier(long index)
+    {
+        return segments.get((int) (index >>> SEGMENT_SHIFT)).get((int) (index & (SEGMENT_SIZE - 1)) * 2);
+    }
+
+    /**
+     * Returns the location of the node at the given index
+     */
+    private long location(long index)
+    {
+        return segments.get((int) (index >>> SEGMENT_SHIFT)).get((int) (index & (SEGMENT_SIZE - 1)) * 2 + 1);
+    }
+
+    /**
+     * Returns the given segment, mapping it if it is the next one
+     */
+    private LongBuffer segment(int index)
+    {
+        if (index == segments.size())
+        {
+            try
+            {
+                var bytes = (long) SEGMENT_SIZE * 2 * Long.BYTES;
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, index * bytes, bytes)
+                        .order(ByteOrder.nativeOrder())
+                        .asLongBuffer());
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Unable to map node locations in " + path, e);
+            }
+        }
+        return segments.get(index);
+    }
+}